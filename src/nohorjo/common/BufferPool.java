@@ -0,0 +1,315 @@
+package nohorjo.common;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out direct {@link ByteBuffer}s for I/O from pools, so buffers are
+ * reused rather than allocated for every read and write. Sizes are rounded up
+ * to a power of two size class from 512 bytes to 1MB. Each platform thread
+ * keeps up to 256KB of buffers to itself, falling back to a pool shared by all
+ * threads. Virtual threads, which can number in the millions, only use the
+ * shared pool. Larger buffers are not pooled and are on the heap.
+ * <p>
+ * With leak detection on, set by {@link #setLeakDetection(boolean)} or the
+ * {@code nohorjo.bufferpool.leakDetection} system property, each buffer
+ * records where it was allocated, and any garbage collected without being
+ * released is reported with that stack trace
+ * 
+ * @author muhammed
+ *
+ */
+public class BufferPool {
+	/**
+	 * The largest buffer that is pooled
+	 */
+	public static final int MAX_POOLED_SIZE = 1024 * 1024;
+
+	private static final int MIN_SHIFT = 9;
+	private static final int MAX_SHIFT = 20;
+	private static final int SIZE_CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+	private static final int THREAD_CACHE_BYTES = 256 * 1024;
+	private static final int SHARED_BYTES = 8 * 1024 * 1024;
+	private static final BufferPool DEFAULT = new BufferPool();
+	private static final Method IS_VIRTUAL;
+
+	static {
+		Method isVirtual = null;
+		try {
+			isVirtual = Thread.class.getMethod("isVirtual");
+		} catch (ReflectiveOperationException e) {
+			// virtual threads need JDK 21
+		}
+		IS_VIRTUAL = isVirtual;
+	}
+
+	private final Queue<ByteBuffer>[] shared;
+	private final AtomicInteger[] sharedCounts;
+	private final ThreadLocal<ThreadCache> caches = new ThreadLocal<ThreadCache>() {
+
+		@Override
+		protected ThreadCache initialValue() {
+			// null leaves virtual threads on the shared pool
+			return isVirtual(Thread.currentThread()) ? null : new ThreadCache();
+		}
+	};
+	private final StripedCounter allocations = new StripedCounter();
+	private final StripedCounter hits = new StripedCounter();
+	private final StripedCounter bytesOutstanding = new StripedCounter();
+	private final StripedCounter leaks = new StripedCounter(1);
+	private final ReferenceQueue<PooledBuffer> collected = new ReferenceQueue<>();
+	private final Set<LeakTracker> trackers = Collections.newSetFromMap(new ConcurrentHashMap<LeakTracker, Boolean>());
+	private volatile boolean leakDetection = Boolean.getBoolean("nohorjo.bufferpool.leakDetection");
+
+	/**
+	 * Gets the pool shared by the socket classes
+	 * 
+	 * @return the default pool
+	 */
+	public static BufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Constructs an empty pool
+	 */
+	public BufferPool() {
+		@SuppressWarnings("unchecked")
+		Queue<ByteBuffer>[] shared = (Queue<ByteBuffer>[]) new Queue<?>[SIZE_CLASSES];
+		this.shared = shared;
+		sharedCounts = new AtomicInteger[SIZE_CLASSES];
+		for (int i = 0; i < SIZE_CLASSES; i++) {
+			shared[i] = new ConcurrentLinkedQueue<>();
+			sharedCounts[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Takes a buffer from the pool, or allocates one if the pool is empty
+	 * 
+	 * @param capacity
+	 *            the bytes needed
+	 * @return the buffer, cleared with its limit at capacity
+	 */
+	public PooledBuffer allocate(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Capacity cannot be negative");
+		}
+		if (leakDetection) {
+			reportLeaks();
+		}
+		allocations.increment();
+		int sizeClass = sizeClass(capacity);
+		ByteBuffer buffer = null;
+		if (sizeClass < 0) {
+			buffer = ByteBuffer.allocate(capacity);
+		} else {
+			ThreadCache cache = caches.get();
+			if (cache != null) {
+				buffer = cache.poll(sizeClass);
+			}
+			if (buffer == null && (buffer = shared[sizeClass].poll()) != null) {
+				sharedCounts[sizeClass].decrementAndGet();
+			}
+			if (buffer == null) {
+				buffer = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SHIFT));
+			} else {
+				hits.increment();
+			}
+		}
+		buffer.clear().limit(capacity);
+		bytesOutstanding.add(buffer.capacity());
+		PooledBuffer pooled = new PooledBuffer(this, buffer, sizeClass);
+		if (leakDetection) {
+			pooled.tracker = new LeakTracker(pooled);
+		}
+		return pooled;
+	}
+
+	/**
+	 * Takes a buffer holding a copy of some bytes
+	 * 
+	 * @param data
+	 *            the bytes to copy
+	 * @param offset
+	 *            where they start
+	 * @param length
+	 *            the number of bytes
+	 * @return the buffer, flipped ready to be read or written out
+	 */
+	public PooledBuffer copyOf(byte[] data, int offset, int length) {
+		PooledBuffer pooled = allocate(length);
+		pooled.buffer().put(data, offset, length).flip();
+		return pooled;
+	}
+
+	/**
+	 * Takes back a buffer with no references left
+	 */
+	void recycle(PooledBuffer pooled) {
+		LeakTracker tracker = pooled.tracker;
+		if (tracker != null) {
+			trackers.remove(tracker);
+			tracker.clear();
+		}
+		ByteBuffer buffer = pooled.buffer();
+		bytesOutstanding.add(-buffer.capacity());
+		int sizeClass = pooled.sizeClass();
+		if (sizeClass < 0) {
+			return;
+		}
+		ThreadCache cache = caches.get();
+		if (cache != null && cache.offer(sizeClass, buffer)) {
+			return;
+		}
+		if (sharedCounts[sizeClass].incrementAndGet() <= Math.max(4,
+				SHARED_BYTES >> (sizeClass + MIN_SHIFT))) {
+			shared[sizeClass].add(buffer);
+		} else {
+			sharedCounts[sizeClass].decrementAndGet();
+		}
+	}
+
+	/**
+	 * Turns leak detection on or off. Only buffers allocated while it is on
+	 * are tracked
+	 * 
+	 * @param leakDetection
+	 *            true to record where buffers are allocated
+	 */
+	public void setLeakDetection(boolean leakDetection) {
+		this.leakDetection = leakDetection;
+	}
+
+	/**
+	 * @return the number of buffers handed out
+	 */
+	public long getAllocations() {
+		return allocations.sum();
+	}
+
+	/**
+	 * @return the fraction of allocations served from the pool, 0 to 1
+	 */
+	public double getHitRate() {
+		long allocated = allocations.sum();
+		return allocated == 0 ? 0 : (double) hits.sum() / allocated;
+	}
+
+	/**
+	 * @return the capacity of the buffers handed out and not yet released
+	 */
+	public long getBytesOutstanding() {
+		return bytesOutstanding.sum();
+	}
+
+	/**
+	 * @return the number of buffers found to have been garbage collected
+	 *         without being released, while leak detection was on
+	 */
+	public long getLeaks() {
+		return leaks.sum();
+	}
+
+	/**
+	 * Reports buffers that were garbage collected while still referenced
+	 */
+	private void reportLeaks() {
+		LeakTracker tracker;
+		while ((tracker = (LeakTracker) collected.poll()) != null) {
+			if (trackers.remove(tracker)) {
+				leaks.increment();
+				bytesOutstanding.add(-tracker.capacity);
+				System.err.println("LEAK: a PooledBuffer was garbage collected without being released");
+				tracker.allocation.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Gets the size class of a capacity, or -1 if it is too large to pool
+	 */
+	private static int sizeClass(int capacity) {
+		if (capacity > MAX_POOLED_SIZE) {
+			return -1;
+		}
+		int shift = capacity <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(capacity - 1);
+		return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+	}
+
+	/**
+	 * Checks if a thread is virtual, which needs JDK 21
+	 */
+	private static boolean isVirtual(Thread thread) {
+		if (IS_VIRTUAL == null) {
+			return false;
+		}
+		try {
+			return (Boolean) IS_VIRTUAL.invoke(thread);
+		} catch (ReflectiveOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * The buffers a thread keeps to itself, up to {@link #THREAD_CACHE_BYTES}
+	 * over all size classes so threads that each touch many classes don't
+	 * each hold a lot
+	 */
+	private static class ThreadCache {
+		private final ArrayDeque<ByteBuffer>[] classes;
+		private int bytes;
+
+		ThreadCache() {
+			@SuppressWarnings("unchecked")
+			ArrayDeque<ByteBuffer>[] classes = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[SIZE_CLASSES];
+			for (int i = 0; i < SIZE_CLASSES; i++) {
+				classes[i] = new ArrayDeque<>();
+			}
+			this.classes = classes;
+		}
+
+		ByteBuffer poll(int sizeClass) {
+			ByteBuffer buffer = classes[sizeClass].pollFirst();
+			if (buffer != null) {
+				bytes -= buffer.capacity();
+			}
+			return buffer;
+		}
+
+		/**
+		 * @return false if the cache is full
+		 */
+		boolean offer(int sizeClass, ByteBuffer buffer) {
+			if (bytes + buffer.capacity() > THREAD_CACHE_BYTES) {
+				return false;
+			}
+			classes[sizeClass].addFirst(buffer);
+			bytes += buffer.capacity();
+			return true;
+		}
+	}
+
+	/**
+	 * Remembers where a buffer was allocated until it is released
+	 */
+	class LeakTracker extends WeakReference<PooledBuffer> {
+		private final Throwable allocation = new Throwable("Buffer allocated here");
+		private final int capacity;
+
+		LeakTracker(PooledBuffer pooled) {
+			super(pooled, collected);
+			this.capacity = pooled.buffer().capacity();
+			trackers.add(this);
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package nohorjo.common;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import nohorjo.delegation.Action;
+
+/**
+ * A {@link Future} completed by whoever produces its result, which can also
+ * run a callback on completion instead of being waited on
+ * 
+ * @author muhammed
+ * 
+ * @param <T>
+ *            the type of the result
+ */
+public class CallbackFuture<T> implements Future<T> {
+	private final CountDownLatch done = new CountDownLatch(1);
+	private final Runnable onCancel;
+	private boolean completed;
+	private T result;
+	private Throwable failure;
+	private boolean cancelled;
+	private Action callback;
+
+	/**
+	 * Constructs an incomplete future
+	 */
+	public CallbackFuture() {
+		this(null);
+	}
+
+	/**
+	 * Constructs an incomplete future
+	 * 
+	 * @param onCancel
+	 *            run when the future is cancelled, to stop producing the
+	 *            result, or null
+	 */
+	public CallbackFuture(Runnable onCancel) {
+		this.onCancel = onCancel;
+	}
+
+	/**
+	 * Completes the future with a result
+	 * 
+	 * @param result
+	 *            the result
+	 * @return true if this completed it, false if it was already complete
+	 */
+	public boolean complete(T result) {
+		Action callback;
+		synchronized (this) {
+			if (completed) {
+				return false;
+			}
+			completed = true;
+			this.result = result;
+			callback = this.callback;
+		}
+		done.countDown();
+		if (callback != null) {
+			callback.run(result, null);
+		}
+		return true;
+	}
+
+	/**
+	 * Completes the future with a failure
+	 * 
+	 * @param failure
+	 *            the cause, thrown from {@link #get()} wrapped in an
+	 *            {@link ExecutionException}
+	 * @return true if this completed it, false if it was already complete
+	 */
+	public boolean fail(Throwable failure) {
+		Action callback;
+		synchronized (this) {
+			if (completed) {
+				return false;
+			}
+			completed = true;
+			this.failure = failure;
+			callback = this.callback;
+		}
+		done.countDown();
+		if (callback != null) {
+			callback.run(null, failure);
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the action to run on completion, on the completing thread. If the
+	 * future is already complete it runs straight away on this thread
+	 * 
+	 * @param callback
+	 *            takes arguments (result or null, {@link Throwable} = the
+	 *            failure or null)
+	 */
+	public void setCallback(Action callback) {
+		synchronized (this) {
+			if (!completed) {
+				this.callback = callback;
+				return;
+			}
+		}
+		callback.run(result, failure);
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		Action callback;
+		synchronized (this) {
+			if (completed) {
+				return false;
+			}
+			completed = true;
+			cancelled = true;
+			failure = new CancellationException();
+			callback = this.callback;
+		}
+		done.countDown();
+		if (onCancel != null) {
+			onCancel.run();
+		}
+		if (callback != null) {
+			callback.run(null, failure);
+		}
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return completed;
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		done.await();
+		return result();
+	}
+
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return result();
+	}
+
+	private synchronized T result() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		}
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return result;
+	}
+}
@@ -27,7 +27,7 @@ public class CountInputStream extends InputStream {
 
 	public int read() throws IOException {
 		int r = is.read();
-		if (r > 0) {
+		if (r >= 0) {
 			count++;
 		}
 		return r;
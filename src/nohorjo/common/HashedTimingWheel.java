@@ -0,0 +1,198 @@
+package nohorjo.common;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules large numbers of timeouts with a single thread. Timeouts are
+ * hashed into a ring of buckets by their deadline, and each tick only visits
+ * one bucket, so scheduling and cancelling are O(1) however many timeouts are
+ * pending. Deadlines are accurate to a tick
+ * 
+ * @author muhammed
+ *
+ */
+public class HashedTimingWheel implements Closeable, Runnable {
+	private static HashedTimingWheel defaultWheel;
+
+	private final long tickNanos;
+	private final int mask;
+	private final Queue<Timeout>[] buckets;
+	private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+	private final Executor executor;
+	private final long startTime = System.nanoTime();
+	private long tick;
+	private volatile boolean alive = true;
+
+	/**
+	 * Gets a wheel shared by everything that doesn't need its own, with a
+	 * 100ms tick. Its tasks run on a pool of daemon threads
+	 * 
+	 * @return the default wheel
+	 */
+	public static synchronized HashedTimingWheel getDefault() {
+		if (defaultWheel == null) {
+			final AtomicInteger count = new AtomicInteger();
+			ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "HashedTimingWheel-task-" + count.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			defaultWheel = new HashedTimingWheel(100, 512, executor);
+			Thread thread = new Thread(defaultWheel, "HashedTimingWheel");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return defaultWheel;
+	}
+
+	/**
+	 * Constructs a wheel. It does nothing until {@link #run()} is started on
+	 * a thread
+	 * 
+	 * @param tickMillis
+	 *            the time between ticks
+	 * @param wheelSize
+	 *            the number of buckets, rounded up to a power of two. Deadlines
+	 *            further ahead than tickMillis * wheelSize cost one extra
+	 *            visit per turn of the wheel
+	 * @param executor
+	 *            runs expired tasks, so slow ones don't delay the wheel
+	 */
+	public HashedTimingWheel(long tickMillis, int wheelSize, Executor executor) {
+		if (tickMillis < 1 || wheelSize < 1) {
+			throw new IllegalArgumentException("Tick and wheel size must be positive");
+		}
+		int size = wheelSize == 1 ? 1 : Integer.highestOneBit(wheelSize - 1) << 1;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.mask = size - 1;
+		@SuppressWarnings("unchecked")
+		Queue<Timeout>[] buckets = (Queue<Timeout>[]) new Queue<?>[size];
+		for (int i = 0; i < size; i++) {
+			buckets[i] = new ArrayDeque<>();
+		}
+		this.buckets = buckets;
+		this.executor = executor;
+	}
+
+	/**
+	 * Schedules a task
+	 * 
+	 * @param task
+	 *            the task to run on the executor
+	 * @param delay
+	 *            how long to wait
+	 * @param unit
+	 *            the unit of the delay
+	 * @return a {@link Timeout} that can cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+		added.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Ticks until closed, running the tasks that have expired. Interrupts are
+	 * ignored, as the default wheel is shared and only stops when closed
+	 */
+	@Override
+	public void run() {
+		while (alive) {
+			long deadline = startTime + (tick + 1) * tickNanos;
+			long sleep = deadline - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					// only close() stops the wheel
+					continue;
+				}
+			}
+			transferAdded();
+			Iterator<Timeout> timeouts = buckets[(int) (tick & mask)].iterator();
+			while (timeouts.hasNext()) {
+				Timeout timeout = timeouts.next();
+				if (timeout.cancelled) {
+					timeouts.remove();
+				} else if (timeout.rounds > 0) {
+					timeout.rounds--;
+				} else {
+					timeouts.remove();
+					timeout.expired = true;
+					executor.execute(timeout.task);
+				}
+			}
+			tick++;
+		}
+	}
+
+	/**
+	 * Puts newly scheduled timeouts into their buckets
+	 */
+	private void transferAdded() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.cancelled) {
+				continue;
+			}
+			long ticks = Math.max((timeout.deadline - startTime + tickNanos - 1) / tickNanos - 1, tick);
+			timeout.rounds = (ticks - tick) / buckets.length;
+			buckets[(int) (ticks & mask)].add(timeout);
+		}
+	}
+
+	/**
+	 * Stops the wheel. Pending tasks are not run
+	 */
+	@Override
+	public void close() {
+		alive = false;
+	}
+
+	/**
+	 * A scheduled task
+	 */
+	public static class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private long rounds;
+		private volatile boolean cancelled;
+		private volatile boolean expired;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Stops the task from running, if it hasn't already
+		 * 
+		 * @return true if the task will no longer run
+		 */
+		public boolean cancel() {
+			cancelled = true;
+			return !expired;
+		}
+
+		/**
+		 * @return true if the task has been handed to the executor
+		 */
+		public boolean isExpired() {
+			return expired;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package nohorjo.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A reference counted {@link ByteBuffer} from a {@link BufferPool}. It starts
+ * with one reference, each {@link #retain()} adds one, and it goes back to the
+ * pool when {@link #release()} has been called once more than
+ * {@link #retain()}. It must not be used after that
+ * 
+ * @author muhammed
+ *
+ */
+public class PooledBuffer {
+	private static final AtomicIntegerFieldUpdater<PooledBuffer> REFERENCES = AtomicIntegerFieldUpdater
+			.newUpdater(PooledBuffer.class, "references");
+
+	private final BufferPool pool;
+	private final ByteBuffer buffer;
+	private final int sizeClass;
+	private volatile int references = 1;
+	BufferPool.LeakTracker tracker;
+
+	PooledBuffer(BufferPool pool, ByteBuffer buffer, int sizeClass) {
+		this.pool = pool;
+		this.buffer = buffer;
+		this.sizeClass = sizeClass;
+	}
+
+	/**
+	 * Gets the buffer. Its limit starts at the capacity asked for, though its
+	 * real capacity may be larger. Holders that share it should work on a
+	 * {@link ByteBuffer#duplicate()} so they don't move each other's position
+	 * 
+	 * @return the buffer
+	 */
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	 * Adds a reference, for passing the buffer to another holder
+	 * 
+	 * @return this
+	 */
+	public PooledBuffer retain() {
+		int current;
+		do {
+			current = references;
+			if (current <= 0) {
+				throw new IllegalStateException("Buffer has already been released");
+			}
+		} while (!REFERENCES.compareAndSet(this, current, current + 1));
+		return this;
+	}
+
+	/**
+	 * Drops a reference, returning the buffer to the pool if it was the last
+	 * 
+	 * @return true if the buffer went back to the pool
+	 */
+	public boolean release() {
+		int remaining = REFERENCES.decrementAndGet(this);
+		if (remaining < 0) {
+			REFERENCES.incrementAndGet(this);
+			throw new IllegalStateException("Buffer has already been released");
+		}
+		if (remaining == 0) {
+			pool.recycle(this);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of references held
+	 */
+	public int references() {
+		return references;
+	}
+
+	int sizeClass() {
+		return sizeClass;
+	}
+}
@@ -0,0 +1,75 @@
+package nohorjo.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads updates over several cells so threads incrementing
+ * it at the same time rarely contend. Reading the total sums the cells
+ * 
+ * @author muhammed
+ *
+ */
+public class StripedCounter {
+	private static final int DEFAULT_STRIPES = Runtime.getRuntime().availableProcessors() * 2;
+	// cells are spaced a cache line apart
+	private static final int PADDING = 8;
+
+	private final int mask;
+	private final AtomicLongArray cells;
+
+	/**
+	 * Constructs a counter with two stripes per processor, rounded up to a
+	 * power of two
+	 */
+	public StripedCounter() {
+		this(DEFAULT_STRIPES);
+	}
+
+	/**
+	 * Constructs a counter
+	 * 
+	 * @param stripes
+	 *            number of cells, rounded up to a power of two. 1 behaves like
+	 *            an {@link java.util.concurrent.atomic.AtomicLong}
+	 */
+	public StripedCounter(int stripes) {
+		int size = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+		mask = size - 1;
+		cells = new AtomicLongArray(size == 1 ? 1 : size * PADDING);
+	}
+
+	/**
+	 * Adds to the count
+	 * 
+	 * @param x
+	 *            the amount to add
+	 */
+	public void add(long x) {
+		cells.getAndAdd(mask == 0 ? 0 : (int) (Thread.currentThread().getId() & mask) * PADDING, x);
+	}
+
+	/**
+	 * Adds one to the count
+	 */
+	public void increment() {
+		add(1);
+	}
+
+	/**
+	 * Gets the count. Not atomic with respect to concurrent updates
+	 * 
+	 * @return the sum of the cells
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < cells.length(); i += PADDING) {
+			sum += cells.get(i);
+		}
+		return sum;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+}
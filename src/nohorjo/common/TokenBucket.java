@@ -0,0 +1,72 @@
+package nohorjo.common;
+
+/**
+ * Limits a rate with a bucket that fills with tokens at a steady rate up to a
+ * burst size. Rather than refusing callers that ask for more than is in the
+ * bucket, {@link #reserve(long)} always takes what was asked, letting the
+ * bucket go into debt, and returns how long to wait for it to be paid off, so
+ * a caller that pauses for that long keeps to the rate on average
+ * 
+ * @author muhammed
+ *
+ */
+public class TokenBucket {
+	private final double tokensPerNano;
+	private final double burst;
+	private double tokens;
+	private long refilled = System.nanoTime();
+
+	/**
+	 * @param tokensPerSecond
+	 *            the rate the bucket fills at
+	 * @param burst
+	 *            the most the bucket holds, which is also what it starts
+	 *            with
+	 */
+	public TokenBucket(long tokensPerSecond, long burst) {
+		if (tokensPerSecond <= 0) {
+			throw new IllegalArgumentException("Rate must be positive");
+		}
+		if (burst <= 0) {
+			throw new IllegalArgumentException("Burst must be positive");
+		}
+		this.tokensPerNano = tokensPerSecond / 1e9;
+		this.burst = burst;
+		this.tokens = burst;
+	}
+
+	/**
+	 * Takes tokens from the bucket
+	 * 
+	 * @param permits
+	 *            the tokens to take
+	 * @return nanoseconds to wait before taking more, 0 if the bucket was not
+	 *         emptied
+	 */
+	public synchronized long reserve(long permits) {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - refilled) * tokensPerNano);
+		refilled = now;
+		tokens -= permits;
+		return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+	}
+
+	/**
+	 * Gets how long the bucket takes to refill, such as for working out how
+	 * long a caller's take lasts at its share of the rate
+	 * 
+	 * @param permits
+	 *            the tokens
+	 * @return nanoseconds to refill that many tokens from empty
+	 */
+	public long nanosFor(long permits) {
+		return (long) Math.ceil(permits / tokensPerNano);
+	}
+
+	/**
+	 * @return the tokens in the bucket, negative when in debt
+	 */
+	public synchronized double getTokens() {
+		return Math.min(burst, tokens + (System.nanoTime() - refilled) * tokensPerNano);
+	}
+}
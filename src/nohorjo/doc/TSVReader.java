@@ -0,0 +1,184 @@
+package nohorjo.doc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import nohorjo.delegation.Action;
+
+/**
+ * Reads TSV a record at a time, for files too large to hold in a
+ * {@link TSVSpreadsheet}. Records are split as the sheet splits them, and
+ * are handed out through a single {@link TSVRow} that is reused, so memory
+ * stays flat however long the file is. Records can be visited with
+ * {@link #visit(Action)} or iterated, and either can stop early. The
+ * reader can only be read once, and closes itself at the end of the input
+ * 
+ * @author muhammed
+ *
+ */
+public class TSVReader implements Iterable<TSVRow>, Closeable {
+	private final TSVTokenizer tokenizer;
+	private int[] columns;
+	private boolean started;
+
+	/**
+	 * Constructs a reader of a stream in the platform charset
+	 * 
+	 * @param tsvInput
+	 *            {@link InputStream}
+	 */
+	public TSVReader(InputStream tsvInput) {
+		this(new TSVTokenizer(tsvInput, Charset.defaultCharset()));
+	}
+
+	/**
+	 * Constructs a reader of a file in the platform charset
+	 * 
+	 * @param path
+	 *            path to the spreadsheet
+	 * @throws IOException
+	 *             if the file cannot be opened
+	 */
+	public TSVReader(Path path) throws IOException {
+		this(new TSVTokenizer(path, Charset.defaultCharset()));
+	}
+
+	/**
+	 * Constructs a reader of the records of a {@link TSVTokenizer}
+	 * 
+	 * @param tokenizer
+	 *            the tokenizer, set up to read quotes or escapes if needed
+	 */
+	public TSVReader(TSVTokenizer tokenizer) {
+		this.tokenizer = tokenizer;
+	}
+
+	/**
+	 * Selects the columns each row holds, in the order given. Cells in other
+	 * columns are never decoded
+	 * 
+	 * @param columnNumbers
+	 *            the column numbers, from 0
+	 * @return this reader
+	 */
+	public TSVReader select(int... columnNumbers) {
+		if (started) {
+			throw new IllegalStateException("Columns must be selected before reading");
+		}
+		for (int column : columnNumbers) {
+			if (column < 0) {
+				throw new IllegalArgumentException("Column " + column);
+			}
+		}
+		columns = columnNumbers.clone();
+		return this;
+	}
+
+	/**
+	 * Selects the columns each row holds, in the order given. Cells in other
+	 * columns are never decoded
+	 * 
+	 * @param columnReferences
+	 *            the column letters, such as "A", "D" and "F"
+	 * @return this reader
+	 */
+	public TSVReader select(String... columnReferences) {
+		int[] columnNumbers = new int[columnReferences.length];
+		for (int i = 0; i < columnReferences.length; i++) {
+			columnNumbers[i] = TSVSpreadsheet.columnNumber(columnReferences[i]);
+		}
+		return select(columnNumbers);
+	}
+
+	/**
+	 * Visits each record in turn, then closes the reader. Named apart from
+	 * {@code Iterable.forEach}, which would make a lambda ambiguous
+	 * 
+	 * @param visitor
+	 *            called with the {@link TSVRow}, returns {@link Boolean#FALSE}
+	 *            to stop
+	 * @return the number of records visited
+	 * @throws IOException
+	 *             on errors reading
+	 */
+	public long visit(Action visitor) throws IOException {
+		TSVRow row = start();
+		long visited = 0;
+		try {
+			while (tokenizer.next()) {
+				row.next();
+				visited++;
+				if (Boolean.FALSE.equals(visitor.run(row))) {
+					break;
+				}
+			}
+		} finally {
+			close();
+		}
+		return visited;
+	}
+
+	/**
+	 * Iterates over the records, handing out the same {@link TSVRow} each
+	 * time. Errors reading are thrown as {@link IllegalStateException}s. Close
+	 * the reader when stopping early
+	 */
+	@Override
+	public Iterator<TSVRow> iterator() {
+		final TSVRow row = start();
+		return new Iterator<TSVRow>() {
+			private boolean ready;
+			private boolean done;
+
+			@Override
+			public boolean hasNext() {
+				if (!ready && !done) {
+					try {
+						if (tokenizer.next()) {
+							row.next();
+							ready = true;
+						} else {
+							done = true;
+							close();
+						}
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+				return ready;
+			}
+
+			@Override
+			public TSVRow next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				ready = false;
+				return row;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private TSVRow start() {
+		if (started) {
+			throw new IllegalStateException("TSVReader can only be read once");
+		}
+		started = true;
+		return new TSVRow(tokenizer, columns);
+	}
+
+	@Override
+	public void close() throws IOException {
+		tokenizer.close();
+	}
+}
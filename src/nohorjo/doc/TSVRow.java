@@ -0,0 +1,93 @@
+package nohorjo.doc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The current record of a {@link TSVReader}. The same row is reused for every
+ * record, so its cells change as the reader moves on. Copy them with
+ * {@link #toList()} to keep them
+ * 
+ * @author muhammed
+ *
+ */
+public class TSVRow {
+	private final TSVTokenizer tokenizer;
+	private final int[] columns;
+	private long rowNumber = -1;
+
+	/**
+	 * @param tokenizer
+	 *            the tokenizer holding the record
+	 * @param columns
+	 *            the columns selected, or null for all of them
+	 */
+	TSVRow(TSVTokenizer tokenizer, int[] columns) {
+		this.tokenizer = tokenizer;
+		this.columns = columns;
+	}
+
+	void next() {
+		rowNumber++;
+	}
+
+	/**
+	 * @return the row number, from 0
+	 */
+	public long getRowNumber() {
+		return rowNumber;
+	}
+
+	/**
+	 * Gets the number of cells, which is the number of columns selected if
+	 * any were
+	 * 
+	 * @return the number of cells
+	 */
+	public int size() {
+		return columns == null ? tokenizer.getCellCount() : columns.length;
+	}
+
+	/**
+	 * Gets a cell, decoded each time it is asked for
+	 * 
+	 * @param index
+	 *            the cell number, or the position of the column in those
+	 *            selected if any were
+	 * @return the contents of the cell, or "" if the record is shorter
+	 */
+	public String get(int index) {
+		if (columns == null) {
+			return tokenizer.getCell(index);
+		}
+		return tokenizer.getCell(columns[index]);
+	}
+
+	/**
+	 * Copies the cells
+	 * 
+	 * @return a new {@link List} of the cells
+	 */
+	public List<String> toList() {
+		if (columns == null) {
+			return tokenizer.getRecord();
+		}
+		List<String> cells = new ArrayList<>(columns.length);
+		for (int column : columns) {
+			cells.add(tokenizer.getCell(column));
+		}
+		return cells;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder tsv = new StringBuilder();
+		for (int i = 0; i < size(); i++) {
+			if (i > 0) {
+				tsv.append('\t');
+			}
+			tsv.append(get(i));
+		}
+		return tsv.toString();
+	}
+}
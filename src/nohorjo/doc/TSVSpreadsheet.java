@@ -1,14 +1,11 @@
 package nohorjo.doc;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -16,7 +13,8 @@ import java.util.Iterator;
 import java.util.List;
 
 /**
- * Represents a TSV spreadsheet
+ * Represents a TSV spreadsheet, held in memory. Use {@link TSVReader} to read
+ * files too large for that a record at a time
  * 
  * @author muhammed
  *
@@ -39,12 +37,7 @@ public class TSVSpreadsheet implements Iterable<List<String>> {
 	 * @throws IOException
 	 */
 	public TSVSpreadsheet(InputStream tsvInput) throws IOException {
-		try (BufferedReader reader = new BufferedReader(new InputStreamReader(tsvInput))) {
-			String record;
-			while ((record = reader.readLine()) != null) {
-				addRecord(record);
-			}
-		}
+		this(new TSVTokenizer(tsvInput, Charset.defaultCharset()));
 	}
 
 	/**
@@ -55,8 +48,22 @@ public class TSVSpreadsheet implements Iterable<List<String>> {
 	 * @throws IOException
 	 */
 	public TSVSpreadsheet(Path path) throws IOException {
-		for (String record : Files.readAllLines(path, Charset.defaultCharset())) {
-			addRecord(record);
+		this(new TSVTokenizer(path, Charset.defaultCharset()));
+	}
+
+	/**
+	 * Constructs a sheet from every record of a {@link TSVTokenizer}, which
+	 * is then closed
+	 * 
+	 * @param tokenizer
+	 *            the tokenizer, set up to read quotes or escapes if needed
+	 * @throws IOException
+	 */
+	public TSVSpreadsheet(TSVTokenizer tokenizer) throws IOException {
+		try (TSVTokenizer records = tokenizer) {
+			while (records.next()) {
+				this.records.add(records.getRecord());
+			}
 		}
 	}
 
@@ -104,7 +111,7 @@ public class TSVSpreadsheet implements Iterable<List<String>> {
 	 *            the number to convert
 	 * @return the number in base 10
 	 */
-	private int base26toBase10(StringBuilder b26) {
+	private static int base26toBase10(StringBuilder b26) {
 		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
 		b26.reverse();
 		int rtn = 0;
@@ -114,6 +121,17 @@ public class TSVSpreadsheet implements Iterable<List<String>> {
 		return rtn;
 	}
 
+	/**
+	 * Converts a column reference to a column number
+	 * 
+	 * @param columnReference
+	 *            the column letters
+	 * @return the column number, from 0
+	 */
+	static int columnNumber(String columnReference) {
+		return base26toBase10(new StringBuilder(columnReference.toUpperCase())) - 1;
+	}
+
 	/**
 	 * Changes the contents of a cell
 	 * 
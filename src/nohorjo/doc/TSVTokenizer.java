@@ -0,0 +1,526 @@
+package nohorjo.doc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits TSV into records and cells a record at a time, scanning the bytes
+ * in a buffer directly rather than reading lines and splitting them. Cells
+ * are only decoded into {@link String}s when asked for, and stay valid until
+ * the next record is read.
+ * <p>
+ * Records end at LF, CRLF or CR, as {@link java.io.BufferedReader#readLine()}
+ * ends lines, and cells are counted as {@code String.split("\t")} counts them:
+ * empty cells at the end of a record are dropped, but an empty line is a
+ * single empty cell. Quoted cells, which may hold tabs and line breaks with
+ * {@code ""} for a quote, and backslash escapes ({@code \t \n \r \\}) are
+ * both off by default, so quotes and backslashes are read as they are.
+ * <p>
+ * Charsets in which tabs, line breaks, quotes and backslashes are single
+ * bytes that never appear inside other characters, such as UTF-8 and the
+ * ISO-8859 family, are scanned as they are. Others, such as UTF-16, are
+ * converted to UTF-8 first
+ * 
+ * @author muhammed
+ *
+ */
+public class TSVTokenizer implements Closeable {
+	private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private final InputStream in;
+	private final ReadableByteChannel channel;
+	private final Charset charset;
+	private byte[] buffer;
+	private int start;
+	private int scan;
+	private int limit;
+	private int position;
+	private int cellStart;
+	private boolean eof;
+	private boolean skipLF;
+	private boolean inQuote;
+	private boolean quotes;
+	private boolean escapes;
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	private int cells;
+	private long records;
+
+	/**
+	 * Constructs a tokenizer reading a stream in the platform charset
+	 * 
+	 * @param in
+	 *            the stream, closed with the tokenizer
+	 */
+	public TSVTokenizer(InputStream in) {
+		this(in, Charset.defaultCharset());
+	}
+
+	/**
+	 * Constructs a tokenizer reading a stream
+	 * 
+	 * @param in
+	 *            the stream, closed with the tokenizer
+	 * @param charset
+	 *            the charset of the stream
+	 */
+	public TSVTokenizer(InputStream in, Charset charset) {
+		this(in, charset, DEFAULT_BUFFER_SIZE);
+	}
+
+	TSVTokenizer(InputStream in, Charset charset, int bufferSize) {
+		if (scannable(charset)) {
+			this.in = in;
+			this.charset = charset;
+		} else {
+			this.in = new Utf8InputStream(in, charset);
+			this.charset = StandardCharsets.UTF_8;
+		}
+		this.channel = null;
+		this.buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Constructs a tokenizer reading a channel, such as a {@link FileChannel}
+	 * 
+	 * @param channel
+	 *            the channel, closed with the tokenizer
+	 * @param charset
+	 *            the charset of the channel
+	 */
+	public TSVTokenizer(ReadableByteChannel channel, Charset charset) {
+		this(channel, charset, DEFAULT_BUFFER_SIZE);
+	}
+
+	TSVTokenizer(ReadableByteChannel channel, Charset charset, int bufferSize) {
+		if (scannable(charset)) {
+			this.in = null;
+			this.channel = channel;
+			this.charset = charset;
+		} else {
+			this.in = new Utf8InputStream(Channels.newInputStream(channel), charset);
+			this.channel = null;
+			this.charset = StandardCharsets.UTF_8;
+		}
+		this.buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Constructs a tokenizer reading a file through a {@link FileChannel}
+	 * 
+	 * @param path
+	 *            the file
+	 * @param charset
+	 *            the charset of the file
+	 * @throws IOException
+	 *             if the file cannot be opened
+	 */
+	public TSVTokenizer(Path path, Charset charset) throws IOException {
+		this(FileChannel.open(path, StandardOpenOption.READ), charset);
+	}
+
+	/**
+	 * Gets whether a charset can be scanned byte by byte for delimiters
+	 */
+	private static boolean scannable(Charset charset) {
+		if (charset.equals(StandardCharsets.UTF_8)) {
+			return true;
+		}
+		if (!charset.canEncode()) {
+			return false;
+		}
+		CharsetEncoder encoder = charset.newEncoder();
+		return encoder.maxBytesPerChar() == 1
+				&& Arrays.equals("\t\n\r\"\\".getBytes(charset), new byte[] { '\t', '\n', '\r', '"', '\\' });
+	}
+
+	/**
+	 * Sets whether a cell starting with a quote runs to the closing quote,
+	 * taking in any tabs and line breaks, with {@code ""} read as a quote.
+	 * Anything after the closing quote is kept as it is. Off by default
+	 * 
+	 * @param quotes
+	 *            true to read quoted cells
+	 */
+	public void setQuotes(boolean quotes) {
+		this.quotes = quotes;
+	}
+
+	/**
+	 * Sets whether {@code \t}, {@code \n}, {@code \r} and {@code \\} are read
+	 * as a tab, line feed, carriage return and backslash, and a backslash
+	 * before a quote, tab or line break keeps it in the cell. Other
+	 * backslashes are kept as they are. Off by default
+	 * 
+	 * @param escapes
+	 *            true to read backslash escapes
+	 */
+	public void setEscapes(boolean escapes) {
+		this.escapes = escapes;
+	}
+
+	/**
+	 * Reads the next record
+	 * 
+	 * @return true if there was one, false at the end of the input
+	 * @throws IOException
+	 *             on errors reading
+	 */
+	public boolean next() throws IOException {
+		start = position;
+		scan = position;
+		cellStart = position;
+		cells = 0;
+		inQuote = false;
+		while (true) {
+			if (scan < limit) {
+				if (skipLF) {
+					skipLF = false;
+					if (buffer[scan] == '\n') {
+						start = ++scan;
+						cellStart = scan;
+						continue;
+					}
+				}
+				if (quotes || escapes ? scanQuoted() : scanPlain()) {
+					return true;
+				}
+			}
+			if (!fill()) {
+				skipLF = false;
+				if (scan < limit) {
+					// a quote or backslash was held back for what follows it
+					continue;
+				}
+				if (scan == start) {
+					return false;
+				}
+				// the last line, with no line break
+				end(scan, scan);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Scans for tabs and line breaks, leaving scan at the end of the buffer
+	 * if the record does not end in it
+	 * 
+	 * @return true if the record ended
+	 */
+	private boolean scanPlain() {
+		byte[] b = buffer;
+		int end = limit;
+		for (int i = scan; i < end; i++) {
+			byte c = b[i];
+			if (c > '\r' || c < '\t') {
+				continue;
+			}
+			if (c == '\t') {
+				addCell(cellStart, i);
+				cellStart = i + 1;
+			} else if (c == '\n' || c == '\r') {
+				skipLF = c == '\r';
+				end(i, i + 1);
+				return true;
+			}
+		}
+		scan = end;
+		return false;
+	}
+
+	/**
+	 * Scans for tabs and line breaks outside quotes and escapes, stopping
+	 * short of a quote or backslash at the end of the buffer until what
+	 * follows it is known
+	 * 
+	 * @return true if the record ended
+	 */
+	private boolean scanQuoted() {
+		byte[] b = buffer;
+		int end = limit;
+		int i = scan;
+		for (; i < end; i++) {
+			byte c = b[i];
+			if (escapes && c == '\\') {
+				if (i + 1 == end) {
+					if (!eof) {
+						break;
+					}
+				} else {
+					i++;
+				}
+			} else if (inQuote) {
+				if (c == '"') {
+					if (i + 1 == end && !eof) {
+						break;
+					}
+					if (i + 1 < end && b[i + 1] == '"') {
+						i++;
+					} else {
+						inQuote = false;
+					}
+				}
+			} else if (c == '"' && quotes && i == cellStart) {
+				inQuote = true;
+			} else if (c == '\t') {
+				addCell(cellStart, i);
+				cellStart = i + 1;
+			} else if (c == '\n' || c == '\r') {
+				skipLF = c == '\r';
+				end(i, i + 1);
+				return true;
+			}
+		}
+		scan = i;
+		if (i == end && eof) {
+			// an unclosed quote runs to the end
+			end(i, i);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Ends the record
+	 * 
+	 * @param end
+	 *            where its line break is
+	 * @param next
+	 *            where the next record starts
+	 */
+	private void end(int end, int next) {
+		addCell(cellStart, end);
+		position = next;
+		scan = next;
+		records++;
+		if (end == start) {
+			cells = 1;
+			return;
+		}
+		if (quotes || escapes) {
+			unquote();
+		}
+		while (cells > 0 && ends[cells - 1] == starts[cells - 1]) {
+			cells--;
+		}
+	}
+
+	/**
+	 * Removes quotes and escapes from the cells of the record, which only
+	 * ever shortens them, so it is done in place
+	 */
+	private void unquote() {
+		byte[] b = buffer;
+		for (int cell = 0; cell < cells; cell++) {
+			int read = starts[cell];
+			int end = ends[cell];
+			int write = read;
+			boolean quoted = quotes && read < end && b[read] == '"';
+			if (quoted) {
+				read++;
+			}
+			while (read < end) {
+				byte c = b[read++];
+				if (escapes && c == '\\' && read < end) {
+					byte escaped = b[read];
+					if (escaped == 't') {
+						c = '\t';
+					} else if (escaped == 'n') {
+						c = '\n';
+					} else if (escaped == 'r') {
+						c = '\r';
+					} else if (escaped == '\\' || escaped == '"' || escaped == '\t' || escaped == '\n'
+							|| escaped == '\r') {
+						c = escaped;
+					} else {
+						b[write++] = c;
+						c = escaped;
+					}
+					read++;
+				} else if (quoted && c == '"') {
+					if (read < end && b[read] == '"') {
+						read++;
+					} else {
+						quoted = false;
+						continue;
+					}
+				}
+				b[write++] = c;
+			}
+			ends[cell] = write;
+		}
+	}
+
+	private void addCell(int from, int to) {
+		if (cells == starts.length) {
+			starts = Arrays.copyOf(starts, cells * 2);
+			ends = Arrays.copyOf(ends, cells * 2);
+		}
+		starts[cells] = from;
+		ends[cells] = to;
+		cells++;
+	}
+
+	/**
+	 * Moves the record so far to the front of the buffer, growing it if the
+	 * record fills it, and reads more after it
+	 * 
+	 * @return false at the end of the input
+	 */
+	private boolean fill() throws IOException {
+		if (eof) {
+			return false;
+		}
+		int shift = start;
+		if (shift > 0) {
+			System.arraycopy(buffer, shift, buffer, 0, limit - shift);
+			start = 0;
+			scan -= shift;
+			limit -= shift;
+			position -= shift;
+			cellStart -= shift;
+			for (int i = 0; i < cells; i++) {
+				starts[i] -= shift;
+				ends[i] -= shift;
+			}
+		}
+		if (limit == buffer.length) {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+		int read;
+		do {
+			read = in != null ? in.read(buffer, limit, buffer.length - limit)
+					: channel.read(ByteBuffer.wrap(buffer, limit, buffer.length - limit));
+		} while (read == 0);
+		if (read < 0) {
+			eof = true;
+			return false;
+		}
+		limit += read;
+		return true;
+	}
+
+	/**
+	 * @return the number of cells in the record
+	 */
+	public int getCellCount() {
+		return cells;
+	}
+
+	/**
+	 * Gets a cell of the record
+	 * 
+	 * @param cell
+	 *            the cell number, from 0
+	 * @return the cell, or "" if the record has fewer cells
+	 */
+	public String getCell(int cell) {
+		if (cell < 0) {
+			throw new IndexOutOfBoundsException("Cell " + cell);
+		}
+		if (cell >= cells) {
+			return "";
+		}
+		return new String(buffer, starts[cell], ends[cell] - starts[cell], charset);
+	}
+
+	/**
+	 * Gets all the cells of the record
+	 * 
+	 * @return a new {@link List} of the cells
+	 */
+	public List<String> getRecord() {
+		List<String> record = new ArrayList<>(cells);
+		for (int i = 0; i < cells; i++) {
+			record.add(new String(buffer, starts[i], ends[i] - starts[i], charset));
+		}
+		return record;
+	}
+
+	/**
+	 * @return the number of records read so far
+	 */
+	public long getRecordNumber() {
+		return records;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (in != null) {
+			in.close();
+		} else {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Converts a stream in another charset to UTF-8 as it is read
+	 */
+	private static class Utf8InputStream extends InputStream {
+		private final Reader reader;
+		private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private final CharBuffer chars = CharBuffer.allocate(8192);
+		private final ByteBuffer bytes = ByteBuffer.allocate(8192 * 3);
+		private boolean eof;
+
+		private Utf8InputStream(InputStream in, Charset charset) {
+			this.reader = new InputStreamReader(in, charset);
+			chars.flip();
+			bytes.flip();
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			while (!bytes.hasRemaining()) {
+				if (eof) {
+					return -1;
+				}
+				bytes.clear();
+				chars.compact();
+				int read = reader.read(chars);
+				chars.flip();
+				if (read < 0) {
+					eof = true;
+					encoder.encode(chars, bytes, true);
+					encoder.flush(bytes);
+				} else {
+					encoder.encode(chars, bytes, false);
+				}
+				bytes.flip();
+			}
+			int n = Math.min(len, bytes.remaining());
+			bytes.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+}
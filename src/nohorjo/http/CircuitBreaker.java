@@ -0,0 +1,114 @@
+package nohorjo.http;
+
+/**
+ * Tracks the health of a host for {@link HttpOperation}. After a number of
+ * failures in a row, connection errors, timeouts and 5xx statuses, it opens
+ * and requests to the host fail straight away. Once it has been open for a
+ * while a single trial request is let through, which closes it again if it
+ * succeeds and reopens it if it fails
+ * 
+ * @author muhammed
+ *
+ */
+public class CircuitBreaker {
+	/**
+	 * Whether requests are let through
+	 */
+	public enum State {
+		/**
+		 * Healthy, requests are let through
+		 */
+		CLOSED,
+		/**
+		 * Unhealthy, requests fail straight away
+		 */
+		OPEN,
+		/**
+		 * A trial request is in progress, others fail straight away
+		 */
+		HALF_OPEN
+	}
+
+	private final int failureThreshold;
+	private final long openNanos;
+	private State state = State.CLOSED;
+	private int failures;
+	private long openedAt;
+	private long trialStarted;
+	private long rejected;
+
+	/**
+	 * @param failureThreshold
+	 *            the failures in a row that open it
+	 * @param openNanos
+	 *            how long it stays open before a trial, which is also how
+	 *            long a trial may take before another is let through
+	 */
+	CircuitBreaker(int failureThreshold, long openNanos) {
+		this.failureThreshold = failureThreshold;
+		this.openNanos = openNanos;
+	}
+
+	/**
+	 * Asks to make a request
+	 * 
+	 * @return true if it may be made, false if it should fail straight away
+	 */
+	synchronized boolean allow() {
+		long now = System.nanoTime();
+		switch (state) {
+		case OPEN:
+			if (now - openedAt < openNanos) {
+				rejected++;
+				return false;
+			}
+			state = State.HALF_OPEN;
+			trialStarted = now;
+			return true;
+		case HALF_OPEN:
+			if (now - trialStarted < openNanos) {
+				rejected++;
+				return false;
+			}
+			// the last trial never reported back
+			trialStarted = now;
+			return true;
+		default:
+			return true;
+		}
+	}
+
+	synchronized void success() {
+		state = State.CLOSED;
+		failures = 0;
+	}
+
+	synchronized void failure() {
+		if (state == State.HALF_OPEN || ++failures >= failureThreshold) {
+			state = State.OPEN;
+			openedAt = System.nanoTime();
+			failures = 0;
+		}
+	}
+
+	/**
+	 * @return the current state
+	 */
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the failures in a row since it last closed or opened
+	 */
+	public synchronized int getFailures() {
+		return failures;
+	}
+
+	/**
+	 * @return the number of requests failed straight away
+	 */
+	public synchronized long getRejected() {
+		return rejected;
+	}
+}
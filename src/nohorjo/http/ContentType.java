@@ -1,7 +1,8 @@
 package nohorjo.http;
 
 public enum ContentType {
-	FORM("application/x-www-form-urlencoded"), TEXT("text/plain");
+	FORM("application/x-www-form-urlencoded"), TEXT("text/plain"), JSON("application/json"), OCTET_STREAM(
+			"application/octet-stream"), MULTIPART_FORM("multipart/form-data");
 	private final String type;
 
 	private ContentType(String type) {
@@ -0,0 +1,635 @@
+package nohorjo.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import nohorjo.common.StripedCounter;
+
+/**
+ * Caches GET responses for {@link HttpOperation#setCache(HttpCache)}, keyed
+ * by url. A response is served from the cache while it is fresh by its
+ * Cache-Control max-age or Expires, or for a tenth of its age by
+ * Last-Modified if it has neither, after which the next GET revalidates it
+ * with If-None-Match or If-Modified-Since and a 304 reply refreshes it
+ * without the body being sent again. Responses marked no-store, or that vary
+ * by anything but encoding, are not kept.
+ * <p>
+ * Entries are held in memory up to a number of bytes, least recently used
+ * going first. With a directory they are moved there rather than dropped,
+ * up to a further number of bytes, and those in the directory are picked up
+ * by the next cache made on it
+ * 
+ * @author muhammed
+ *
+ */
+public class HttpCache {
+	private static final Pattern MAX_AGE = Pattern.compile("(?:^|[,\\s])max-age\\s*=\\s*\"?(\\d+)",
+			Pattern.CASE_INSENSITIVE);
+	private static final long MAX_HEURISTIC_MILLIS = 24 * 60 * 60 * 1000;
+	private static final int ENTRY_OVERHEAD = 512;
+	private static final int FILE_VERSION = 1;
+	private static final String FILE_SUFFIX = ".cache";
+
+	private final long maxMemoryBytes;
+	private final Path directory;
+	private final long maxDiskBytes;
+	private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+	private long memoryBytes;
+	private long diskBytes;
+	private final StripedCounter hits = new StripedCounter();
+	private final StripedCounter diskHits = new StripedCounter();
+	private final StripedCounter misses = new StripedCounter();
+	private final StripedCounter revalidations = new StripedCounter();
+	private final StripedCounter notModified = new StripedCounter();
+	private final StripedCounter evictions = new StripedCounter();
+
+	/**
+	 * Constructs a cache held only in memory
+	 * 
+	 * @param maxMemoryBytes
+	 *            the most bytes of responses to hold
+	 */
+	public HttpCache(long maxMemoryBytes) {
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.directory = null;
+		this.maxDiskBytes = 0;
+	}
+
+	/**
+	 * Constructs a cache that moves entries out of memory into a directory,
+	 * picking up any left there by an earlier cache
+	 * 
+	 * @param maxMemoryBytes
+	 *            the most bytes of responses to hold in memory
+	 * @param directory
+	 *            where to keep entries, created if it doesn't exist
+	 * @param maxDiskBytes
+	 *            the most bytes to keep in the directory
+	 * @throws IOException
+	 *             if the directory can't be created or read
+	 */
+	public HttpCache(long maxMemoryBytes, Path directory, long maxDiskBytes) throws IOException {
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.directory = directory;
+		this.maxDiskBytes = maxDiskBytes;
+		Files.createDirectories(directory);
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + FILE_SUFFIX)) {
+			for (Path file : stream) {
+				files.add(file);
+			}
+		}
+		final Map<Path, Long> modified = new LinkedHashMap<>();
+		for (Path file : files) {
+			modified.put(file, Files.getLastModifiedTime(file).toMillis());
+		}
+		Collections.sort(files, new Comparator<Path>() {
+
+			@Override
+			public int compare(Path a, Path b) {
+				return Long.compare(modified.get(a), modified.get(b));
+			}
+		});
+		synchronized (disk) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				long size = Files.size(file);
+				disk.put(name.substring(0, name.length() - FILE_SUFFIX.length()), size);
+				diskBytes += size;
+			}
+			trimDisk();
+		}
+	}
+
+	/**
+	 * @return GETs answered from the cache without a request
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return hits served from the directory rather than memory
+	 */
+	public long getDiskHits() {
+		return diskHits.sum();
+	}
+
+	/**
+	 * @return GETs that found nothing usable and fetched the response
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return conditional GETs sent for stale entries
+	 */
+	public long getRevalidations() {
+		return revalidations.sum();
+	}
+
+	/**
+	 * @return revalidations answered 304, so the entry was reused
+	 */
+	public long getNotModified() {
+		return notModified.sum();
+	}
+
+	/**
+	 * @return entries dropped to stay within the byte limits
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return the fraction of GETs answered without a body being sent, 0 to
+	 *         1
+	 */
+	public double getHitRate() {
+		long reused = hits.sum() + notModified.sum();
+		long total = hits.sum() + revalidations.sum() + misses.sum();
+		return total == 0 ? 0 : (double) reused / total;
+	}
+
+	/**
+	 * @return bytes held in memory
+	 */
+	public synchronized long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	/**
+	 * @return bytes kept in the directory
+	 */
+	public long getDiskBytes() {
+		synchronized (disk) {
+			return diskBytes;
+		}
+	}
+
+	/**
+	 * Drops every entry, from memory and the directory
+	 */
+	public void clear() {
+		synchronized (this) {
+			memory.clear();
+			memoryBytes = 0;
+		}
+		if (directory != null) {
+			synchronized (disk) {
+				for (String key : disk.keySet()) {
+					deleteFile(key);
+				}
+				disk.clear();
+				diskBytes = 0;
+			}
+		}
+	}
+
+	/**
+	 * Looks up the entry for a url, moving it back into memory if it was in
+	 * the directory
+	 * 
+	 * @return the entry, or null if there is none
+	 */
+	Entry get(String url) {
+		synchronized (this) {
+			Entry entry = memory.get(url);
+			if (entry != null) {
+				return entry;
+			}
+		}
+		if (directory == null) {
+			return null;
+		}
+		String key = key(url);
+		Entry entry;
+		synchronized (disk) {
+			Long size = disk.remove(key);
+			if (size == null) {
+				return null;
+			}
+			diskBytes -= size;
+			entry = readFile(key);
+			deleteFile(key);
+		}
+		if (entry == null || !entry.requestUrl.equals(url)) {
+			return null;
+		}
+		entry.fromDisk = true;
+		store(entry);
+		return entry;
+	}
+
+	/**
+	 * Counts a fresh entry being served
+	 */
+	void hit(Entry entry) {
+		hits.increment();
+		if (entry.fromDisk) {
+			diskHits.increment();
+			entry.fromDisk = false;
+		}
+	}
+
+	void miss() {
+		misses.increment();
+	}
+
+	void revalidating() {
+		revalidations.increment();
+	}
+
+	/**
+	 * Keeps a response if it may be cached
+	 * 
+	 * @param url
+	 *            the url asked for, which may have redirected
+	 * @param response
+	 *            the response
+	 */
+	void put(String url, HttpResponse response) {
+		if (response.getStatus() != HttpURLConnection.HTTP_OK || !cacheable(response.getHeaders())) {
+			remove(url);
+			return;
+		}
+		Entry entry = new Entry(url, response.getUrl(), response.getStatus(), response.getHeaders(),
+				response.body());
+		if (!entry.isFresh() && entry.etag == null && entry.lastModified == null) {
+			// could never be used
+			remove(url);
+			return;
+		}
+		store(entry);
+	}
+
+	/**
+	 * Refreshes an entry from a 304 reply's headers
+	 */
+	void notModified(Entry entry, Map<String, List<String>> headers) {
+		notModified.increment();
+		Map<String, List<String>> merged = new LinkedHashMap<>(entry.headers);
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			if (header.getKey() != null) {
+				removeIgnoringCase(merged, header.getKey());
+				merged.put(header.getKey(), header.getValue());
+			}
+		}
+		store(new Entry(entry.requestUrl, entry.url, entry.status, merged, entry.body));
+	}
+
+	private void store(Entry entry) {
+		List<Entry> evicted = new ArrayList<>();
+		synchronized (this) {
+			Entry previous = memory.put(entry.requestUrl, entry);
+			if (previous != null) {
+				memoryBytes -= previous.size();
+			}
+			memoryBytes += entry.size();
+			Iterator<Entry> eldest = memory.values().iterator();
+			while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+				Entry next = eldest.next();
+				eldest.remove();
+				memoryBytes -= next.size();
+				evicted.add(next);
+			}
+		}
+		for (Entry next : evicted) {
+			if (directory == null || next.size() > maxDiskBytes || !writeFile(next)) {
+				evictions.increment();
+			}
+		}
+	}
+
+	private void remove(String url) {
+		synchronized (this) {
+			Entry entry = memory.remove(url);
+			if (entry != null) {
+				memoryBytes -= entry.size();
+			}
+		}
+		if (directory != null) {
+			String key = key(url);
+			synchronized (disk) {
+				Long size = disk.remove(key);
+				if (size != null) {
+					diskBytes -= size;
+					deleteFile(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks the response headers allow it to be kept
+	 */
+	private static boolean cacheable(Map<String, List<String>> headers) {
+		String cacheControl = header(headers, "Cache-Control");
+		if (cacheControl != null && cacheControl.toLowerCase().contains("no-store")) {
+			return false;
+		}
+		String vary = header(headers, "Vary");
+		if (vary != null) {
+			for (String field : vary.split(",")) {
+				if (!field.trim().isEmpty() && !field.trim().equalsIgnoreCase("Accept-Encoding")) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Moves an entry into the directory, making room by deleting the least
+	 * recently used
+	 * 
+	 * @return false if it could not be written
+	 */
+	private boolean writeFile(Entry entry) {
+		String key = key(entry.requestUrl);
+		Path file = directory.resolve(key + FILE_SUFFIX);
+		Path temp = directory.resolve(key + ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				out.writeInt(FILE_VERSION);
+				out.writeUTF(entry.requestUrl);
+				out.writeUTF(entry.url.toString());
+				out.writeInt(entry.status);
+				out.writeLong(entry.received);
+				int headers = 0;
+				for (Map.Entry<String, List<String>> header : entry.headers.entrySet()) {
+					if (header.getKey() != null) {
+						headers++;
+					}
+				}
+				out.writeInt(headers);
+				for (Map.Entry<String, List<String>> header : entry.headers.entrySet()) {
+					if (header.getKey() != null) {
+						out.writeUTF(header.getKey());
+						out.writeInt(header.getValue().size());
+						for (String value : header.getValue()) {
+							out.writeUTF(value);
+						}
+					}
+				}
+				out.writeInt(entry.body.length);
+				out.write(entry.body);
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			long size = Files.size(file);
+			synchronized (disk) {
+				Long previous = disk.put(key, size);
+				if (previous != null) {
+					diskBytes -= previous;
+				}
+				diskBytes += size;
+				trimDisk();
+			}
+			return true;
+		} catch (IOException e) {
+			try {
+				Files.deleteIfExists(temp);
+			} catch (IOException e1) {
+				// left for the next run to overwrite
+			}
+			return false;
+		}
+	}
+
+	private Entry readFile(String key) {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(directory.resolve(key + FILE_SUFFIX))))) {
+			if (in.readInt() != FILE_VERSION) {
+				return null;
+			}
+			String requestUrl = in.readUTF();
+			URL url = new URL(in.readUTF());
+			int status = in.readInt();
+			long received = in.readLong();
+			Map<String, List<String>> headers = new LinkedHashMap<>();
+			for (int i = in.readInt(); i > 0; i--) {
+				String name = in.readUTF();
+				List<String> values = new ArrayList<>();
+				for (int j = in.readInt(); j > 0; j--) {
+					values.add(in.readUTF());
+				}
+				headers.put(name, values);
+			}
+			byte[] body = new byte[in.readInt()];
+			in.readFully(body);
+			return new Entry(requestUrl, url, status, headers, body, received);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Deletes the least recently used files until within the limit. Must
+	 * hold the disk lock
+	 */
+	private void trimDisk() {
+		Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+		while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+			Map.Entry<String, Long> next = eldest.next();
+			eldest.remove();
+			diskBytes -= next.getValue();
+			deleteFile(next.getKey());
+			evictions.increment();
+		}
+	}
+
+	private void deleteFile(String key) {
+		try {
+			Files.deleteIfExists(directory.resolve(key + FILE_SUFFIX));
+		} catch (NoSuchFileException e) {
+			// already gone
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Names the file for a url
+	 */
+	private static String key(String url) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+			StringBuilder key = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String header(Map<String, List<String>> headers, String name) {
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+				List<String> values = header.getValue();
+				return values.get(values.size() - 1);
+			}
+		}
+		return null;
+	}
+
+	private static void removeIgnoringCase(Map<String, List<String>> headers, String name) {
+		Iterator<String> names = headers.keySet().iterator();
+		while (names.hasNext()) {
+			if (name.equalsIgnoreCase(names.next())) {
+				names.remove();
+			}
+		}
+	}
+
+	private static long parseDate(String date) {
+		if (date == null) {
+			return -1;
+		}
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			return format.parse(date).getTime();
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * A cached response and when it goes stale
+	 */
+	static class Entry {
+		private final String requestUrl;
+		private final URL url;
+		private final int status;
+		private final Map<String, List<String>> headers;
+		private final byte[] body;
+		private final long received;
+		private final long expires;
+		private final boolean noCache;
+		private final String etag;
+		private final String lastModified;
+		private boolean fromDisk;
+
+		private Entry(String requestUrl, URL url, int status, Map<String, List<String>> headers, byte[] body) {
+			this(requestUrl, url, status, headers, body, System.currentTimeMillis());
+		}
+
+		private Entry(String requestUrl, URL url, int status, Map<String, List<String>> headers, byte[] body,
+				long received) {
+			this.requestUrl = requestUrl;
+			this.url = url;
+			this.status = status;
+			this.headers = headers;
+			this.body = body;
+			this.received = received;
+			this.etag = header(headers, "ETag");
+			this.lastModified = header(headers, "Last-Modified");
+			String cacheControl = header(headers, "Cache-Control");
+			this.noCache = cacheControl != null && cacheControl.toLowerCase().contains("no-cache");
+			this.expires = received + freshFor(cacheControl);
+		}
+
+		/**
+		 * Works out how long the response stays fresh from when it was
+		 * received
+		 */
+		private long freshFor(String cacheControl) {
+			long age = 0;
+			String ageHeader = header(headers, "Age");
+			if (ageHeader != null) {
+				try {
+					age = Long.parseLong(ageHeader.trim()) * 1000;
+				} catch (NumberFormatException e) {
+					// ignored
+				}
+			}
+			if (cacheControl != null) {
+				Matcher maxAge = MAX_AGE.matcher(cacheControl);
+				if (maxAge.find()) {
+					return Long.parseLong(maxAge.group(1)) * 1000 - age;
+				}
+			}
+			long date = parseDate(header(headers, "Date"));
+			if (date < 0) {
+				date = received;
+			}
+			String expiresHeader = header(headers, "Expires");
+			if (expiresHeader != null) {
+				// an invalid date, like 0, means already expired
+				long expiresAt = parseDate(expiresHeader);
+				return expiresAt < 0 ? 0 : expiresAt - date - age;
+			}
+			long modified = parseDate(lastModified);
+			if (modified >= 0 && modified < date) {
+				return Math.min((date - modified) / 10, MAX_HEURISTIC_MILLIS) - age;
+			}
+			return 0;
+		}
+
+		boolean isFresh() {
+			return !noCache && System.currentTimeMillis() < expires;
+		}
+
+		URL getUrl() {
+			return url;
+		}
+
+		String getEtag() {
+			return etag;
+		}
+
+		String getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * Makes a response from the entry
+		 * 
+		 * @param start
+		 *            when the GET started, from {@link System#nanoTime()}
+		 * @param wireBytesRead
+		 *            the bytes received revalidating it
+		 */
+		HttpResponse toResponse(long start, long wireBytesRead) {
+			long elapsed = System.nanoTime() - start;
+			return new HttpResponse(url, status, headers, body, body.length, wireBytesRead, 0, 0, elapsed, elapsed,
+					true);
+		}
+
+		private long size() {
+			return body.length + ENTRY_OVERHEAD;
+		}
+	}
+}
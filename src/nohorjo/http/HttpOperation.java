@@ -1,102 +1,1348 @@
 package nohorjo.http;
 
 import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
+import nohorjo.common.CallbackFuture;
 import nohorjo.common.CountInputStream;
+import nohorjo.common.LatencyHistogram;
+import nohorjo.common.StripedCounter;
+import nohorjo.delegation.Action;
+import nohorjo.socket.SocketExecutors;
 
 /**
- * Handles simple HTTP operations
+ * Handles simple HTTP operations. Connections are kept alive and reused
+ * between requests to the same host by {@link HttpURLConnection}'s keep-alive
+ * cache, which only takes back a connection once its response has been read
+ * to the end, so every response, error or redirect is read fully before it is
+ * closed. The cache holds {@code http.maxConnections} idle connections per
+ * host, 5 by default.
+ * <p>
+ * The String operations hold the whole response in memory. For large bodies
+ * use the streaming ones, which hand on the exact bytes as they arrive.
+ * <p>
+ * An instance can be shared by any number of threads. The asynchronous
+ * operations queue requests beyond {@link #setMaxInFlight(int)} and run the
+ * rest on an executor, each completing its own {@link HttpResponse}.
+ * <p>
+ * Responses are asked for gzip or deflate encoded and decoded as they are
+ * read, and POST and PUT bodies can be sent gzipped. Those bodies can be
+ * bytes, files, streams or {@link Multipart} forms, written to the connection
+ * as they are sent.
+ * <p>
+ * Permanent redirects (301 and 308) are remembered for a while, so later GETs
+ * go straight to where they lead. Identical GETs that read the whole response
+ * and are made while one is already in progress wait for its response rather
+ * than making their own.
+ * <p>
+ * A slow or failing host can be given timeouts, retries with backoff for
+ * GETs and PUTs, hedged GETs and a {@link CircuitBreaker}
  * 
  * @author muhammed
  *
  */
 public class HttpOperation {
-	private long bytesRead;
+	/**
+	 * The most redirects followed by a GET before giving up, unless set by
+	 * {@link #setMaxRedirects(int)}
+	 */
+	public static final int MAX_REDIRECTS = 20;
+
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_PRESIZED_BODY = 1024 * 1024;
+	private static final long FLIGHT_POLL_MILLIS = 50;
+	private static final int HEDGE_MIN_SAMPLES = 20;
+	private static final int HEDGE_WINDOW = 10000;
+	private static final double HEDGE_PERCENTILE = 95;
+	private static ExecutorService defaultExecutor;
+	private static ScheduledExecutorService hedgeTimer;
+	private static final String USER_AGENT = "Mozilla/5.0 (Macintosh; U; Intel Mac OS X 10.4; en-US; rv:1.9.2.2) Gecko/20100316 Firefox/3.6.2";
+
+	private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+	private volatile int maxConnectionsPerHost;
+	private volatile Action onProgress;
+	private volatile boolean acceptCompressed = true;
+	private volatile int postCompressionThreshold;
+	private volatile HttpCache cache;
+	private volatile int maxRedirects = MAX_REDIRECTS;
+	private final LinkedHashMap<String, Redirect> redirects = new LinkedHashMap<>(16, 0.75f, true);
+	private volatile int maxCachedRedirects = 256;
+	private volatile long redirectTtlNanos = TimeUnit.HOURS.toNanos(1);
+	private final StripedCounter redirectCacheHits = new StripedCounter(1);
+	private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+	private volatile boolean coalesceGets = true;
+	private final StripedCounter coalesced = new StripedCounter(1);
+	private volatile int connectTimeout;
+	private volatile int readTimeout;
+	private volatile int maxRetries;
+	private volatile long retryBaseNanos;
+	private volatile long retryMaxNanos;
+	private final StripedCounter retries = new StripedCounter(1);
+	private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+	private volatile int breakerThreshold;
+	private volatile long breakerOpenNanos;
+	private volatile boolean hedging;
+	private volatile LatencyHistogram hedgeLatencies = new LatencyHistogram();
+	private final StripedCounter hedges = new StripedCounter(1);
+	private final StripedCounter hedgeWins = new StripedCounter(1);
+	private volatile Executor executor;
+	private volatile int maxInFlight;
+	private final Queue<Call> queued = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final ThreadLocal<long[]> bytesRead = new ThreadLocal<long[]>() {
+
+		@Override
+		protected long[] initialValue() {
+			// decoded, wire
+			return new long[2];
+		}
+	};
+
+	/**
+	 * Gets the executor shared by the asynchronous operations of every
+	 * instance without their own, on virtual threads if the JDK has them and
+	 * otherwise on pooled daemon threads
+	 * 
+	 * @return the executor
+	 */
+	private static synchronized Executor getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			if (SocketExecutors.virtualThreadsSupported()) {
+				defaultExecutor = SocketExecutors.newVirtualThreadExecutor("HttpOperation-");
+			} else {
+				final AtomicInteger count = new AtomicInteger();
+				defaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "HttpOperation-" + count.getAndIncrement());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+		}
+		return defaultExecutor;
+	}
+
+	/**
+	 * Gets the thread that starts the second requests of hedged GETs when
+	 * they are due. It only hands them to the executor, so one is enough
+	 * 
+	 * @return the timer
+	 */
+	private static synchronized ScheduledExecutorService getHedgeTimer() {
+		if (hedgeTimer == null) {
+			hedgeTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "HttpOperation-hedge-timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return hedgeTimer;
+	}
+
+	/**
+	 * Limits how many requests to the same host may be in progress at once,
+	 * so no more connections are opened to it than the keep-alive cache can
+	 * take back. Other requests wait their turn. Should be called before any
+	 * requests are made
+	 * 
+	 * @param maxConnectionsPerHost
+	 *            the most at once, or 0 for no limit
+	 */
+	public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+		if (maxConnectionsPerHost < 0) {
+			throw new IllegalArgumentException("Max connections cannot be negative");
+		}
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		hostPermits.clear();
+	}
+
+	/**
+	 * Limits how many asynchronous requests run at once. Requests beyond it
+	 * wait in a queue without holding a thread
+	 * 
+	 * @param maxInFlight
+	 *            the most at once, or 0 for no limit
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 0) {
+			throw new IllegalArgumentException("Max in flight cannot be negative");
+		}
+		this.maxInFlight = maxInFlight;
+		dispatch();
+	}
+
+	/**
+	 * Sets the executor the asynchronous operations run on. Each request
+	 * blocks its thread while in flight, so the executor needs as many
+	 * threads as {@link #setMaxInFlight(int)}. The second requests of hedged
+	 * GETs run on it too and count towards that limit
+	 * 
+	 * @param executor
+	 *            the executor, or null for a shared default
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @return the number of asynchronous requests running
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @return the number of asynchronous requests waiting to run
+	 */
+	public int getQueued() {
+		return queued.size();
+	}
+
+	/**
+	 * Sets whether to ask for responses to be gzip or deflate encoded, which
+	 * are decoded as they are read. On by default
+	 * 
+	 * @param acceptCompressed
+	 *            true to send Accept-Encoding
+	 */
+	public void setAcceptCompressed(boolean acceptCompressed) {
+		this.acceptCompressed = acceptCompressed;
+	}
+
+	/**
+	 * Sets the size from which POST and PUT bodies are gzipped and sent with
+	 * Content-Encoding: gzip. The server must accept it. Bodies of unknown
+	 * length are always compressed, and streamed bodies are compressed as
+	 * they are sent, chunked. Off by default
+	 * 
+	 * @param thresholdBytes
+	 *            the smallest body to compress, or 0 to never compress
+	 */
+	public void setPostCompression(int thresholdBytes) {
+		if (thresholdBytes < 0) {
+			throw new IllegalArgumentException("Threshold cannot be negative");
+		}
+		this.postCompressionThreshold = thresholdBytes;
+	}
+
+	/**
+	 * Sets a cache for the GETs that read the whole response:
+	 * {@link #doGet(String, String)}, {@link #doGetResponse(String, String)}
+	 * and {@link #doGetAsync(String, String)}. GETs with a cookie are not
+	 * cached, as their responses may be personal, and nor are the streaming
+	 * GETs, whose bodies may be too large to hold
+	 * 
+	 * @param cache
+	 *            the cache, which may be shared between instances, or null
+	 *            for none
+	 */
+	public void setCache(HttpCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Sets how many redirects a GET follows before failing. A redirect back to
+	 * a url the GET has already been to fails straight away as a loop
+	 * 
+	 * @param maxRedirects
+	 *            the most to follow, or 0 to fail on any redirect
+	 */
+	public void setMaxRedirects(int maxRedirects) {
+		if (maxRedirects < 0) {
+			throw new IllegalArgumentException("Max redirects cannot be negative");
+		}
+		this.maxRedirects = maxRedirects;
+	}
+
+	/**
+	 * Sets how many permanent redirects are remembered and for how long.
+	 * While remembered, a GET of the url goes straight to where it redirected
+	 * without asking again. Redirects marked no-store or no-cache are not
+	 * remembered. 256 for an hour by default
+	 * 
+	 * @param maxEntries
+	 *            the most to remember, least recently used going first, or 0
+	 *            to remember none
+	 * @param ttl
+	 *            how long to remember each
+	 * @param unit
+	 *            the unit of ttl
+	 */
+	public void setRedirectCache(int maxEntries, long ttl, TimeUnit unit) {
+		if (maxEntries < 0 || ttl < 0) {
+			throw new IllegalArgumentException("Redirect cache size and ttl cannot be negative");
+		}
+		maxCachedRedirects = maxEntries;
+		redirectTtlNanos = unit.toNanos(ttl);
+		synchronized (redirects) {
+			trimRedirects(maxEntries);
+		}
+	}
+
+	/**
+	 * @return the number of redirects skipped because they were remembered
+	 */
+	public long getRedirectCacheHits() {
+		return redirectCacheHits.sum();
+	}
+
+	/**
+	 * Sets whether a GET that reads the whole response, made while an
+	 * identical one with the same cookie is in progress, waits for and shares
+	 * that response instead of making its own request. Shared responses carry
+	 * the timings of the request that was made. On by default
+	 * 
+	 * @param coalesceGets
+	 *            true to share responses
+	 */
+	public void setCoalesceGets(boolean coalesceGets) {
+		this.coalesceGets = coalesceGets;
+	}
+
+	/**
+	 * @return the number of GETs answered with the response to another
+	 */
+	public long getCoalesced() {
+		return coalesced.sum();
+	}
+
+	/**
+	 * Sets how long to wait to connect before failing with a
+	 * {@link SocketTimeoutException}
+	 * 
+	 * @param connectTimeout
+	 *            the milliseconds, or 0 to wait as long as it takes, the
+	 *            default
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		if (connectTimeout < 0) {
+			throw new IllegalArgumentException("Timeout cannot be negative");
+		}
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Sets how long to wait for each read of a response before failing with
+	 * a {@link SocketTimeoutException}
+	 * 
+	 * @param readTimeout
+	 *            the milliseconds, or 0 to wait as long as it takes, the
+	 *            default
+	 */
+	public void setReadTimeout(int readTimeout) {
+		if (readTimeout < 0) {
+			throw new IllegalArgumentException("Timeout cannot be negative");
+		}
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Retries GETs, and PUTs whose bodies can be sent again, that fail to
+	 * connect, time out, are reset or are answered with 429, 502, 503 or 504
+	 * before the response starts. POSTs are never retried. Each retry waits a
+	 * random time up to the base delay doubled for each retry so far, but no
+	 * more than the max delay, or longer if the server asks with Retry-After.
+	 * Off by default
+	 * 
+	 * @param maxRetries
+	 *            the most retries of each request, or 0 for none
+	 * @param baseDelay
+	 *            the most to wait before the first retry
+	 * @param maxDelay
+	 *            the most to wait before any retry
+	 * @param unit
+	 *            the unit of the delays
+	 */
+	public void setRetries(int maxRetries, long baseDelay, long maxDelay, TimeUnit unit) {
+		if (maxRetries < 0 || baseDelay < 0 || maxDelay < baseDelay) {
+			throw new IllegalArgumentException("Retries and delays cannot be negative, nor max delay below base");
+		}
+		this.retryBaseNanos = unit.toNanos(baseDelay);
+		this.retryMaxNanos = unit.toNanos(maxDelay);
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * @return the number of requests retried
+	 */
+	public long getRetries() {
+		return retries.sum();
+	}
+
+	/**
+	 * Gives each host a {@link CircuitBreaker}, so requests to a host that
+	 * keeps failing fail straight away with an {@link IOException} rather
+	 * than waiting on it. Off by default
+	 * 
+	 * @param failureThreshold
+	 *            the failures in a row that open a host's circuit, or 0 for
+	 *            no circuit breaking
+	 * @param openTime
+	 *            how long a circuit stays open before a trial request
+	 * @param unit
+	 *            the unit of openTime
+	 */
+	public void setCircuitBreaker(int failureThreshold, long openTime, TimeUnit unit) {
+		if (failureThreshold < 0 || openTime < 0) {
+			throw new IllegalArgumentException("Threshold and open time cannot be negative");
+		}
+		breakerOpenNanos = unit.toNanos(openTime);
+		breakerThreshold = failureThreshold;
+		breakers.clear();
+	}
+
+	/**
+	 * Gets the circuit breaker of a url's host
+	 * 
+	 * @param url
+	 *            a url on the host
+	 * @return the breaker, or null if circuit breaking is off or nothing has
+	 *         been requested from the host
+	 * @throws IOException
+	 *             if the url is malformed
+	 */
+	public CircuitBreaker getCircuitBreaker(String url) throws IOException {
+		return breakers.get(hostKey(new URL(url)));
+	}
+
+	/**
+	 * Sets whether GETs that read the whole response are hedged. A GET that
+	 * has not answered by the 95th percentile of recent GETs is sent again,
+	 * and whichever answers first is used while the other is abandoned. The
+	 * first is made on the calling thread and the second on the executor,
+	 * where it counts towards {@link #setMaxInFlight(int)} and is not sent if
+	 * there is no room. Hedging starts once 20 GETs have been timed. Off by
+	 * default
+	 * 
+	 * @param hedging
+	 *            true to hedge GETs
+	 */
+	public void setHedging(boolean hedging) {
+		this.hedging = hedging;
+		hedgeLatencies = new LatencyHistogram();
+	}
+
+	/**
+	 * @return the number of GETs sent again by hedging
+	 */
+	public long getHedges() {
+		return hedges.sum();
+	}
+
+	/**
+	 * @return the number of hedged GETs answered first by the second request
+	 */
+	public long getHedgeWins() {
+		return hedgeWins.sum();
+	}
+
+	/**
+	 * Sets an action run as responses are read, with arguments ({@link Long}
+	 * = bytes of the body read off the wire so far, {@link Long} = the length
+	 * of the body on the wire, or -1 if not known, {@link Long} = bytes of the
+	 * body decoded so far). The wire and decoded bytes only differ for
+	 * compressed responses. It is run on the thread reading the response,
+	 * after every read
+	 * 
+	 * @param onProgress
+	 *            the action, or null for none
+	 */
+	public void setOnProgress(Action onProgress) {
+		this.onProgress = onProgress;
+	}
+
+	/**
+	 * Does a GET with a cookie, following redirects
+	 * 
+	 * @param url
+	 *            url to get
+	 * @param cookie
+	 *            cookie to attach
+	 * @return the response, decoded with the platform charset and with line
+	 *         breaks removed. Use one of the streaming GETs for the exact
+	 *         body
+	 * @throws IOException
+	 *             on errors
+	 */
+	public String doGet(String url, String cookie) throws IOException {
+		// streamed unless it has to be read whole to share, cache or hedge
+		if (!coalesceGets && !hedging && (cache == null || cookie != null)) {
+			return readLines(openGet(url, cookie));
+		}
+		return readLines(fetch(url, cookie, null).getBodyStream());
+	}
+
+	/**
+	 * Does a GET
+	 * 
+	 * @param url
+	 *            the url to get
+	 * @return the response
+	 * @throws IOException
+	 *             on errors
+	 */
+	public String doGet(String url) throws IOException {
+		return doGet(url, null);
+	}
+
+	/**
+	 * Does a GET, following redirects, and returns the body as it arrives.
+	 * The stream must be closed, which lets the connection be reused once the
+	 * body has been read to the end
+	 * 
+	 * @param url
+	 *            url to get
+	 * @param cookie
+	 *            cookie to attach, or null
+	 * @return the body, which counts the bytes read through it
+	 * @throws IOException
+	 *             on errors
+	 */
+	public CountInputStream openGet(String url, String cookie) throws IOException {
+		return get(url, cookie, null, null);
+	}
+
+	/**
+	 * Does a GET, following redirects, and reads the whole response
+	 * 
+	 * @param url
+	 *            url to get
+	 * @param cookie
+	 *            cookie to attach, or null
+	 * @return the response
+	 * @throws IOException
+	 *             on errors
+	 */
+	public HttpResponse doGetResponse(String url, String cookie) throws IOException {
+		return fetch(url, cookie, null);
+	}
+
+	/**
+	 * Starts a GET that follows redirects and reads the whole response on
+	 * the executor. Cancelling the future abandons the request, closing its
+	 * connection if it has started
+	 * 
+	 * @param url
+	 *            url to get
+	 * @param cookie
+	 *            cookie to attach, or null
+	 * @return the future response, which fails with the {@link IOException}
+	 *         if the request does
+	 */
+	public CallbackFuture<HttpResponse> doGetAsync(String url, String cookie) {
+		return submit(new Call(url, cookie, null, null));
+	}
+
+	/**
+	 * Does a GET and reads the whole response, or waits for the response to
+	 * an identical GET already in progress
+	 */
+	private HttpResponse fetch(String url, String cookie, Call call) throws IOException {
+		if (!coalesceGets) {
+			return hedged(url, cookie, call);
+		}
+		String key = cookie == null ? url : url + "\n" + cookie;
+		while (true) {
+			Flight flight = new Flight();
+			Flight leader = flights.putIfAbsent(key, flight);
+			if (leader == null) {
+				try {
+					HttpResponse response = hedged(url, cookie, call);
+					flight.complete(response);
+					return response;
+				} catch (IOException | RuntimeException e) {
+					flight.abandoned = call != null && call.isCancelled();
+					flight.fail(e);
+					throw e;
+				} finally {
+					flights.remove(key, flight);
+				}
+			}
+			HttpResponse response;
+			try {
+				response = await(leader, url, call);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for " + url);
+			} catch (ExecutionException e) {
+				if (leader.abandoned) {
+					// its request was cancelled, not failed, so make another
+					continue;
+				}
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				throw (RuntimeException) cause;
+			}
+			coalesced.increment();
+			long[] read = bytesRead.get();
+			read[0] = response.getBytesRead();
+			read[1] = response.getWireBytesRead();
+			return response;
+		}
+	}
+
+	/**
+	 * Does a GET and reads the whole response, sending it again if hedging is
+	 * on and it is slow to answer
+	 */
+	private HttpResponse hedged(final String url, final String cookie, Call call) throws IOException {
+		LatencyHistogram latencies = hedgeLatencies;
+		if (!hedging || latencies.getCount() < HEDGE_MIN_SAMPLES) {
+			HttpResponse response = load(url, cookie, call);
+			timed(response);
+			return response;
+		}
+		final CallbackFuture<HttpResponse> result = new CallbackFuture<>();
+		final AtomicInteger pending = new AtomicInteger(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		final Call first = attempt(url, cookie, result, pending, failure, false);
+		// set to the second request once sent, or to the first once it is too late
+		final AtomicReference<Call> second = new AtomicReference<>();
+		result.setCallback(new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				// the second answered first, so stop waiting for the first
+				first.cancel(true);
+				return null;
+			}
+		});
+		ScheduledFuture<?> timer = getHedgeTimer().schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				if (result.isDone() || !reserveInFlight()) {
+					return;
+				}
+				Call hedge = attempt(url, cookie, result, pending, failure, true);
+				if (!second.compareAndSet(null, hedge)) {
+					inFlight.decrementAndGet();
+					dispatch();
+					return;
+				}
+				pending.incrementAndGet();
+				hedges.increment();
+				Executor executor = HttpOperation.this.executor;
+				try {
+					(executor == null ? getDefaultExecutor() : executor).execute(hedge);
+				} catch (RuntimeException e) {
+					inFlight.decrementAndGet();
+					hedge.fail(e);
+				}
+			}
+		}, latencies.getPercentile(HEDGE_PERCENTILE), TimeUnit.NANOSECONDS);
+		if (call != null) {
+			call.attempt = first;
+			if (call.isCancelled()) {
+				first.cancel(true);
+			}
+		}
+		Call hedge = null;
+		try {
+			first.run();
+			timer.cancel(false);
+			if (!second.compareAndSet(null, first)) {
+				hedge = second.get();
+				if (!result.isDone() && !hedge.running) {
+					// still queued for a thread, so not worth waiting for
+					hedge.cancel(true);
+				}
+			}
+			while (true) {
+				try {
+					HttpResponse response = result.get(FLIGHT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+					timed(response);
+					long[] read = bytesRead.get();
+					read[0] = response.getBytesRead();
+					read[1] = response.getWireBytesRead();
+					return response;
+				} catch (TimeoutException e) {
+					if (call != null && call.isCancelled()) {
+						throw new InterruptedIOException("Request cancelled: " + url);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for " + url);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw (RuntimeException) cause;
+		} finally {
+			if (call != null) {
+				call.attempt = null;
+			}
+			if (hedge != null) {
+				hedge.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * Creates one of the requests of a hedged GET. The first to answer
+	 * completes the result, which fails with the first failure if they all
+	 * fail
+	 * 
+	 * @param pending
+	 *            the requests started and not yet failed
+	 * @param second
+	 *            true for the second request, which is run on the executor
+	 *            and counted in flight
+	 */
+	private Call attempt(String url, String cookie, final CallbackFuture<HttpResponse> result,
+			final AtomicInteger pending, final AtomicReference<Throwable> failure, final boolean second) {
+		Call attempt = new Call(url, cookie, null, null, true, second);
+		attempt.setCallback(new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				if (args[0] != null) {
+					if (result.complete((HttpResponse) args[0]) && second) {
+						hedgeWins.increment();
+					}
+				} else {
+					failure.compareAndSet(null, (Throwable) args[1]);
+					if (pending.decrementAndGet() == 0) {
+						result.fail(failure.get());
+					}
+				}
+				return null;
+			}
+		});
+		return attempt;
+	}
+
+	/**
+	 * Takes a place in flight if there is room
+	 * 
+	 * @return true if it was taken
+	 */
+	private boolean reserveInFlight() {
+		while (true) {
+			int running = inFlight.get();
+			int max = maxInFlight;
+			if (max > 0 && running >= max) {
+				return false;
+			}
+			if (inFlight.compareAndSet(running, running + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Times a GET towards the delay before hedging, starting afresh every so
+	 * often so the delay follows the host's latency as it changes
+	 */
+	private void timed(HttpResponse response) {
+		if (hedging && !response.isFromCache()) {
+			LatencyHistogram latencies = hedgeLatencies;
+			latencies.record(response.getTotalTime(TimeUnit.NANOSECONDS));
+			if (latencies.getCount() >= HEDGE_WINDOW) {
+				hedgeLatencies = new LatencyHistogram();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the response to another GET, giving up if the asynchronous
+	 * request waiting is cancelled
+	 */
+	private static HttpResponse await(Flight leader, String url, Call call)
+			throws InterruptedException, ExecutionException, InterruptedIOException {
+		while (true) {
+			try {
+				return leader.get(FLIGHT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				if (call != null && call.isCancelled()) {
+					throw new InterruptedIOException("Request cancelled: " + url);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Does a GET and reads the whole response, through the cache if there is
+	 * one
+	 */
+	private HttpResponse load(String url, String cookie, Call call) throws IOException {
+		HttpCache cache = this.cache;
+		if (cache == null || cookie != null) {
+			return readResponse(get(url, cookie, call, null));
+		}
+		long start = call == null ? System.nanoTime() : call.submitted;
+		HttpCache.Entry entry = cache.get(url);
+		if (entry != null && entry.isFresh()) {
+			cache.hit(entry);
+			return cached(entry, start, 0);
+		}
+		if (entry != null && (entry.getEtag() != null || entry.getLastModified() != null)) {
+			cache.revalidating();
+		} else {
+			entry = null;
+			cache.miss();
+		}
+		ResponseStream stream = get(url, cookie, call, entry);
+		if (entry != null && stream.status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			stream.close();
+			cache.notModified(entry, stream.headers);
+			return cached(entry, start, stream.wire.getBytesRead());
+		}
+		HttpResponse response = readResponse(stream);
+		cache.put(url, response);
+		return response;
+	}
+
+	private HttpResponse cached(HttpCache.Entry entry, long start, long wireBytesRead) {
+		HttpResponse response = entry.toResponse(start, wireBytesRead);
+		long[] read = bytesRead.get();
+		read[0] = response.getBytesRead();
+		read[1] = wireBytesRead;
+		return response;
+	}
+
+	/**
+	 * Does a GET, following redirects, and retries it if it fails before the
+	 * response starts
+	 * 
+	 * @param validate
+	 *            a cached entry to revalidate, whose validators are sent when
+	 *            the url it came from is reached, or null
+	 */
+	private ResponseStream get(String url, String cookie, Call call, HttpCache.Entry validate) throws IOException {
+		long start = call == null ? System.nanoTime() : call.submitted;
+		for (int attempt = 0;; attempt++) {
+			try {
+				return getOnce(url, cookie, call, validate, start);
+			} catch (IOException e) {
+				backOff(e, attempt, call);
+			}
+		}
+	}
+
+	private ResponseStream getOnce(String url, String cookie, Call call, HttpCache.Entry validate, long start)
+			throws IOException {
+		long waited = call == null ? 0 : call.started - call.submitted;
+		int maxRedirects = this.maxRedirects;
+		Set<String> visited = new HashSet<>();
+		URL target = new URL(url);
+		for (int redirects = 0;; redirects++) {
+			if (!visited.add(target.toString())) {
+				forgetRedirects(visited);
+				throw new ProtocolException("Redirect loop from " + url + " at " + target);
+			}
+			URL next = cachedRedirect(target);
+			if (next == null) {
+				CircuitBreaker breaker = admit(target, call);
+				long waitStart = System.nanoTime();
+				Semaphore permit = acquire(target);
+				waited += System.nanoTime() - waitStart;
+				try {
+					HttpURLConnection conn = open(target, "GET", cookie, call);
+					if (validate != null && target.toString().equals(validate.getUrl().toString())) {
+						if (validate.getEtag() != null) {
+							conn.setRequestProperty("If-None-Match", validate.getEtag());
+						}
+						if (validate.getLastModified() != null) {
+							conn.setRequestProperty("If-Modified-Since", validate.getLastModified());
+						}
+					}
+					status(conn, breaker, call);
+					String location = redirectLocation(conn);
+					if (location == null) {
+						ResponseStream response = respond(conn, permit, redirects, start, waited);
+						permit = null;
+						return response;
+					}
+					drain(conn);
+					next = new URL(target, location);
+					rememberRedirect(target, next, conn);
+				} finally {
+					release(permit);
+				}
+			}
+			if (redirects == maxRedirects) {
+				forgetRedirects(visited);
+				throw new ProtocolException("Too many redirects from " + url);
+			}
+			target = next;
+		}
+	}
+
+	/**
+	 * Gets where a url is remembered to permanently redirect to
+	 * 
+	 * @return the location, or null if none is remembered
+	 */
+	private URL cachedRedirect(URL url) {
+		if (maxCachedRedirects == 0) {
+			return null;
+		}
+		String key = url.toString();
+		synchronized (redirects) {
+			Redirect redirect = redirects.get(key);
+			if (redirect == null) {
+				return null;
+			}
+			if (System.nanoTime() - redirect.expires >= 0) {
+				redirects.remove(key);
+				return null;
+			}
+			redirectCacheHits.increment();
+			return redirect.location;
+		}
+	}
+
+	/**
+	 * Remembers a redirect if it is permanent and may be cached
+	 */
+	private void rememberRedirect(URL url, URL location, HttpURLConnection conn) throws IOException {
+		int max = maxCachedRedirects;
+		int status = conn.getResponseCode();
+		if (max == 0 || (status != HttpURLConnection.HTTP_MOVED_PERM && status != 308)) {
+			return;
+		}
+		String cacheControl = conn.getHeaderField("Cache-Control");
+		if (cacheControl != null) {
+			cacheControl = cacheControl.toLowerCase();
+			if (cacheControl.contains("no-store") || cacheControl.contains("no-cache")) {
+				return;
+			}
+		}
+		synchronized (redirects) {
+			redirects.put(url.toString(), new Redirect(location, System.nanoTime() + redirectTtlNanos));
+			trimRedirects(max);
+		}
+	}
+
+	/**
+	 * Forgets the redirects of urls that led a GET into a loop or too far, in
+	 * case the sites have since changed them
+	 */
+	private void forgetRedirects(Set<String> urls) {
+		synchronized (redirects) {
+			redirects.keySet().removeAll(urls);
+		}
+	}
+
+	/**
+	 * Drops the least recently used redirects beyond a number. Must hold the
+	 * redirects lock
+	 */
+	private void trimRedirects(int max) {
+		Iterator<Redirect> it = redirects.values().iterator();
+		while (redirects.size() > max && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Does a GET, following redirects, writing the body to a stream
+	 * 
+	 * @param url
+	 *            url to get
+	 * @param cookie
+	 *            cookie to attach, or null
+	 * @param out
+	 *            where to write the body, which is left open
+	 * @return the bytes written
+	 * @throws IOException
+	 *             on errors
+	 */
+	public long doGet(String url, String cookie, OutputStream out) throws IOException {
+		try (CountInputStream in = openGet(url, cookie)) {
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, read);
+			}
+			return in.getBytesRead();
+		}
+	}
+
+	/**
+	 * Does a GET, following redirects, saving the body to a file
+	 * 
+	 * @param url
+	 *            url to get
+	 * @param cookie
+	 *            cookie to attach, or null
+	 * @param path
+	 *            the file to write, which is replaced if it exists
+	 * @return the bytes written
+	 * @throws IOException
+	 *             on errors
+	 */
+	public long doGet(String url, String cookie, Path path) throws IOException {
+		try (OutputStream out = Files.newOutputStream(path)) {
+			return doGet(url, cookie, out);
+		}
+	}
+
+	/**
+	 * Does a GET, following redirects, passing the body on in chunks as it
+	 * arrives
+	 * 
+	 * @param url
+	 *            url to get
+	 * @param cookie
+	 *            cookie to attach, or null
+	 * @param onChunk
+	 *            run for each chunk with arguments ({@code byte[]} = buffer,
+	 *            {@link Integer} = offset, {@link Integer} = length). The
+	 *            buffer is reused for the next chunk
+	 * @return the bytes read
+	 * @throws IOException
+	 *             on errors
+	 */
+	public long doGet(String url, String cookie, Action onChunk) throws IOException {
+		try (CountInputStream in = openGet(url, cookie)) {
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				onChunk.run(buffer, 0, read);
+			}
+			return in.getBytesRead();
+		}
+	}
+
+	/**
+	 * Does a post
+	 * 
+	 * @param url
+	 *            url to post to
+	 * @param data
+	 *            data to post where each is in the form of key=value
+	 * @return the response
+	 * @throws IOException
+	 *             on errors
+	 */
+	public String doPost(String url, String... data) throws IOException {
+		String dataString = "";
+
+		for (String d : data) {
+			dataString += "&" + d;
+		}
+		return doPost(url, dataString.replaceFirst(Pattern.quote("&"), ""));
+	}
+
+	/**
+	 * Does a POST
+	 * 
+	 * @param url
+	 *            url to post to
+	 * @param data
+	 *            literal {@link String} to post
+	 * @param contentType
+	 *            the content type
+	 * @return the response, decoded with the platform charset and with line
+	 *         breaks removed
+	 * @throws IOException
+	 *             on errors
+	 */
+	public String doPost(String url, String data, ContentType contentType) throws IOException {
+		return readLines(openPost(url, data, contentType));
+	}
+
+	/**
+	 * Does a POST
+	 * 
+	 * @param url
+	 *            url to post to
+	 * @param data
+	 *            literal {@link String} to post
+	 * @return the response
+	 * @throws IOException
+	 *             on errors
+	 */
+	public String doPost(String url, String data) throws IOException {
+		return doPost(url, data, ContentType.FORM);
+	}
+
+	/**
+	 * Does a POST and returns the response body as it arrives. The stream
+	 * must be closed
+	 * 
+	 * @param url
+	 *            url to post to
+	 * @param data
+	 *            literal {@link String} to post
+	 * @param contentType
+	 *            the content type
+	 * @return the body, which counts the bytes read through it
+	 * @throws IOException
+	 *             on errors
+	 */
+	public CountInputStream openPost(String url, String data, ContentType contentType) throws IOException {
+		return send("POST", url, RequestBody.of(data, contentType), null);
+	}
+
+	/**
+	 * Does a POST and reads the whole response
+	 * 
+	 * @param url
+	 *            url to post to
+	 * @param data
+	 *            literal {@link String} to post
+	 * @param contentType
+	 *            the content type
+	 * @return the response
+	 * @throws IOException
+	 *             on errors
+	 */
+	public HttpResponse doPostResponse(String url, String data, ContentType contentType) throws IOException {
+		return readResponse(send("POST", url, RequestBody.of(data, contentType), null));
+	}
+
+	/**
+	 * Starts a POST that reads the whole response on the executor.
+	 * Cancelling the future abandons the request, closing its connection if
+	 * it has started
+	 * 
+	 * @param url
+	 *            url to post to
+	 * @param data
+	 *            literal {@link String} to post
+	 * @param contentType
+	 *            the content type
+	 * @return the future response, which fails with the {@link IOException}
+	 *         if the request does
+	 */
+	public CallbackFuture<HttpResponse> doPostAsync(String url, String data, ContentType contentType) {
+		return submit(new Call(url, null, "POST", RequestBody.of(data, contentType)));
+	}
 
 	/**
-	 * Does a GET with a cookie
+	 * Does a POST of a body written to the connection as it is sent, so it is
+	 * never held in memory unless it already was, and reads the whole
+	 * response
 	 * 
 	 * @param url
-	 *            url to get
-	 * @param cookie
-	 *            cookie to attach
+	 *            url to post to
+	 * @param body
+	 *            the body, e.g. from {@link RequestBody#of(Path, ContentType)}
+	 *            or a {@link Multipart}
 	 * @return the response
 	 * @throws IOException
 	 *             on errors
 	 */
-	public String doGet(String url, String cookie) throws IOException {
-		HttpURLConnection.setFollowRedirects(true);
-		StringBuilder result = new StringBuilder();
-		URL Url;
-		try {
-			Url = new URL(getFinalURL(url));
-		} catch (IOException e) {
-			Url = new URL(url);
-		}
-		HttpURLConnection conn = (HttpURLConnection) Url.openConnection();
-
-		conn.setRequestProperty("User-Agent",
-				"Mozilla/5.0 (Macintosh; U; Intel Mac OS X 10.4; en-US; rv:1.9.2.2) Gecko/20100316 Firefox/3.6.2");
-		conn.setRequestMethod("GET");
-
-		if (cookie != null) {
-			conn.setRequestProperty("Cookie", cookie);
-		}
+	public HttpResponse doPostResponse(String url, RequestBody body) throws IOException {
+		return readResponse(send("POST", url, body, null));
+	}
 
-		CountInputStream is = new CountInputStream(conn.getInputStream());
+	/**
+	 * Does a POST of a body written to the connection as it is sent, and
+	 * returns the response body as it arrives. The stream must be closed
+	 * 
+	 * @param url
+	 *            url to post to
+	 * @param body
+	 *            the body
+	 * @return the response body, which counts the bytes read through it
+	 * @throws IOException
+	 *             on errors
+	 */
+	public CountInputStream openPost(String url, RequestBody body) throws IOException {
+		return send("POST", url, body, null);
+	}
 
-		try (BufferedReader rd = new BufferedReader(new InputStreamReader(is));) {
-			String line;
-			while ((line = rd.readLine()) != null) {
-				result.append(line);
-			}
-		}
-		bytesRead = is.getBytesRead();
-		return result.toString();
+	/**
+	 * Starts a POST of a body on the executor, which reads the whole
+	 * response. Cancelling the future abandons the request, closing its
+	 * connection if it has started
+	 * 
+	 * @param url
+	 *            url to post to
+	 * @param body
+	 *            the body
+	 * @return the future response, which fails with the {@link IOException}
+	 *         if the request does
+	 */
+	public CallbackFuture<HttpResponse> doPostAsync(String url, RequestBody body) {
+		return submit(new Call(url, null, "POST", body));
 	}
 
 	/**
-	 * Does a GET
+	 * Does a PUT of a body written to the connection as it is sent, and reads
+	 * the whole response
 	 * 
 	 * @param url
-	 *            the url to get
+	 *            url to put to
+	 * @param body
+	 *            the body
 	 * @return the response
 	 * @throws IOException
 	 *             on errors
 	 */
-	public String doGet(String url) throws IOException {
-		return doGet(url, null);
+	public HttpResponse doPutResponse(String url, RequestBody body) throws IOException {
+		return readResponse(send("PUT", url, body, null));
 	}
 
 	/**
-	 * Does a post
+	 * Does a PUT of a body written to the connection as it is sent, and
+	 * returns the response body as it arrives. The stream must be closed
 	 * 
 	 * @param url
-	 *            url to post to
-	 * @param data
-	 *            data to post where each is in the form of key=value
-	 * @return the response
+	 *            url to put to
+	 * @param body
+	 *            the body
+	 * @return the response body, which counts the bytes read through it
 	 * @throws IOException
 	 *             on errors
 	 */
-	public String doPost(String url, String... data) throws IOException {
-		String dataString = "";
+	public CountInputStream openPut(String url, RequestBody body) throws IOException {
+		return send("PUT", url, body, null);
+	}
 
-		for (String d : data) {
-			dataString += "&" + d;
+	/**
+	 * Starts a PUT of a body on the executor, which reads the whole response.
+	 * Cancelling the future abandons the request, closing its connection if
+	 * it has started
+	 * 
+	 * @param url
+	 *            url to put to
+	 * @param body
+	 *            the body
+	 * @return the future response, which fails with the {@link IOException}
+	 *         if the request does
+	 */
+	public CallbackFuture<HttpResponse> doPutAsync(String url, RequestBody body) {
+		return submit(new Call(url, null, "PUT", body));
+	}
+
+	/**
+	 * Sends a body, with Content-Length if its length is known and otherwise
+	 * chunked, and retries if the method is idempotent and the body can be
+	 * sent again
+	 */
+	private ResponseStream send(String method, String url, RequestBody body, Call call) throws IOException {
+		long start = call == null ? System.nanoTime() : call.submitted;
+		boolean retry = !method.equals("POST") && body.isRepeatable();
+		for (int attempt = 0;; attempt++) {
+			try {
+				return sendOnce(method, url, body, call, start);
+			} catch (IOException e) {
+				if (!retry) {
+					throw e;
+				}
+				backOff(e, attempt, call);
+			}
+		}
+	}
+
+	private ResponseStream sendOnce(String method, String url, RequestBody body, Call call, long start)
+			throws IOException {
+		long waited = call == null ? 0 : call.started - call.submitted;
+		URL target = new URL(url);
+		CircuitBreaker breaker = admit(target, call);
+		long waitStart = System.nanoTime();
+		Semaphore permit = acquire(target);
+		waited += System.nanoTime() - waitStart;
+		try {
+			HttpURLConnection conn = open(target, method, null, call);
+			conn.setDoOutput(true);
+			body.setHeaders(conn);
+			long length = body.getLength();
+			byte[] data = body.getBytes();
+			int threshold = postCompressionThreshold;
+			boolean compress = threshold > 0 && (length < 0 || length >= threshold);
+			if (compress) {
+				conn.setRequestProperty("Content-Encoding", "gzip");
+				if (data == null) {
+					length = -1;
+				} else {
+					data = gzip(data);
+					length = data.length;
+				}
+			}
+			if (length < 0) {
+				conn.setChunkedStreamingMode(COPY_BUFFER_SIZE);
+			} else {
+				conn.setFixedLengthStreamingMode(length);
+			}
+			conn.setUseCaches(false);
+
+			try (OutputStream out = conn.getOutputStream()) {
+				if (data != null) {
+					out.write(data);
+				} else if (compress) {
+					GZIPOutputStream gzip = new GZIPOutputStream(out, COPY_BUFFER_SIZE);
+					body.writeTo(gzip);
+					gzip.finish();
+				} else {
+					body.writeTo(out);
+				}
+			} catch (IOException e) {
+				failed(breaker, e, call);
+				throw e;
+			}
+			status(conn, breaker, call);
+			ResponseStream response = respond(conn, permit, 0, start, waited);
+			permit = null;
+			return response;
+		} finally {
+			release(permit);
 		}
-		return doPost(url, dataString.replaceFirst(Pattern.quote("&"), ""));
 	}
 
 	/**
-	 * Does a POST
+	 * Does a POST, writing the response body to a stream
 	 * 
 	 * @param url
 	 *            url to post to
@@ -104,86 +1350,599 @@ public class HttpOperation {
 	 *            literal {@link String} to post
 	 * @param contentType
 	 *            the content type
-	 * @return the response
+	 * @param out
+	 *            where to write the body, which is left open
+	 * @return the bytes written
 	 * @throws IOException
 	 *             on errors
 	 */
-	public String doPost(String url, String data, ContentType contentType) throws IOException {
+	public long doPost(String url, String data, ContentType contentType, OutputStream out) throws IOException {
+		try (CountInputStream in = openPost(url, data, contentType)) {
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, read);
+			}
+			return in.getBytesRead();
+		}
+	}
 
-		byte[] postData = data.getBytes(StandardCharsets.UTF_8);
-		HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-		StringBuilder response = new StringBuilder();
+	/**
+	 * Gets the number of bytes read by the last operation on this thread,
+	 * after decoding. Responses from {@link #doGetResponse(String, String)}
+	 * and the other {@link HttpResponse} operations carry their own count
+	 * 
+	 * @return number of bytes read
+	 */
+	public long getBytesRead() {
+		return bytesRead.get()[0];
+	}
+
+	/**
+	 * Gets the number of bytes the last operation on this thread read off the
+	 * wire, which is less than {@link #getBytesRead()} when the response was
+	 * compressed
+	 * 
+	 * @return number of bytes received
+	 */
+	public long getWireBytesRead() {
+		return bytesRead.get()[1];
+	}
 
-		conn.setDoOutput(true);
+	/**
+	 * Opens a connection that leaves redirects to the caller, so they are
+	 * followed whatever the protocol of the new location
+	 */
+	private HttpURLConnection open(URL url, String method, String cookie, Call call) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
 		conn.setInstanceFollowRedirects(false);
-		conn.setRequestMethod("POST");
-		conn.setRequestProperty("Content-Type", contentType.toString());
-		conn.setRequestProperty("charset", "utf-8");
-		conn.setRequestProperty("Content-Length", Integer.toString(postData.length));
-		conn.setRequestProperty("User-Agent",
-				"Mozilla/5.0 (Macintosh; U; Intel Mac OS X 10.4; en-US; rv:1.9.2.2) Gecko/20100316 Firefox/3.6.2");
-		conn.setUseCaches(false);
-
-		try (DataOutputStream wr = new DataOutputStream(conn.getOutputStream())) {
-			wr.write(postData);
-		}
-		CountInputStream is = new CountInputStream(conn.getInputStream());
+		conn.setConnectTimeout(connectTimeout);
+		conn.setReadTimeout(readTimeout);
+		conn.setRequestMethod(method);
+		conn.setRequestProperty("User-Agent", USER_AGENT);
+		if (cookie != null) {
+			conn.setRequestProperty("Cookie", cookie);
+		}
+		if (acceptCompressed) {
+			conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+		}
+		if (call != null) {
+			call.attach(conn);
+		}
+		return conn;
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4 + 64);
+		try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+			out.write(data);
+		}
+		return compressed.toByteArray();
+	}
+
+	/**
+	 * Opens the body of a response, decoding it if it is compressed
+	 */
+	private ResponseStream respond(HttpURLConnection conn, Semaphore permit, int redirects, long start,
+			long waited) throws IOException {
+		CountInputStream wire = new CountInputStream(body(conn));
+		try {
+			return new ResponseStream(conn, wire, decode(wire, conn.getContentEncoding()), permit, redirects,
+					start, waited);
+		} catch (IOException | RuntimeException e) {
+			wire.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Wraps a body in a decoder for its Content-Encoding
+	 */
+	private static InputStream decode(InputStream wire, String encoding) throws IOException {
+		if (encoding == null) {
+			return wire;
+		}
+		encoding = encoding.trim().toLowerCase();
+		try {
+			switch (encoding) {
+			case "gzip":
+			case "x-gzip":
+				return new GZIPInputStream(wire, COPY_BUFFER_SIZE);
+			case "deflate":
+				// meant to be zlib wrapped, but some servers send it raw
+				PushbackInputStream in = new PushbackInputStream(wire, 2);
+				byte[] header = new byte[2];
+				int read = in.read(header);
+				if (read <= 0) {
+					return in;
+				}
+				in.unread(header, 0, read);
+				boolean zlib = read == 2 && (header[0] & 0x0F) == 8
+						&& (((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0;
+				return new InflaterInputStream(in, new Inflater(!zlib), COPY_BUFFER_SIZE);
+			default:
+				return wire;
+			}
+		} catch (EOFException e) {
+			// an empty body, such as the reply to a HEAD
+			return wire;
+		}
+	}
+
+	/**
+	 * Reads the whole of a response
+	 */
+	private HttpResponse readResponse(ResponseStream response) throws IOException {
+		long length = response.contentLength;
+		ByteArrayOutputStream body = new ByteArrayOutputStream(
+				length > 0 ? (int) Math.min(length, MAX_PRESIZED_BODY) : 8192);
+		try (ResponseStream in = response) {
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				body.write(buffer, 0, read);
+			}
+		}
+		return response.toResponse(body.toByteArray());
+	}
+
+	/**
+	 * Queues an asynchronous request
+	 */
+	private Call submit(Call call) {
+		queued.add(call);
+		dispatch();
+		return call;
+	}
+
+	/**
+	 * Starts queued requests while there is room in flight. Run whenever a
+	 * request is queued or finishes, so none is left waiting with room free
+	 */
+	private void dispatch() {
+		while (!queued.isEmpty()) {
+			int running = inFlight.get();
+			int max = maxInFlight;
+			if (max > 0 && running >= max) {
+				return;
+			}
+			if (!inFlight.compareAndSet(running, running + 1)) {
+				continue;
+			}
+			Call call = queued.poll();
+			if (call == null) {
+				inFlight.decrementAndGet();
+				continue;
+			}
+			Executor executor = this.executor;
+			try {
+				(executor == null ? getDefaultExecutor() : executor).execute(call);
+			} catch (RuntimeException e) {
+				inFlight.decrementAndGet();
+				call.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Gets where a response redirects to
+	 * 
+	 * @return the Location header, or null if the response is not a redirect
+	 */
+	private String redirectLocation(HttpURLConnection conn) throws IOException {
+		switch (conn.getResponseCode()) {
+		case HttpURLConnection.HTTP_MOVED_PERM:
+		case HttpURLConnection.HTTP_MOVED_TEMP:
+		case HttpURLConnection.HTTP_SEE_OTHER:
+		case 307:
+		case 308:
+			return conn.getHeaderField("Location");
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a response the way the String operations always have, joining
+	 * its lines
+	 */
+	private static String readLines(InputStream is) throws IOException {
+		StringBuilder response = new StringBuilder();
 		try (BufferedReader in = new BufferedReader(new InputStreamReader(is))) {
 			String line;
 			while ((line = in.readLine()) != null) {
 				response.append(line);
 			}
 		}
-		bytesRead = is.getBytesRead();
 		return response.toString();
+	}
 
+	/**
+	 * Reads and discards a response, which returns the connection to the
+	 * keep-alive cache
+	 */
+	private static void drain(HttpURLConnection conn) {
+		InputStream is;
+		try {
+			is = conn.getInputStream();
+		} catch (IOException e) {
+			is = conn.getErrorStream();
+		}
+		if (is == null) {
+			return;
+		}
+		byte[] buffer = new byte[4096];
+		try (InputStream in = is) {
+			while (in.read(buffer) >= 0) {
+				// discard
+			}
+		} catch (IOException e) {
+			// the connection is closed rather than reused
+		}
 	}
 
 	/**
-	 * Does a POST
+	 * Waits for a turn to connect to the url's host
 	 * 
-	 * @param url
-	 *            url to post to
-	 * @param data
-	 *            literal {@link String} to post
-	 * @return the response
-	 * @throws IOException
-	 *             on errors
+	 * @return the permit to release, or null if there is no limit
 	 */
-	public String doPost(String url, String data) throws IOException {
-		return doPost(url, data, ContentType.FORM);
+	private Semaphore acquire(URL url) throws InterruptedIOException {
+		int max = maxConnectionsPerHost;
+		if (max == 0) {
+			return null;
+		}
+		String host = hostKey(url);
+		Semaphore permit = hostPermits.get(host);
+		if (permit == null) {
+			Semaphore created = new Semaphore(max, true);
+			permit = hostPermits.putIfAbsent(host, created);
+			if (permit == null) {
+				permit = created;
+			}
+		}
+		try {
+			permit.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for a connection to " + host);
+		}
+		return permit;
+	}
+
+	private void release(Semaphore permit) {
+		if (permit != null) {
+			permit.release();
+		}
+	}
+
+	private static String hostKey(URL url) {
+		return url.getProtocol() + "://" + url.getHost() + ":"
+				+ (url.getPort() < 0 ? url.getDefaultPort() : url.getPort());
 	}
 
 	/**
-	 * Gets the number of bytes read from the last operation
+	 * Asks the circuit breaker of a url's host to make a request
 	 * 
-	 * @return number of bytes read
+	 * @return the breaker to report to, or null if circuit breaking is off
+	 * @throws IOException
+	 *             if the circuit is open
 	 */
-	public long getBytesRead() {
-		return bytesRead;
+	private CircuitBreaker admit(URL url, Call call) throws IOException {
+		int threshold = breakerThreshold;
+		if (threshold == 0) {
+			return null;
+		}
+		String host = hostKey(url);
+		CircuitBreaker breaker = breakers.get(host);
+		if (breaker == null) {
+			CircuitBreaker created = new CircuitBreaker(threshold, breakerOpenNanos);
+			breaker = breakers.putIfAbsent(host, created);
+			if (breaker == null) {
+				breaker = created;
+			}
+		}
+		if (!breaker.allow()) {
+			throw new IOException("Circuit open, failing fast : " + host);
+		}
+		return breaker;
+	}
+
+	/**
+	 * Waits for the status of a response, telling the host's circuit breaker
+	 * whether it succeeded
+	 */
+	private static void status(HttpURLConnection conn, CircuitBreaker breaker, Call call) throws IOException {
+		int status;
+		try {
+			status = conn.getResponseCode();
+		} catch (IOException e) {
+			failed(breaker, e, call);
+			throw e;
+		}
+		if (breaker != null) {
+			if (status >= 500) {
+				breaker.failure();
+			} else {
+				breaker.success();
+			}
+		}
+	}
+
+	/**
+	 * Tells a circuit breaker of a failed request, unless it failed because
+	 * it was cancelled or the host is not to blame
+	 */
+	private static void failed(CircuitBreaker breaker, IOException e, Call call) {
+		if (breaker != null && isTransient(e) && (call == null || !call.isCancelled())) {
+			breaker.failure();
+		}
+	}
+
+	/**
+	 * Gets whether a request failed in a way that may not happen again
+	 */
+	private static boolean isTransient(IOException e) {
+		return e instanceof SocketTimeoutException || e instanceof SocketException || e instanceof StatusException;
 	}
 
 	/**
-	 * Follows any redirections to get the final url
+	 * Waits before a retry, or throws the failure if it is not to be retried
 	 * 
-	 * @param url
-	 *            url to test
-	 * @return the final url if redirected
-	 * @throws IOException
-	 *             on errors
+	 * @param attempt
+	 *            the retries so far
+	 */
+	private void backOff(IOException e, int attempt, Call call) throws IOException {
+		if (attempt >= maxRetries || !isTransient(e) || (call != null && call.isCancelled())) {
+			throw e;
+		}
+		long ceiling = Math.min(retryMaxNanos, retryBaseNanos << Math.min(attempt, 30));
+		if (ceiling < 0) {
+			ceiling = retryMaxNanos;
+		}
+		long delay = ceiling == 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+		if (e instanceof StatusException) {
+			delay = Math.max(delay, Math.min(retryMaxNanos, ((StatusException) e).retryAfterNanos));
+		}
+		retries.increment();
+		try {
+			TimeUnit.NANOSECONDS.sleep(delay);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting to retry : " + e);
+		}
+	}
+
+	/**
+	 * A response body that reports progress as it is read, and on close
+	 * records the bytes read and gives up the turn to connect to its host
+	 */
+	private class ResponseStream extends CountInputStream {
+		private final CountInputStream wire;
+		private final Semaphore permit;
+		private final URL url;
+		private final int status;
+		private final Map<String, List<String>> headers;
+		private final long contentLength;
+		private final int redirects;
+		private final long start;
+		private final long waited;
+		private final long headersNanos;
+		private final Action onProgress = HttpOperation.this.onProgress;
+		private boolean closed;
+
+		/**
+		 * Opens the body, or on an error status reads the error body so the
+		 * connection can still be reused, then throws
+		 */
+		private ResponseStream(HttpURLConnection conn, CountInputStream wire, InputStream decoded, Semaphore permit,
+				int redirects, long start, long waited) throws IOException {
+			super(decoded);
+			this.wire = wire;
+			this.headersNanos = System.nanoTime() - start;
+			this.permit = permit;
+			this.url = conn.getURL();
+			this.status = conn.getResponseCode();
+			this.headers = conn.getHeaderFields();
+			this.contentLength = conn.getContentLengthLong();
+			this.redirects = redirects;
+			this.start = start;
+			this.waited = waited;
+		}
+
+		private HttpResponse toResponse(byte[] body) {
+			return new HttpResponse(url, status, headers, body, getBytesRead(), wire.getBytesRead(), redirects, waited,
+					headersNanos, System.nanoTime() - start, false);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int r = super.read();
+			progress();
+			return r;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int r = super.read(b, off, len);
+			progress();
+			return r;
+		}
+
+		private void progress() {
+			if (onProgress != null) {
+				onProgress.run(wire.getBytesRead(), contentLength, getBytesRead());
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				long[] read = bytesRead.get();
+				read[0] = getBytesRead();
+				read[1] = wire.getBytesRead();
+				try {
+					super.close();
+				} finally {
+					release(permit);
+				}
+			}
+		}
+	}
+
+	private static InputStream body(HttpURLConnection conn) throws IOException {
+		try {
+			return conn.getInputStream();
+		} catch (IOException e) {
+			drain(conn);
+			int status = conn.getResponseCode();
+			switch (status) {
+			case 429:
+			case HttpURLConnection.HTTP_BAD_GATEWAY:
+			case HttpURLConnection.HTTP_UNAVAILABLE:
+			case HttpURLConnection.HTTP_GATEWAY_TIMEOUT:
+				throw new StatusException(e.getMessage(), status, conn.getHeaderField("Retry-After"));
+			default:
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * A status that may be answered differently if the request is retried
+	 */
+	private static class StatusException extends IOException {
+		private static final long serialVersionUID = 1L;
+		private final long retryAfterNanos;
+
+		private StatusException(String message, int status, String retryAfter) {
+			super(message);
+			long seconds = 0;
+			if (retryAfter != null) {
+				try {
+					seconds = Long.parseLong(retryAfter.trim());
+				} catch (NumberFormatException e) {
+					// an HTTP date, which is not waited for
+				}
+			}
+			this.retryAfterNanos = TimeUnit.SECONDS.toNanos(Math.max(0, seconds));
+		}
+	}
+
+	/**
+	 * Where a url permanently redirects to, until the expiry time in
+	 * {@link System#nanoTime()}
 	 */
-	private String getFinalURL(String url) throws IOException {
-		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
-		con.setInstanceFollowRedirects(false);
-		con.connect();
-		con.getInputStream();
+	private static class Redirect {
+		private final URL location;
+		private final long expires;
 
-		if (con.getResponseCode() == HttpURLConnection.HTTP_MOVED_PERM
-				|| con.getResponseCode() == HttpURLConnection.HTTP_MOVED_TEMP) {
-			String redirectUrl = con.getHeaderField("Location");
-			return getFinalURL(redirectUrl);
+		private Redirect(URL location, long expires) {
+			this.location = location;
+			this.expires = expires;
 		}
-		return url;
 	}
 
+	/**
+	 * The response to a GET in progress, shared with identical GETs made
+	 * meanwhile
+	 */
+	private static class Flight extends CallbackFuture<HttpResponse> {
+		/**
+		 * Set if the GET was cancelled, so those waiting make their own
+		 */
+		private volatile boolean abandoned;
+	}
+
+	/**
+	 * An asynchronous request, which is its own future
+	 */
+	private class Call extends CallbackFuture<HttpResponse> implements Runnable {
+		private final String url;
+		private final String cookie;
+		private final String method;
+		private final RequestBody body;
+		private final boolean hedge;
+		private final boolean counted;
+		private final long submitted = System.nanoTime();
+		private long started;
+		private volatile HttpURLConnection connection;
+		private volatile boolean running;
+		private volatile Call attempt;
+
+		/**
+		 * A GET if body is null, otherwise sends the body with the method
+		 */
+		private Call(String url, String cookie, String method, RequestBody body) {
+			this(url, cookie, method, body, false, true);
+		}
+
+		/**
+		 * @param hedge
+		 *            true for one of the requests of a hedged GET, which goes
+		 *            straight to the network
+		 * @param counted
+		 *            true if it holds a place in flight, given back when it
+		 *            finishes
+		 */
+		private Call(String url, String cookie, String method, RequestBody body, boolean hedge, boolean counted) {
+			this.url = url;
+			this.cookie = cookie;
+			this.method = method;
+			this.body = body;
+			this.hedge = hedge;
+			this.counted = counted;
+		}
+
+		@Override
+		public void run() {
+			started = System.nanoTime();
+			running = true;
+			try {
+				if (!isDone()) {
+					if (hedge) {
+						complete(load(url, cookie, this));
+					} else {
+						complete(body == null ? fetch(url, cookie, this) : readResponse(send(method, url, body, this)));
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				fail(e);
+			} finally {
+				if (counted) {
+					inFlight.decrementAndGet();
+					dispatch();
+				}
+			}
+		}
+
+		/**
+		 * Notes the connection being made, so cancelling can close it
+		 * 
+		 * @throws InterruptedIOException
+		 *             if already cancelled
+		 */
+		private void attach(HttpURLConnection conn) throws InterruptedIOException {
+			connection = conn;
+			if (isCancelled()) {
+				throw new InterruptedIOException("Request cancelled: " + url);
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (!super.cancel(mayInterruptIfRunning)) {
+				return false;
+			}
+			HttpURLConnection conn = connection;
+			if (conn != null) {
+				conn.disconnect();
+			}
+			Call attempt = this.attempt;
+			if (attempt != null) {
+				attempt.cancel(mayInterruptIfRunning);
+			}
+			return true;
+		}
+	}
 }
@@ -0,0 +1,222 @@
+package nohorjo.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A response read in full, with what it took to get it. Each request has its
+ * own, so they can be made on the same {@link HttpOperation} from any number
+ * of threads
+ * 
+ * @author muhammed
+ *
+ */
+public class HttpResponse {
+	private static final Pattern CHARSET = Pattern.compile("charset=\"?([^\";\\s]+)", Pattern.CASE_INSENSITIVE);
+
+	private final URL url;
+	private final int status;
+	private final Map<String, List<String>> headers;
+	private final byte[] body;
+	private final long bytesRead;
+	private final long wireBytesRead;
+	private final int redirects;
+	private final long waitNanos;
+	private final long headersNanos;
+	private final long totalNanos;
+	private final boolean fromCache;
+
+	HttpResponse(URL url, int status, Map<String, List<String>> headers, byte[] body, long bytesRead,
+			long wireBytesRead, int redirects, long waitNanos, long headersNanos, long totalNanos, boolean fromCache) {
+		this.url = url;
+		this.status = status;
+		this.headers = headers;
+		this.body = body;
+		this.bytesRead = bytesRead;
+		this.wireBytesRead = wireBytesRead;
+		this.redirects = redirects;
+		this.waitNanos = waitNanos;
+		this.headersNanos = headersNanos;
+		this.totalNanos = totalNanos;
+		this.fromCache = fromCache;
+	}
+
+	/**
+	 * @return the url the response came from, after any redirects
+	 */
+	public URL getUrl() {
+		return url;
+	}
+
+	/**
+	 * @return the status code
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return the header fields, as returned by
+	 *         {@link java.net.HttpURLConnection#getHeaderFields()}
+	 */
+	public Map<String, List<String>> getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * Gets a header, ignoring the case of its name
+	 * 
+	 * @param name
+	 *            the header name
+	 * @return its last value, or null if it is not present
+	 */
+	public String getHeader(String name) {
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+				List<String> values = header.getValue();
+				return values.get(values.size() - 1);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Copies the body. The response's own bytes may be shared with other
+	 * requests waiting on the same GET and with an {@link HttpCache}, so are
+	 * never handed out. Use {@link #getBodyBuffer()} or
+	 * {@link #getBodyStream()} to read them without copying
+	 * 
+	 * @return a copy of the body, exactly as received
+	 */
+	public byte[] getBody() {
+		return body.clone();
+	}
+
+	/**
+	 * @return a read-only view of the body, without copying it
+	 */
+	public ByteBuffer getBodyBuffer() {
+		return ByteBuffer.wrap(body).asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return a stream of the body, without copying it
+	 */
+	public InputStream getBodyStream() {
+		return new ByteArrayInputStream(body);
+	}
+
+	/**
+	 * Gets the body without copying it, for the package to pass on to
+	 * whatever else shares it. It must not be changed
+	 */
+	byte[] body() {
+		return body;
+	}
+
+	/**
+	 * Decodes the body with the charset named in the Content-Type, or UTF-8
+	 * if there is none
+	 * 
+	 * @return the body as text
+	 */
+	public String getBodyAsString() {
+		Charset charset = StandardCharsets.UTF_8;
+		String contentType = getHeader("Content-Type");
+		if (contentType != null) {
+			Matcher matcher = CHARSET.matcher(contentType);
+			if (matcher.find()) {
+				try {
+					charset = Charset.forName(matcher.group(1));
+				} catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+					// fall back to UTF-8
+				}
+			}
+		}
+		return new String(body, charset);
+	}
+
+	/**
+	 * @return the bytes read for the body, after decoding
+	 */
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	/**
+	 * @return the bytes of the body received, which is less than
+	 *         {@link #getBytesRead()} when it was compressed
+	 */
+	public long getWireBytesRead() {
+		return wireBytesRead;
+	}
+
+	/**
+	 * @return the number of redirects followed
+	 */
+	public int getRedirects() {
+		return redirects;
+	}
+
+	/**
+	 * Gets how long the request waited for a turn to connect, under
+	 * {@link HttpOperation#setMaxConnectionsPerHost(int)} and
+	 * {@link HttpOperation#setMaxInFlight(int)}
+	 * 
+	 * @param unit
+	 *            the unit to return it in
+	 * @return the time waiting
+	 */
+	public long getWaitTime(TimeUnit unit) {
+		return unit.convert(waitNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Gets how long it took from starting the request until the headers of
+	 * the final response arrived, including any waiting and redirects
+	 * 
+	 * @param unit
+	 *            the unit to return it in
+	 * @return the time to the headers
+	 */
+	public long getHeadersTime(TimeUnit unit) {
+		return unit.convert(headersNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Gets how long it took from starting the request until the body had been
+	 * read
+	 * 
+	 * @param unit
+	 *            the unit to return it in
+	 * @return the total time
+	 */
+	public long getTotalTime(TimeUnit unit) {
+		return unit.convert(totalNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return true if the body came from an {@link HttpCache} rather than
+	 *         being sent, either because it was fresh or because the server
+	 *         replied 304 Not Modified
+	 */
+	public boolean isFromCache() {
+		return fromCache;
+	}
+
+	@Override
+	public String toString() {
+		return status + " " + url + " (" + bytesRead + " bytes, " + wireBytesRead + " on the wire)";
+	}
+}
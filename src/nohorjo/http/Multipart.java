@@ -0,0 +1,163 @@
+package nohorjo.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A multipart/form-data body of fields and files, built up a part at a time.
+ * Each part is written as the body is sent, so files are streamed from disk
+ * rather than held in memory. The body has a length, and is sent with
+ * Content-Length, if every part does
+ * 
+ * @author muhammed
+ *
+ */
+public class Multipart extends RequestBody {
+	private static final SecureRandom RANDOM = new SecureRandom();
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] DASHES = { '-', '-' };
+
+	private final String boundary;
+	private final List<Part> parts = new ArrayList<>();
+
+	/**
+	 * Constructs an empty body with a random boundary
+	 */
+	public Multipart() {
+		this(newBoundary());
+	}
+
+	private Multipart(String boundary) {
+		super(ContentType.MULTIPART_FORM + "; boundary=" + boundary);
+		this.boundary = boundary;
+	}
+
+	private static String newBoundary() {
+		return "----nohorjo" + Long.toHexString(RANDOM.nextLong()) + Long.toHexString(RANDOM.nextLong());
+	}
+
+	/**
+	 * Adds a text field
+	 * 
+	 * @param name
+	 *            the field name
+	 * @param value
+	 *            the value, sent as UTF-8
+	 * @return this body
+	 */
+	public Multipart addField(String name, String value) {
+		parts.add(new Part(disposition(name, null), RequestBody.of(value, ContentType.TEXT), false));
+		return this;
+	}
+
+	/**
+	 * Adds a file read from disk as it is sent
+	 * 
+	 * @param name
+	 *            the field name
+	 * @param path
+	 *            the file, whose name is sent as the filename
+	 * @param contentType
+	 *            the content type of the file
+	 * @return this body
+	 */
+	public Multipart addFile(String name, Path path, ContentType contentType) {
+		return addFile(name, path.getFileName().toString(), RequestBody.of(path, contentType));
+	}
+
+	/**
+	 * Adds a file
+	 * 
+	 * @param name
+	 *            the field name
+	 * @param filename
+	 *            the filename to send
+	 * @param content
+	 *            the file, e.g. from
+	 *            {@link RequestBody#of(java.io.InputStream, long, ContentType)}
+	 * @return this body
+	 */
+	public Multipart addFile(String name, String filename, RequestBody content) {
+		parts.add(new Part(disposition(name, filename), content, true));
+		return this;
+	}
+
+	/**
+	 * @return the boundary between parts
+	 */
+	public String getBoundary() {
+		return boundary;
+	}
+
+	@Override
+	public long getLength() throws IOException {
+		long length = 0;
+		for (Part part : parts) {
+			long content = part.content.getLength();
+			if (content < 0) {
+				return -1;
+			}
+			length += DASHES.length + boundary.length() + CRLF.length + part.header.length + content + CRLF.length;
+		}
+		return length + DASHES.length + boundary.length() + DASHES.length + CRLF.length;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		byte[] delimiter = boundary.getBytes(StandardCharsets.US_ASCII);
+		for (Part part : parts) {
+			out.write(DASHES);
+			out.write(delimiter);
+			out.write(CRLF);
+			out.write(part.header);
+			part.content.writeTo(out);
+			out.write(CRLF);
+		}
+		out.write(DASHES);
+		out.write(delimiter);
+		out.write(DASHES);
+		out.write(CRLF);
+	}
+
+	@Override
+	boolean isRepeatable() {
+		for (Part part : parts) {
+			if (!part.content.isRepeatable()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Makes the Content-Disposition value of a part, escaping quotes and line
+	 * breaks in the names the way browsers do
+	 */
+	private static String disposition(String name, String filename) {
+		String disposition = "form-data; name=\"" + escape(name) + "\"";
+		return filename == null ? disposition : disposition + "; filename=\"" + escape(filename) + "\"";
+	}
+
+	private static String escape(String name) {
+		return name.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+	}
+
+	private static class Part {
+		private final byte[] header;
+		private final RequestBody content;
+
+		private Part(String disposition, RequestBody content, boolean typed) {
+			String header = "Content-Disposition: " + disposition + "\r\n";
+			if (typed) {
+				header += "Content-Type: " + content.getContentType() + "\r\n";
+			}
+			this.header = (header + "\r\n").getBytes(StandardCharsets.UTF_8);
+			this.content = content;
+		}
+	}
+}
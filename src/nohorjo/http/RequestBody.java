@@ -0,0 +1,217 @@
+package nohorjo.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The body of a POST or PUT, which is written straight to the connection as
+ * it is sent. A body of known length is sent with Content-Length, any other
+ * chunked, so bodies from files or streams are never held in memory
+ * 
+ * @author muhammed
+ *
+ */
+public abstract class RequestBody {
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	private final String contentType;
+
+	RequestBody(String contentType) {
+		this.contentType = contentType;
+	}
+
+	/**
+	 * Makes a body of text, sent as UTF-8
+	 * 
+	 * @param data
+	 *            the text
+	 * @param contentType
+	 *            the content type
+	 * @return the body
+	 */
+	public static RequestBody of(String data, ContentType contentType) {
+		return new Bytes(data.getBytes(StandardCharsets.UTF_8), contentType.toString(), true);
+	}
+
+	/**
+	 * Makes a body of bytes, which are not copied
+	 * 
+	 * @param data
+	 *            the bytes
+	 * @param contentType
+	 *            the content type
+	 * @return the body
+	 */
+	public static RequestBody of(byte[] data, ContentType contentType) {
+		return new Bytes(data, contentType.toString(), false);
+	}
+
+	/**
+	 * Makes a body read from a stream as it is sent. The stream is read once,
+	 * so the body can only be sent once, and is left open
+	 * 
+	 * @param in
+	 *            the stream
+	 * @param length
+	 *            the bytes to send from it, or -1 to send all it has, chunked
+	 * @param contentType
+	 *            the content type
+	 * @return the body
+	 */
+	public static RequestBody of(final InputStream in, final long length, ContentType contentType) {
+		return new RequestBody(contentType.toString()) {
+
+			@Override
+			public long getLength() {
+				return length;
+			}
+
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				copy(in, out, length);
+			}
+
+			@Override
+			boolean isRepeatable() {
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Makes a body read from a file as it is sent
+	 * 
+	 * @param path
+	 *            the file
+	 * @param contentType
+	 *            the content type
+	 * @return the body
+	 */
+	public static RequestBody of(final Path path, ContentType contentType) {
+		return new RequestBody(contentType.toString()) {
+
+			@Override
+			public long getLength() throws IOException {
+				return Files.size(path);
+			}
+
+			@Override
+			public void writeTo(OutputStream out) throws IOException {
+				try (InputStream in = Files.newInputStream(path)) {
+					copy(in, out, -1);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return the Content-Type header to send
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Gets the length of the body
+	 * 
+	 * @return the bytes, or -1 if not known until it is sent
+	 * @throws IOException
+	 *             if the length cannot be read, e.g. of a missing file
+	 */
+	public abstract long getLength() throws IOException;
+
+	/**
+	 * Writes the body
+	 * 
+	 * @param out
+	 *            where to write it, which is left open
+	 * @throws IOException
+	 *             on errors
+	 */
+	public abstract void writeTo(OutputStream out) throws IOException;
+
+	/**
+	 * Sets the headers describing the body on a connection
+	 */
+	void setHeaders(HttpURLConnection conn) {
+		conn.setRequestProperty("Content-Type", contentType);
+	}
+
+	/**
+	 * Gets whether the body can be written more than once, so its request can
+	 * be retried
+	 */
+	boolean isRepeatable() {
+		return true;
+	}
+
+	/**
+	 * Gets the body if it is held in memory, so it can be compressed whole
+	 * 
+	 * @return the bytes, or null if the body is streamed
+	 */
+	byte[] getBytes() {
+		return null;
+	}
+
+	/**
+	 * Copies a stream, checking it has as many bytes as it should
+	 * 
+	 * @param length
+	 *            the bytes to copy, or -1 for all of them
+	 */
+	static void copy(InputStream in, OutputStream out, long length) throws IOException {
+		byte[] buffer = new byte[COPY_BUFFER_SIZE];
+		long left = length < 0 ? Long.MAX_VALUE : length;
+		while (left > 0) {
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+			if (read < 0) {
+				if (length < 0) {
+					return;
+				}
+				throw new IOException("Body ended after " + (length - left) + " of " + length + " bytes");
+			}
+			out.write(buffer, 0, read);
+			left -= read;
+		}
+	}
+
+	private static class Bytes extends RequestBody {
+		private final byte[] data;
+		private final boolean text;
+
+		private Bytes(byte[] data, String contentType, boolean text) {
+			super(contentType);
+			this.data = data;
+			this.text = text;
+		}
+
+		@Override
+		void setHeaders(HttpURLConnection conn) {
+			super.setHeaders(conn);
+			if (text) {
+				conn.setRequestProperty("charset", "utf-8");
+			}
+		}
+
+		@Override
+		public long getLength() {
+			return data.length;
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			out.write(data);
+		}
+
+		@Override
+		byte[] getBytes() {
+			return data;
+		}
+	}
+}
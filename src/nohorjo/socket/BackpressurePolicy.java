@@ -0,0 +1,22 @@
+package nohorjo.socket;
+
+/**
+ * What to do when a connection's outbound queue is full
+ * 
+ * @author muhammed
+ *
+ */
+public enum BackpressurePolicy {
+	/**
+	 * Block the sender until there is room
+	 */
+	BLOCK,
+	/**
+	 * Discard the oldest queued message to make room
+	 */
+	DROP_OLDEST,
+	/**
+	 * Close the connection, treating the peer as too slow
+	 */
+	DISCONNECT
+}
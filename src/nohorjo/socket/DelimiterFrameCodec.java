@@ -0,0 +1,112 @@
+package nohorjo.socket;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import nohorjo.delegation.Action;
+
+/**
+ * Frames messages by ending each with a delimiter, such as a newline
+ * 
+ * @author muhammed
+ *
+ */
+public class DelimiterFrameCodec implements FrameCodec {
+	private final byte[] delimiter;
+	private final int[] failure;
+	private final int maxFrameSize;
+
+	/**
+	 * Constructs a codec for newline terminated messages accepting frames up
+	 * to {@link FrameCodec#DEFAULT_MAX_FRAME_SIZE}
+	 */
+	public DelimiterFrameCodec() {
+		this("\n".getBytes(StandardCharsets.UTF_8), DEFAULT_MAX_FRAME_SIZE);
+	}
+
+	/**
+	 * Constructs a codec
+	 * 
+	 * @param delimiter
+	 *            the bytes marking the end of a message, which messages must
+	 *            not contain
+	 * @param maxFrameSize
+	 *            the largest payload to send or accept
+	 */
+	public DelimiterFrameCodec(byte[] delimiter, int maxFrameSize) {
+		if (delimiter.length == 0) {
+			throw new IllegalArgumentException("Delimiter must not be empty");
+		}
+		this.delimiter = delimiter.clone();
+		this.maxFrameSize = maxFrameSize;
+		failure = new int[delimiter.length];
+		for (int i = 1, matched = 0; i < delimiter.length; i++) {
+			while (matched > 0 && delimiter[i] != delimiter[matched]) {
+				matched = failure[matched - 1];
+			}
+			if (delimiter[i] == delimiter[matched]) {
+				matched++;
+			}
+			failure[i] = matched;
+		}
+	}
+
+	@Override
+	public byte[] encode(byte[] data, int offset, int length) throws FrameTooLargeException {
+		if (length > maxFrameSize) {
+			throw new FrameTooLargeException(length, maxFrameSize);
+		}
+		byte[] frame = new byte[length + delimiter.length];
+		System.arraycopy(data, offset, frame, 0, length);
+		System.arraycopy(delimiter, 0, frame, length, delimiter.length);
+		return frame;
+	}
+
+	@Override
+	public FrameDecoder newDecoder() {
+		return new FrameDecoder(maxFrameSize, maxFrameSize + delimiter.length - 1) {
+			private int matched;
+
+			@Override
+			public void decode(byte[] data, int offset, int length, Action onFrame, String address)
+					throws IOException {
+				int end = offset + length;
+				int frameStart = offset;
+				for (int i = offset; i < end; i++) {
+					byte b = data[i];
+					while (matched > 0 && b != delimiter[matched]) {
+						matched = failure[matched - 1];
+					}
+					if (b == delimiter[matched]) {
+						matched++;
+					}
+					if (matched == delimiter.length) {
+						matched = 0;
+						int frameEnd = i + 1 - delimiter.length;
+						if (buffered == 0) {
+							if (frameEnd - frameStart > maxFrameSize) {
+								throw new FrameTooLargeException(frameEnd - frameStart, maxFrameSize);
+							}
+							onFrame.run(data, frameStart, frameEnd - frameStart, address);
+						} else {
+							if (frameEnd >= frameStart) {
+								append(data, frameStart, frameEnd - frameStart);
+							} else {
+								// part of the delimiter was already buffered
+								buffered -= frameStart - frameEnd;
+							}
+							if (buffered > maxFrameSize) {
+								throw new FrameTooLargeException(buffered, maxFrameSize);
+							}
+							deliverBuffer(buffered, onFrame, address);
+						}
+						frameStart = i + 1;
+					}
+				}
+				if (frameStart < end) {
+					append(data, frameStart, end - frameStart);
+				}
+			}
+		};
+	}
+}
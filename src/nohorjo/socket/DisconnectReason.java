@@ -0,0 +1,42 @@
+package nohorjo.socket;
+
+/**
+ * Why a connection was closed, as counted by {@link SocketMetrics}
+ * 
+ * @author muhammed
+ *
+ */
+public enum DisconnectReason {
+	/**
+	 * {@link SocketClient#close()} was called locally
+	 */
+	LOCAL_CLOSE,
+	/**
+	 * The peer closed the connection
+	 */
+	REMOTE_CLOSE,
+	/**
+	 * A read or write failed
+	 */
+	ERROR,
+	/**
+	 * The peer sent a frame over the codec's limit
+	 */
+	FRAME_TOO_LARGE,
+	/**
+	 * The peer sent a frame the codec could not decode
+	 */
+	MALFORMED_FRAME,
+	/**
+	 * The send queue filled up under {@link BackpressurePolicy#DISCONNECT}
+	 */
+	SEND_QUEUE_FULL,
+	/**
+	 * Nothing was read or written within the idle timeout
+	 */
+	IDLE_TIMEOUT,
+	/**
+	 * A write blocked for longer than the write timeout
+	 */
+	WRITE_TIMEOUT
+}
@@ -0,0 +1,199 @@
+package nohorjo.socket;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import nohorjo.delegation.Action;
+
+/**
+ * Hands received messages to a shared pool of workers, sharing the workers
+ * fairly between connections by deficit round robin. Each connection with
+ * messages waiting takes a turn in a ring, and on each turn may run messages
+ * totalling up to the quantum plus whatever it had left over from its last
+ * turn, so a connection sending a lot can't starve the others. A connection's
+ * messages are run in order, by one worker at a time. Readers are paused while
+ * their connection has too much waiting
+ * 
+ * @author muhammed
+ *
+ */
+class FairDispatcher {
+	private final Executor executor;
+	private final int quantum;
+	private final long maxPendingBytes;
+	private final Queue<Flow> ring = new ArrayDeque<>();
+	private final Runnable worker = new Runnable() {
+
+		@Override
+		public void run() {
+			serviceNext();
+		}
+	};
+
+	/**
+	 * @param executor
+	 *            runs the workers
+	 * @param quantum
+	 *            the bytes each connection may have run per turn
+	 * @param maxPendingBytes
+	 *            the bytes a connection may have waiting before its reader
+	 *            is paused
+	 */
+	FairDispatcher(Executor executor, int quantum, long maxPendingBytes) {
+		if (quantum <= 0) {
+			throw new IllegalArgumentException("Quantum must be positive");
+		}
+		if (maxPendingBytes <= 0) {
+			throw new IllegalArgumentException("Max pending bytes must be positive");
+		}
+		this.executor = executor;
+		this.quantum = quantum;
+		this.maxPendingBytes = maxPendingBytes;
+	}
+
+	/**
+	 * Creates the queue for a connection's messages
+	 * 
+	 * @param onReceive
+	 *            run by the workers for each message
+	 * @param metrics
+	 *            the connection's metrics, which count the reader's pauses as
+	 *            throttles
+	 * @return the flow
+	 */
+	Flow newFlow(Action onReceive, SocketMetrics metrics) {
+		return new Flow(onReceive, metrics);
+	}
+
+	/**
+	 * Gives the connection at the head of the ring its turn
+	 */
+	private void serviceNext() {
+		Flow flow;
+		synchronized (ring) {
+			flow = ring.poll();
+		}
+		if (flow == null) {
+			return;
+		}
+		flow.deficit += quantum;
+		while (true) {
+			Message message;
+			synchronized (flow) {
+				message = flow.pending.peek();
+				if (message == null) {
+					flow.deficit = 0;
+					flow.scheduled = false;
+					return;
+				}
+				if (message.size > flow.deficit) {
+					break;
+				}
+				flow.pending.poll();
+				flow.deficit -= message.size;
+				flow.pendingBytes -= message.size;
+				if (flow.readerWaiting) {
+					flow.notifyAll();
+				}
+			}
+			try {
+				flow.onReceive.run(message.args);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		schedule(flow);
+	}
+
+	/**
+	 * Puts a connection at the back of the ring and adds a worker for it
+	 */
+	private void schedule(Flow flow) {
+		synchronized (ring) {
+			ring.add(flow);
+		}
+		executor.execute(worker);
+	}
+
+	/**
+	 * The messages waiting for one connection
+	 */
+	class Flow {
+		private final Action onReceive;
+		private final SocketMetrics metrics;
+		private final Queue<Message> pending = new ArrayDeque<>();
+		private long pendingBytes;
+		private long deficit;
+		private boolean scheduled;
+		private boolean readerWaiting;
+		private boolean closed;
+
+		private Flow(Action onReceive, SocketMetrics metrics) {
+			this.onReceive = onReceive;
+			this.metrics = metrics;
+		}
+
+		/**
+		 * Queues a message, waiting while too much is queued already. Called
+		 * by the connection's reader
+		 * 
+		 * @param size
+		 *            the bytes in the message
+		 * @param args
+		 *            the arguments for onReceive, which must not refer to
+		 *            buffers the reader reuses
+		 */
+		void dispatch(int size, Object... args) {
+			boolean schedule;
+			synchronized (this) {
+				if (pendingBytes >= maxPendingBytes && !closed) {
+					long start = System.nanoTime();
+					readerWaiting = true;
+					boolean interrupted = false;
+					while (pendingBytes >= maxPendingBytes && !closed) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							interrupted = true;
+						}
+					}
+					readerWaiting = false;
+					metrics.throttled(System.nanoTime() - start);
+					if (interrupted) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				if (closed) {
+					return;
+				}
+				pending.add(new Message(size, args));
+				pendingBytes += size;
+				schedule = !scheduled;
+				scheduled = true;
+			}
+			if (schedule) {
+				schedule(this);
+			}
+		}
+
+		/**
+		 * Stops taking messages and wakes the reader. What is already queued
+		 * is still run, as the peer may have sent it just before closing
+		 */
+		synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+	}
+
+	private static class Message {
+		private final int size;
+		private final Object[] args;
+
+		private Message(int size, Object[] args) {
+			this.size = size;
+			this.args = args;
+		}
+	}
+}
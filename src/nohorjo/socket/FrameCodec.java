@@ -0,0 +1,40 @@
+package nohorjo.socket;
+
+/**
+ * Splits a socket's byte stream into messages. Set on a {@link SocketClient}
+ * or a server so that {@code onReceive} is run once per whole message and
+ * each {@code send} writes one frame
+ * 
+ * @author muhammed
+ *
+ */
+public interface FrameCodec {
+
+	/**
+	 * Default limit on the size of a frame's payload
+	 */
+	public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Wraps data in a frame
+	 * 
+	 * @param data
+	 *            array holding the payload
+	 * @param offset
+	 *            start of the payload
+	 * @param length
+	 *            length of the payload
+	 * @return the whole frame, ready to be written in one go
+	 * @throws FrameTooLargeException
+	 *             if the payload is bigger than the codec allows
+	 */
+	public byte[] encode(byte[] data, int offset, int length) throws FrameTooLargeException;
+
+	/**
+	 * Creates a decoder to hold the reassembly state of a single connection
+	 * 
+	 * @return a new {@link FrameDecoder}
+	 */
+	public FrameDecoder newDecoder();
+
+}
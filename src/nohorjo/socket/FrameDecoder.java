@@ -0,0 +1,88 @@
+package nohorjo.socket;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import nohorjo.delegation.Action;
+
+/**
+ * Reassembles frames from the chunks read off a single connection. Frames
+ * that arrive whole in a chunk are handed on as a slice of that chunk, the
+ * rest are gathered in a buffer that is reused from frame to frame
+ * 
+ * @author muhammed
+ *
+ */
+public abstract class FrameDecoder {
+	private static final int INITIAL_BUFFER_SIZE = 256;
+	private static final int RETAINED_BUFFER_SIZE = 64 * 1024;
+
+	protected final int maxFrameSize;
+	protected byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+	protected int buffered;
+	private final int bufferLimit;
+
+	/**
+	 * @param maxFrameSize
+	 *            the largest payload to accept
+	 * @param bufferLimit
+	 *            the most that may be held in the buffer while waiting for
+	 *            the end of a frame
+	 */
+	protected FrameDecoder(int maxFrameSize, int bufferLimit) {
+		this.maxFrameSize = maxFrameSize;
+		this.bufferLimit = bufferLimit;
+	}
+
+	/**
+	 * Feeds a chunk read from the connection through the decoder
+	 * 
+	 * @param data
+	 *            array holding the chunk
+	 * @param offset
+	 *            start of the chunk
+	 * @param length
+	 *            length of the chunk
+	 * @param onFrame
+	 *            run for each whole frame with arguments ({@code byte[]} =
+	 *            buffer, {@link Integer} = offset, {@link Integer} = length,
+	 *            {@link String} = socket address)
+	 * @param address
+	 *            the socket address passed to onFrame
+	 * @throws IOException
+	 *             if the stream is malformed or a frame is too large
+	 */
+	public abstract void decode(byte[] data, int offset, int length, Action onFrame, String address)
+			throws IOException;
+
+	/**
+	 * Copies part of a frame into the buffer
+	 * 
+	 * @throws FrameTooLargeException
+	 *             if the buffer would grow past its limit
+	 */
+	protected void append(byte[] data, int offset, int length) throws FrameTooLargeException {
+		int required = buffered + length;
+		if (required > bufferLimit) {
+			throw new FrameTooLargeException(required, maxFrameSize);
+		}
+		if (required > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.min(Math.max(buffer.length * 2, required), bufferLimit));
+		}
+		System.arraycopy(data, offset, buffer, buffered, length);
+		buffered = required;
+	}
+
+	/**
+	 * Runs the action with the first length bytes of the buffer and empties
+	 * it, dropping an oversized buffer so one large frame isn't kept for the
+	 * life of the connection
+	 */
+	protected void deliverBuffer(int length, Action onFrame, String address) {
+		onFrame.run(buffer, 0, length, address);
+		buffered = 0;
+		if (buffer.length > RETAINED_BUFFER_SIZE) {
+			buffer = new byte[INITIAL_BUFFER_SIZE];
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package nohorjo.socket;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a frame is bigger than the maximum a {@link FrameCodec} allows
+ * 
+ * @author muhammed
+ *
+ */
+public class FrameTooLargeException extends IOException {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 3419082137765120385L;
+
+	public FrameTooLargeException(long frameSize, int maxFrameSize) {
+		super("Frame of " + frameSize + " bytes exceeds maximum of " + maxFrameSize);
+	}
+
+}
@@ -0,0 +1,62 @@
+package nohorjo.socket;
+
+import java.io.IOException;
+
+import nohorjo.delegation.Action;
+
+/**
+ * Decodes frames that start with a header giving the payload length
+ * 
+ * @author muhammed
+ *
+ */
+abstract class LengthFieldFrameDecoder extends FrameDecoder {
+	private int frameLength = -1;
+
+	protected LengthFieldFrameDecoder(int maxFrameSize) {
+		super(maxFrameSize, maxFrameSize);
+	}
+
+	/**
+	 * Takes the next byte of the header
+	 * 
+	 * @param b
+	 *            the header byte
+	 * @return the payload length once the header is complete, otherwise -1
+	 * @throws MalformedFrameException
+	 *             if the header is malformed
+	 */
+	protected abstract int headerByte(byte b) throws MalformedFrameException;
+
+	@Override
+	public void decode(byte[] data, int offset, int length, Action onFrame, String address) throws IOException {
+		int end = offset + length;
+		while (offset < end) {
+			if (frameLength < 0) {
+				frameLength = headerByte(data[offset++]);
+				if (frameLength > maxFrameSize) {
+					throw new FrameTooLargeException(frameLength, maxFrameSize);
+				}
+				if (frameLength == 0) {
+					onFrame.run(data, offset, 0, address);
+					frameLength = -1;
+				}
+				continue;
+			}
+			int available = end - offset;
+			if (buffered == 0 && available >= frameLength) {
+				onFrame.run(data, offset, frameLength, address);
+				offset += frameLength;
+				frameLength = -1;
+			} else {
+				int take = Math.min(frameLength - buffered, available);
+				append(data, offset, take);
+				offset += take;
+				if (buffered == frameLength) {
+					deliverBuffer(frameLength, onFrame, address);
+					frameLength = -1;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package nohorjo.socket;
+
+/**
+ * Frames messages with a fixed size big-endian length prefix
+ * 
+ * @author muhammed
+ *
+ */
+public class LengthPrefixFrameCodec implements FrameCodec {
+	private final int prefixLength;
+	private final int maxFrameSize;
+
+	/**
+	 * Constructs a codec with a 4 byte prefix accepting frames up to
+	 * {@link FrameCodec#DEFAULT_MAX_FRAME_SIZE}
+	 */
+	public LengthPrefixFrameCodec() {
+		this(4, DEFAULT_MAX_FRAME_SIZE);
+	}
+
+	/**
+	 * Constructs a codec
+	 * 
+	 * @param prefixLength
+	 *            number of bytes in the prefix, 1 to 4
+	 * @param maxFrameSize
+	 *            the largest payload to send or accept, capped by what the
+	 *            prefix can hold
+	 */
+	public LengthPrefixFrameCodec(int prefixLength, int maxFrameSize) {
+		if (prefixLength < 1 || prefixLength > 4) {
+			throw new IllegalArgumentException("Prefix length must be 1 to 4 bytes: " + prefixLength);
+		}
+		this.prefixLength = prefixLength;
+		this.maxFrameSize = prefixLength == 4 ? maxFrameSize : Math.min(maxFrameSize, (1 << (8 * prefixLength)) - 1);
+	}
+
+	@Override
+	public byte[] encode(byte[] data, int offset, int length) throws FrameTooLargeException {
+		if (length > maxFrameSize) {
+			throw new FrameTooLargeException(length, maxFrameSize);
+		}
+		byte[] frame = new byte[prefixLength + length];
+		for (int i = 0; i < prefixLength; i++) {
+			frame[i] = (byte) (length >>> (8 * (prefixLength - 1 - i)));
+		}
+		System.arraycopy(data, offset, frame, prefixLength, length);
+		return frame;
+	}
+
+	@Override
+	public FrameDecoder newDecoder() {
+		return new LengthFieldFrameDecoder(maxFrameSize) {
+			private int value;
+			private int read;
+
+			@Override
+			protected int headerByte(byte b) {
+				value = (value << 8) | (b & 0xFF);
+				if (++read < prefixLength) {
+					return -1;
+				}
+				int length = value;
+				value = 0;
+				read = 0;
+				return length < 0 ? Integer.MAX_VALUE : length;
+			}
+		};
+	}
+}
@@ -0,0 +1,23 @@
+package nohorjo.socket;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a peer sends a frame that a {@link FrameCodec} cannot decode,
+ * such as a length header that never ends
+ * 
+ * @author muhammed
+ *
+ */
+public class MalformedFrameException extends IOException {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -6204218315917286463L;
+
+	public MalformedFrameException(String message) {
+		super(message);
+	}
+
+}
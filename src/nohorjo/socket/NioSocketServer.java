@@ -0,0 +1,669 @@
+package nohorjo.socket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import nohorjo.common.BufferPool;
+import nohorjo.common.PooledBuffer;
+import nohorjo.delegation.Action;
+
+/**
+ * Class that creates a non-blocking TCP listener. Unlike {@link SocketServer}
+ * connections do not get a thread each, they are multiplexed over a small pool
+ * of event loop threads
+ * 
+ * @author muhammed
+ *
+ */
+public class NioSocketServer implements Closeable, Runnable {
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	private static final int DEFAULT_SEND_BACKLOG = 4 * 1024 * 1024;
+	private static final long MIN_ACCEPT_BACKOFF_MILLIS = 10;
+	private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
+
+	private int port;
+	private int eventLoopCount;
+	private ServerSocketChannel server;
+	private EventLoop[] eventLoops;
+	private int nextEventLoop;
+	private Map<String, Connection> connections = new ConcurrentHashMap<>();
+	private final SocketMetrics metrics = new SocketMetrics();
+	private Thread acceptor;
+	private volatile boolean alive;
+	private int chunkSize;
+	private FrameCodec frameCodec;
+	private int sendBacklogBytes = DEFAULT_SEND_BACKLOG;
+	private BackpressurePolicy sendBacklogPolicy = BackpressurePolicy.DISCONNECT;
+	private Action onReceive;
+	private Action onNewConnection;
+	private Action onDisconnect;
+
+	/**
+	 * Constructs a listener on the port with an event loop per available
+	 * processor
+	 * 
+	 * @param port
+	 *            the port to listen to
+	 */
+	public NioSocketServer(int port) {
+		this(port, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructs a listener on the port
+	 * 
+	 * @param port
+	 *            the port to listen to
+	 * @param eventLoops
+	 *            the number of threads to multiplex the connections over
+	 */
+	public NioSocketServer(int port, int eventLoops) {
+		if (eventLoops < 1) {
+			throw new IllegalArgumentException("Must have at least one event loop");
+		}
+		this.port = port;
+		this.eventLoopCount = eventLoops;
+	}
+
+	/**
+	 * Sets the custom {@link Action}s. Must be called before {@link #start()}
+	 * 
+	 * @param onReceive
+	 *            takes arguments ({@link Byte} = data received, {@link String}
+	 *            = socket address), or if a chunk size is set ({@code byte[]}
+	 *            = buffer, {@link Integer} = offset, {@link Integer} = length,
+	 *            {@link String} = socket address), or if a frame codec is set
+	 *            the same with one whole message per call, defines the action
+	 *            on receiving data from the socket
+	 * @param onNewConnection
+	 *            takes arguments ({@link Socket} = the new socket it connected
+	 *            to), defines the action to run when a new connection is made
+	 * @param onDisconnect
+	 *            takes arguments ({@link Socket} = the socket that it
+	 *            disconnected from), defines the action on disconnecting from
+	 *            the socket
+	 */
+	public void setActions(Action onReceive, Action onNewConnection, Action onDisconnect) {
+		this.onReceive = onReceive;
+		this.onNewConnection = onNewConnection;
+		this.onDisconnect = onDisconnect;
+	}
+
+	/**
+	 * Sets the size of the buffer each event loop reads into. When greater
+	 * than 0, {@link #onReceive} is run once per read with a slice of the
+	 * loop's buffer rather than once per byte. Must be called before
+	 * {@link #start()}
+	 * 
+	 * @param chunkSize
+	 *            the buffer size, or 0 to deliver single bytes
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Sets the codec each connection uses to frame messages. Once set
+	 * {@link #onReceive} is run once per whole message and each send writes
+	 * the data as a frame. Must be called before {@link #start()}
+	 * 
+	 * @param frameCodec
+	 *            the codec, or null to pass raw bytes
+	 */
+	public void setFrameCodec(FrameCodec frameCodec) {
+		this.frameCodec = frameCodec;
+	}
+
+	/**
+	 * Sets how much unwritten data each connection may hold for a slow peer,
+	 * and what to do once a send would go over it. Defaults to 4MB and
+	 * {@link BackpressurePolicy#DISCONNECT}. Must be called before
+	 * {@link #start()}
+	 * 
+	 * @param maxBytes
+	 *            the most bytes to hold per connection
+	 * @param policy
+	 *            {@link BackpressurePolicy#DISCONNECT} to close the connection
+	 *            with {@link DisconnectReason#SEND_QUEUE_FULL}, or
+	 *            {@link BackpressurePolicy#DROP_OLDEST} to discard the oldest
+	 *            messages not yet started. {@link BackpressurePolicy#BLOCK} is
+	 *            refused, as sends are often made from the event loops
+	 */
+	public void setSendBacklog(int maxBytes, BackpressurePolicy policy) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("Send backlog must be at least 1 byte");
+		}
+		if (policy == BackpressurePolicy.BLOCK) {
+			throw new IllegalArgumentException("Event loops cannot block on a full send backlog");
+		}
+		this.sendBacklogBytes = maxBytes;
+		this.sendBacklogPolicy = policy;
+	}
+
+	/**
+	 * Initializes the server and its event loops to start listening on the
+	 * port. Must call {@link #setActions(Action, Action, Action)} before this
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs when opening the socket
+	 */
+	public void start() throws IOException {
+		String nulls = "";
+		if (onDisconnect == null) {
+			nulls += "onDisconnect, ";
+		}
+		if (onReceive == null) {
+			nulls += "onReceive, ";
+		}
+		if (onNewConnection == null) {
+			nulls += "onNewConnection, ";
+		}
+		if (nulls.length() != 0) {
+			throw new NullPointerException(nulls.replaceAll(", $", ""));
+		}
+		alive = true;
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.bind(new InetSocketAddress(port));
+		eventLoops = new EventLoop[eventLoopCount];
+		for (int i = 0; i < eventLoops.length; i++) {
+			eventLoops[i] = new EventLoop();
+			new Thread(eventLoops[i], "NioSocketServer-" + port + "-loop-" + i).start();
+		}
+		acceptor = new Thread(this, "NioSocketServer-" + port + "-accept");
+		acceptor.start();
+	}
+
+	/**
+	 * Closes all connections and reinitializes the server
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void reset() throws IOException {
+		close();
+		start();
+	}
+
+	/**
+	 * While alive accepts new connections and hands them to the event loops
+	 * in turn. Runs {@link #onNewConnection} for each new connection. When
+	 * accepting fails, such as when out of file descriptors, it backs off for
+	 * longer after each failure until one succeeds, printing only the first
+	 */
+	@Override
+	public void run() {
+		long backoffMillis = 0;
+		while (alive) {
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (ClosedChannelException e) {
+				alive = false;
+				continue;
+			} catch (IOException e) {
+				if (backoffMillis == 0) {
+					e.printStackTrace();
+					backoffMillis = MIN_ACCEPT_BACKOFF_MILLIS;
+				} else {
+					backoffMillis = Math.min(backoffMillis * 2, MAX_ACCEPT_BACKOFF_MILLIS);
+				}
+				try {
+					Thread.sleep(backoffMillis);
+				} catch (InterruptedException ie) {
+					// only close() stops accepting
+				}
+				continue;
+			}
+			backoffMillis = 0;
+			try {
+				channel.configureBlocking(false);
+				// masked so the turn stays positive once the count wraps
+				EventLoop eventLoop = eventLoops[(nextEventLoop++ & Integer.MAX_VALUE) % eventLoops.length];
+				// bound to its loop before it is published, so a send can always wake it
+				Connection connection = new Connection(channel, eventLoop);
+				connection.metrics.accepted();
+				connections.put(connection.address, connection);
+				eventLoop.register(connection);
+				onNewConnection.run(channel.socket());
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Sends data to a target connection, as a single frame if a frame codec is
+	 * set. The data is written straight away if the socket can take it,
+	 * otherwise the remainder is queued and written by the event loop, up to
+	 * the send backlog
+	 * 
+	 * @param recipient
+	 *            the socket address of the target
+	 * @param data
+	 *            the data to send
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void send(String recipient, byte... data) throws IOException {
+		Connection connection = connections.get(recipient);
+		if (connection == null) {
+			throw new IOException("Connection does not exist: " + recipient);
+		}
+		if (frameCodec != null) {
+			data = frameCodec.encode(data, 0, data.length);
+		}
+		try {
+			connection.send(data);
+		} catch (IOException e) {
+			connection.close(DisconnectReason.ERROR);
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends data to all alive connections, framing it once for all of them
+	 * 
+	 * @param data
+	 *            data to send
+	 * @throws IllegalArgumentException
+	 *             if the data is too large for the frame codec
+	 */
+	public void sendAll(byte... data) {
+		if (frameCodec != null) {
+			try {
+				data = frameCodec.encode(data, 0, data.length);
+			} catch (FrameTooLargeException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+		for (Connection connection : connections.values()) {
+			try {
+				connection.send(data);
+			} catch (IOException e) {
+				connection.close(DisconnectReason.ERROR);
+			}
+		}
+	}
+
+	/**
+	 * Closes all connections, the event loops and the server
+	 */
+	@Override
+	public void close() throws IOException {
+		alive = false;
+		for (Connection connection : connections.values()) {
+			connection.close(DisconnectReason.LOCAL_CLOSE);
+		}
+		if (eventLoops != null) {
+			for (EventLoop eventLoop : eventLoops) {
+				eventLoop.close();
+			}
+		}
+		server.close();
+		awaitAcceptor();
+	}
+
+	/**
+	 * Waits for the accepting thread to finish, as closing the channel while
+	 * it is blocked in accept only releases the port once it has returned
+	 */
+	private void awaitAcceptor() {
+		if (acceptor != null && acceptor != Thread.currentThread()) {
+			try {
+				acceptor.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Gets a set of the connection addresses
+	 * 
+	 * @return {@link Set} of socket address {@link String}s
+	 */
+	public Set<String> getConnections() {
+		return connections.keySet();
+	}
+
+	/**
+	 * Disconnects a connection
+	 * 
+	 * @param target
+	 *            the socket address
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void disconnect(String target) throws IOException {
+		Connection connection = connections.get(target);
+		if (connection == null) {
+			throw new IOException("Connection does not exist: " + target);
+		}
+		connection.close(DisconnectReason.LOCAL_CLOSE);
+	}
+
+	/**
+	 * Gets the metrics of the whole server, covering every connection it has
+	 * accepted
+	 * 
+	 * @return the {@link SocketMetrics}
+	 */
+	public SocketMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Gets the metrics of a connection
+	 * 
+	 * @param target
+	 *            the socket address
+	 * @return the {@link SocketMetrics}
+	 * @throws IOException
+	 *             if the connection does not exist
+	 */
+	public SocketMetrics getMetrics(String target) throws IOException {
+		Connection connection = connections.get(target);
+		if (connection == null) {
+			throw new IOException("Connection does not exist: " + target);
+		}
+		return connection.metrics;
+	}
+
+	/**
+	 * A selector and the thread that services it
+	 */
+	private class EventLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private final PooledBuffer readBuffer = BufferPool.getDefault().allocate(
+				chunkSize > 0 ? chunkSize : READ_BUFFER_SIZE);
+		private final byte[] data = new byte[readBuffer.buffer().limit()];
+
+		EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		/**
+		 * Registers a connection with this loop from any thread
+		 */
+		void register(final Connection connection) {
+			execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+					} catch (IOException e) {
+						connection.close(DisconnectReason.ERROR);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Runs the task on the loop thread
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (alive) {
+					try {
+						selector.select();
+						Runnable task;
+						while ((task = tasks.poll()) != null) {
+							task.run();
+						}
+						Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+						while (keys.hasNext()) {
+							SelectionKey key = keys.next();
+							keys.remove();
+							Connection connection = (Connection) key.attachment();
+							if (!key.isValid()) {
+								connection.close(DisconnectReason.ERROR);
+								continue;
+							}
+							if (key.isReadable()) {
+								read(connection);
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.flush();
+							}
+						}
+					} catch (ClosedSelectorException e) {
+						return;
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			} finally {
+				readBuffer.release();
+			}
+		}
+
+		private void read(Connection connection) {
+			try {
+				ByteBuffer buffer = readBuffer.buffer();
+				buffer.clear().limit(data.length);
+				int read = connection.channel.read(buffer);
+				if (read < 0) {
+					connection.close(DisconnectReason.REMOTE_CLOSE);
+					return;
+				}
+				connection.metrics.received(read);
+				buffer.flip();
+				buffer.get(data, 0, read);
+				if (connection.frameDecoder != null) {
+					connection.frameDecoder.decode(data, 0, read, connection.onFrame, connection.address);
+				} else if (chunkSize > 0) {
+					connection.metrics.receivedMessage();
+					onReceive.run(data, 0, read, connection.address);
+				} else {
+					for (int i = 0; i < read; i++) {
+						connection.metrics.receivedMessage();
+						onReceive.run(data[i], connection.address);
+					}
+				}
+			} catch (FrameTooLargeException e) {
+				connection.close(DisconnectReason.FRAME_TOO_LARGE);
+			} catch (MalformedFrameException e) {
+				connection.close(DisconnectReason.MALFORMED_FRAME);
+			} catch (IOException e) {
+				connection.close(DisconnectReason.ERROR);
+			}
+		}
+
+		void close() throws IOException {
+			selector.wakeup();
+			selector.close();
+		}
+	}
+
+	/**
+	 * The state of a single accepted channel
+	 */
+	private class Connection {
+		private final SocketChannel channel;
+		private final String address;
+		private final Queue<PooledBuffer> pending = new ArrayDeque<>();
+		private long pendingBytes;
+		private final AtomicBoolean closed = new AtomicBoolean();
+		private final FrameDecoder frameDecoder = frameCodec == null ? null : frameCodec.newDecoder();
+		private final SocketMetrics metrics = new SocketMetrics(NioSocketServer.this.metrics);
+		private final Action onFrame = new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				metrics.receivedMessage();
+				return onReceive.run(args);
+			}
+		};
+		private final EventLoop eventLoop;
+		private SelectionKey key;
+
+		Connection(SocketChannel channel, EventLoop eventLoop) {
+			this.channel = channel;
+			this.eventLoop = eventLoop;
+			this.address = channel.socket().getRemoteSocketAddress().toString();
+		}
+
+		/**
+		 * Writes what the channel will take without blocking and queues the
+		 * rest for the event loop, applying the backlog policy if the queue
+		 * would grow past the send backlog
+		 */
+		void send(byte[] data) throws IOException {
+			if (closed.get()) {
+				throw new SocketException("Connection is no longer alive");
+			}
+			metrics.sentMessage();
+			PooledBuffer pooled = BufferPool.getDefault().copyOf(data, 0, data.length);
+			boolean full = false;
+			synchronized (this) {
+				if (closed.get()) {
+					pooled.release();
+					throw new SocketException("Connection is no longer alive");
+				}
+				if (pending.isEmpty()) {
+					long start = System.nanoTime();
+					int written = channel.write(pooled.buffer());
+					metrics.wrote(written, System.nanoTime() - start);
+					if (!pooled.buffer().hasRemaining()) {
+						pooled.release();
+						return;
+					}
+				}
+				if (!makeRoom(pooled.buffer().remaining())) {
+					pooled.release();
+					if (sendBacklogPolicy == BackpressurePolicy.DROP_OLDEST) {
+						metrics.dropped();
+						return;
+					}
+					full = true;
+				} else {
+					pending.add(pooled);
+					pendingBytes += pooled.buffer().remaining();
+				}
+			}
+			if (full) {
+				close(DisconnectReason.SEND_QUEUE_FULL);
+				throw new SocketException("Send backlog full, disconnected");
+			}
+			eventLoop.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					if (key != null && key.isValid()) {
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Checks that the bytes fit in the send backlog, first discarding
+		 * messages under {@link BackpressurePolicy#DROP_OLDEST}. A message
+		 * already partly written is always kept, as dropping it would corrupt
+		 * the stream, so one larger than the backlog can still be sent alone
+		 * 
+		 * @return whether the bytes can be queued
+		 */
+		private boolean makeRoom(int bytes) {
+			if (pending.isEmpty() || pendingBytes + bytes <= sendBacklogBytes) {
+				return true;
+			}
+			if (sendBacklogPolicy != BackpressurePolicy.DROP_OLDEST || bytes > sendBacklogBytes) {
+				return false;
+			}
+			Iterator<PooledBuffer> queued = pending.iterator();
+			while (pendingBytes + bytes > sendBacklogBytes && queued.hasNext()) {
+				PooledBuffer oldest = queued.next();
+				if (oldest.buffer().position() == 0) {
+					queued.remove();
+					pendingBytes -= oldest.buffer().remaining();
+					oldest.release();
+					metrics.dropped();
+				}
+			}
+			return pendingBytes + bytes <= sendBacklogBytes;
+		}
+
+		/**
+		 * Writes queued data in a single gathering write, called from the
+		 * event loop when writable
+		 */
+		void flush() {
+			try {
+				synchronized (this) {
+					ByteBuffer[] buffers = new ByteBuffer[pending.size()];
+					int i = 0;
+					for (PooledBuffer pooled : pending) {
+						buffers[i++] = pooled.buffer();
+					}
+					long start = System.nanoTime();
+					long written = channel.write(buffers);
+					metrics.wrote(written, System.nanoTime() - start);
+					pendingBytes -= written;
+					while (!pending.isEmpty() && !pending.peek().buffer().hasRemaining()) {
+						pending.poll().release();
+					}
+					if (!pending.isEmpty()) {
+						return;
+					}
+				}
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			} catch (IOException e) {
+				close(DisconnectReason.ERROR);
+			}
+		}
+
+		/**
+		 * Closes the channel and runs {@link NioSocketServer#onDisconnect}
+		 */
+		void close(DisconnectReason reason) {
+			if (closed.compareAndSet(false, true)) {
+				metrics.closed(reason);
+				connections.remove(address);
+				if (key != null) {
+					key.cancel();
+				}
+				onDisconnect.run(channel.socket());
+				try {
+					channel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				synchronized (this) {
+					PooledBuffer pooled;
+					while ((pooled = pending.poll()) != null) {
+						pooled.release();
+					}
+					pendingBytes = 0;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package nohorjo.socket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nohorjo.common.CallbackFuture;
+import nohorjo.common.HashedTimingWheel;
+import nohorjo.delegation.Action;
+
+/**
+ * Makes request/response calls over a single {@link SocketClient}. Each
+ * request is framed with a 4 byte correlation id ahead of its data, and the
+ * peer, such as a {@link RequestServer}, replies with the same id, so any
+ * number of requests can be in flight at once and replies can arrive in any
+ * order
+ * 
+ * @author muhammed
+ *
+ */
+public class RequestClient implements Closeable {
+	static final int ID_LENGTH = 4;
+
+	private final SocketClient client;
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final ConcurrentMap<Integer, Request> pending = new ConcurrentHashMap<>();
+	private FrameCodec frameCodec = new VarintFrameCodec();
+	private long timeoutMillis = 30000;
+	private Action onDisconnect;
+
+	/**
+	 * Creates a client that connects to a socket
+	 * 
+	 * @param address
+	 *            the IP address of the target
+	 * @param port
+	 *            the port to connect to
+	 * @throws UnknownHostException
+	 *             if the address cannot be resolved
+	 * @throws IOException
+	 *             on socket errors
+	 */
+	public RequestClient(String address, int port) throws UnknownHostException, IOException {
+		this(new SocketClient(address, port));
+	}
+
+	/**
+	 * Creates a client over a connection that has not been connected yet
+	 * 
+	 * @param client
+	 *            the connection, which this sets the actions and frame codec
+	 *            of
+	 */
+	public RequestClient(SocketClient client) {
+		this.client = client;
+	}
+
+	/**
+	 * Sets the codec used to frame messages, which must match the peer's.
+	 * Defaults to {@link VarintFrameCodec}. Must be called before
+	 * {@link #connect()}
+	 * 
+	 * @param frameCodec
+	 *            the codec
+	 */
+	public void setFrameCodec(FrameCodec frameCodec) {
+		if (frameCodec == null) {
+			throw new NullPointerException("Requests need a frame codec");
+		}
+		this.frameCodec = frameCodec;
+	}
+
+	/**
+	 * Sets how long {@link #request(byte...)} waits for a reply before failing
+	 * 
+	 * @param timeoutMillis
+	 *            the timeout
+	 */
+	public void setTimeout(long timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Sets an action to run when the connection closes, after the requests
+	 * still waiting have failed
+	 * 
+	 * @param onDisconnect
+	 *            takes arguments ({@link java.net.Socket} = the socket that it
+	 *            disconnected from)
+	 */
+	public void setOnDisconnect(Action onDisconnect) {
+		this.onDisconnect = onDisconnect;
+	}
+
+	/**
+	 * Connects the underlying {@link SocketClient}
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void connect() throws IOException {
+		client.setFrameCodec(frameCodec);
+		client.setActions(new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				receive((byte[]) args[0], (int) args[1], (int) args[2]);
+				return null;
+			}
+		}, new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				IOException closed = new IOException("Connection closed");
+				for (Integer id : pending.keySet()) {
+					Request request = pending.remove(id);
+					if (request != null) {
+						request.fail(closed);
+					}
+				}
+				return onDisconnect == null ? null : onDisconnect.run(args);
+			}
+		});
+		client.connect();
+	}
+
+	/**
+	 * Sends a request with the default timeout
+	 * 
+	 * @param data
+	 *            the request
+	 * @return a future completed with the reply
+	 * @throws IOException
+	 *             if sending fails
+	 */
+	public CallbackFuture<byte[]> request(byte... data) throws IOException {
+		return request(timeoutMillis, data);
+	}
+
+	/**
+	 * Sends a request. The future fails with a {@link SocketTimeoutException}
+	 * if no reply arrives in time, or an {@link IOException} if the
+	 * connection closes first. Cancelling it stops waiting for the reply
+	 * 
+	 * @param timeoutMillis
+	 *            how long to wait for the reply
+	 * @param data
+	 *            the request
+	 * @return a future completed with the reply
+	 * @throws IOException
+	 *             if sending fails
+	 */
+	public CallbackFuture<byte[]> request(final long timeoutMillis, byte... data) throws IOException {
+		if (!client.isAlive()) {
+			throw new IOException("Connection is not alive");
+		}
+		final int id = nextId.getAndIncrement();
+		final Request request = new Request(id);
+		pending.put(id, request);
+		request.timeout = HashedTimingWheel.getDefault().schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				if (pending.remove(id, request)) {
+					request.fail(new SocketTimeoutException("No reply to request " + id + " within "
+							+ timeoutMillis + "ms"));
+				}
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+
+		byte[] message = new byte[ID_LENGTH + data.length];
+		writeId(message, id);
+		System.arraycopy(data, 0, message, ID_LENGTH, data.length);
+		try {
+			client.send(message);
+		} catch (IOException e) {
+			pending.remove(id);
+			request.timeout.cancel();
+			throw e;
+		}
+		// closed after the check above, perhaps failing the pending requests
+		// before this one was added
+		if (!client.isAlive() && pending.remove(id, request)) {
+			request.timeout.cancel();
+			request.fail(new IOException("Connection closed"));
+		}
+		return request;
+	}
+
+	/**
+	 * Gets the number of requests waiting for a reply
+	 * 
+	 * @return the number of requests
+	 */
+	public int getInFlight() {
+		return pending.size();
+	}
+
+	/**
+	 * Gets the underlying connection, such as for its metrics
+	 * 
+	 * @return the {@link SocketClient}
+	 */
+	public SocketClient getClient() {
+		return client;
+	}
+
+	/**
+	 * Closes the connection, failing the requests still waiting
+	 */
+	@Override
+	public void close() throws IOException {
+		client.close();
+	}
+
+	/**
+	 * Completes the request a reply is for. Replies to requests that have
+	 * timed out or been cancelled are dropped
+	 */
+	private void receive(byte[] frame, int offset, int length) {
+		if (length < ID_LENGTH) {
+			return;
+		}
+		Request request = pending.remove(readId(frame, offset));
+		if (request != null) {
+			request.timeout.cancel();
+			request.complete(Arrays.copyOfRange(frame, offset + ID_LENGTH, offset + length));
+		}
+	}
+
+	static void writeId(byte[] message, int id) {
+		message[0] = (byte) (id >>> 24);
+		message[1] = (byte) (id >>> 16);
+		message[2] = (byte) (id >>> 8);
+		message[3] = (byte) id;
+	}
+
+	static int readId(byte[] message, int offset) {
+		return (message[offset] & 0xff) << 24 | (message[offset + 1] & 0xff) << 16
+				| (message[offset + 2] & 0xff) << 8 | message[offset + 3] & 0xff;
+	}
+
+	/**
+	 * A request waiting for its reply
+	 */
+	private class Request extends CallbackFuture<byte[]> {
+		private volatile HashedTimingWheel.Timeout timeout;
+
+		private Request(final int id) {
+			super(new Runnable() {
+
+				@Override
+				public void run() {
+					Request request = pending.remove(id);
+					if (request != null) {
+						request.timeout.cancel();
+					}
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package nohorjo.socket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import nohorjo.delegation.Action;
+
+/**
+ * Answers requests from {@link RequestClient}s. Each reply is sent with the
+ * correlation id of its request
+ * 
+ * @author muhammed
+ *
+ */
+public class RequestServer implements Closeable {
+	private final SocketServer server;
+	private FrameCodec frameCodec = new VarintFrameCodec();
+	private Executor handlerExecutor;
+	private Action handler;
+
+	/**
+	 * Constructs a server on the port
+	 * 
+	 * @param port
+	 *            the port to listen to
+	 */
+	public RequestServer(int port) {
+		this(port, null);
+	}
+
+	/**
+	 * Constructs a server on the port whose connections run on an executor
+	 * 
+	 * @param port
+	 *            the port to listen to
+	 * @param executor
+	 *            the executor, or null to start a thread for each connection
+	 * @see SocketServer#SocketServer(int, ExecutorService)
+	 */
+	public RequestServer(int port, ExecutorService executor) {
+		server = new SocketServer(port, executor);
+	}
+
+	/**
+	 * Sets what answers requests. Must be called before {@link #start()}
+	 * 
+	 * @param handler
+	 *            takes arguments ({@code byte[]} = the request, {@link String}
+	 *            = socket address), returns the {@code byte[]} reply, or null
+	 *            to send none and let the request time out. If it throws, the
+	 *            connection is closed so the client's requests fail at once
+	 *            rather than timing out
+	 */
+	public void setHandler(Action handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Sets the codec used to frame messages, which must match the clients'.
+	 * Defaults to {@link VarintFrameCodec}
+	 * 
+	 * @param frameCodec
+	 *            the codec
+	 */
+	public void setFrameCodec(FrameCodec frameCodec) {
+		if (frameCodec == null) {
+			throw new NullPointerException("Requests need a frame codec");
+		}
+		this.frameCodec = frameCodec;
+	}
+
+	/**
+	 * Makes requests be handled on an executor instead of the connection's
+	 * reader, so a slow request doesn't hold up the ones behind it and
+	 * replies can go out in a different order to the requests
+	 * 
+	 * @param handlerExecutor
+	 *            the executor, or null to handle requests in order on the
+	 *            reader
+	 */
+	public void setHandlerExecutor(Executor handlerExecutor) {
+		this.handlerExecutor = handlerExecutor;
+	}
+
+	/**
+	 * Gets the underlying server, to configure it before {@link #start()} or
+	 * for its metrics
+	 * 
+	 * @return the {@link SocketServer}
+	 */
+	public SocketServer getServer() {
+		return server;
+	}
+
+	/**
+	 * Starts listening
+	 * 
+	 * @throws IOException
+	 *             if an I/O error occurs when opening the socket
+	 */
+	public void start() throws IOException {
+		if (handler == null) {
+			throw new NullPointerException("Must define through setHandler(): handler");
+		}
+		Action none = new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				return null;
+			}
+		};
+		server.setFrameCodec(frameCodec);
+		server.setActions(new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				byte[] frame = (byte[]) args[0];
+				int offset = (int) args[1];
+				int length = (int) args[2];
+				if (length < RequestClient.ID_LENGTH) {
+					return null;
+				}
+				final int id = RequestClient.readId(frame, offset);
+				final byte[] request = Arrays.copyOfRange(frame, offset + RequestClient.ID_LENGTH, offset + length);
+				final String address = (String) args[3];
+				if (handlerExecutor == null) {
+					handle(id, request, address);
+				} else {
+					handlerExecutor.execute(new Runnable() {
+
+						@Override
+						public void run() {
+							handle(id, request, address);
+						}
+					});
+				}
+				return null;
+			}
+		}, none, none);
+		server.start();
+	}
+
+	/**
+	 * Runs the handler and sends its reply
+	 */
+	private void handle(int id, byte[] request, String address) {
+		byte[] reply;
+		try {
+			reply = (byte[]) handler.run(request, address);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			try {
+				server.disconnect(address);
+			} catch (IOException ex) {
+				// already gone
+			}
+			return;
+		}
+		if (reply == null) {
+			return;
+		}
+		byte[] message = new byte[RequestClient.ID_LENGTH + reply.length];
+		RequestClient.writeId(message, id);
+		System.arraycopy(reply, 0, message, RequestClient.ID_LENGTH, reply.length);
+		try {
+			server.send(address, message);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Closes all connections and the server
+	 */
+	@Override
+	public void close() throws IOException {
+		server.close();
+	}
+}
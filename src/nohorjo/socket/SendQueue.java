@@ -0,0 +1,223 @@
+package nohorjo.socket;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nohorjo.common.BufferPool;
+import nohorjo.common.PooledBuffer;
+
+/**
+ * Bounded outbound queue of a {@link SocketClient} and the writer that drains
+ * it, coalescing queued messages into gathering writes
+ * 
+ * @author muhammed
+ *
+ */
+class SendQueue implements Runnable {
+	private static final int MAX_BATCH_MESSAGES = 64;
+	private static final int MAX_BATCH_BYTES = 64 * 1024;
+	private static final long POLL_MILLIS = 100;
+	/**
+	 * Queued by {@link #stop()} to wake the writer. From a pool of its own so
+	 * it never counts against the default one
+	 */
+	private static final PooledBuffer STOP = new BufferPool().allocate(0);
+
+	private final SocketClient client;
+	private final BlockingQueue<PooledBuffer> queue;
+	private final long flushWindowMillis;
+	private final BackpressurePolicy policy;
+	private final AtomicLong offered = new AtomicLong();
+	private final AtomicLong retired = new AtomicLong();
+
+	SendQueue(SocketClient client, int capacity, long flushWindowMillis, BackpressurePolicy policy) {
+		this.client = client;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.flushWindowMillis = flushWindowMillis;
+		this.policy = policy;
+	}
+
+	/**
+	 * Queues a message, applying the {@link BackpressurePolicy} if full. The
+	 * queue takes over the caller's reference to the buffer, releasing it once
+	 * written, dropped or refused
+	 * 
+	 * @throws SocketException
+	 *             if the client has closed, before or while queueing
+	 */
+	void offer(PooledBuffer data) throws IOException {
+		if (!client.isAlive()) {
+			data.release();
+			throw new SocketException("Connection is no longer alive");
+		}
+		SocketMetrics metrics = client.getMetrics();
+		offered.incrementAndGet();
+		try {
+			switch (policy) {
+			case BLOCK:
+				try {
+					while (!queue.offer(data, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+						if (!client.isAlive()) {
+							throw new SocketException("Connection is no longer alive");
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				break;
+			case DROP_OLDEST:
+				while (!queue.offer(data)) {
+					PooledBuffer oldest = queue.poll();
+					if (oldest != null) {
+						oldest.release();
+						metrics.dropped();
+						metrics.queued(-1);
+						retired.incrementAndGet();
+					}
+				}
+				break;
+			case DISCONNECT:
+				if (!queue.offer(data)) {
+					client.close(DisconnectReason.SEND_QUEUE_FULL);
+					throw new SocketException("Send queue full, disconnected");
+				}
+				break;
+			}
+		} catch (IOException e) {
+			offered.decrementAndGet();
+			data.release();
+			throw e;
+		}
+		metrics.queued(1);
+		if (!client.isAlive()) {
+			// closed while queueing, perhaps after stop() had emptied the queue
+			discard();
+			throw new SocketException("Connection is no longer alive");
+		}
+	}
+
+	/**
+	 * Waits until everything queued before the call has been written or
+	 * dropped
+	 */
+	void awaitFlushed() throws IOException {
+		long target = offered.get();
+		synchronized (this) {
+			while (retired.get() < target) {
+				if (!client.isAlive()) {
+					throw new SocketException("Connection is no longer alive");
+				}
+				try {
+					wait(POLL_MILLIS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of messages waiting to be written
+	 */
+	int depth() {
+		return queue.size();
+	}
+
+	/**
+	 * Releases anything still queued
+	 */
+	private void discard() {
+		List<PooledBuffer> discarded = new ArrayList<>();
+		queue.drainTo(discarded);
+		int released = 0;
+		for (PooledBuffer buffer : discarded) {
+			if (buffer != STOP) {
+				buffer.release();
+				released++;
+			}
+		}
+		client.getMetrics().queued(-released);
+	}
+
+	/**
+	 * Discards anything still queued and wakes the writer so it sees the
+	 * client has closed. The writer is woken with a message rather than an
+	 * interrupt, which could land on whatever task its pooled thread runs
+	 * next. If senders refill the queue first the writer still sees the
+	 * client has closed within its poll
+	 */
+	void stop() {
+		discard();
+		queue.offer(STOP);
+	}
+
+	/**
+	 * While the client is alive, waits for a message then collects whatever
+	 * else arrives within the flush window and writes the lot at once
+	 */
+	@Override
+	public void run() {
+		List<PooledBuffer> batch = new ArrayList<>(MAX_BATCH_MESSAGES);
+		try {
+			while (client.isAlive()) {
+				PooledBuffer first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (first == null || first == STOP) {
+					continue;
+				}
+				batch.add(first);
+				int bytes = first.buffer().remaining();
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushWindowMillis);
+				while (batch.size() < MAX_BATCH_MESSAGES && bytes < MAX_BATCH_BYTES) {
+					PooledBuffer next = queue.poll();
+					if (next == null) {
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0 || (next = queue.poll(remaining, TimeUnit.NANOSECONDS)) == null) {
+							break;
+						}
+					}
+					if (next == STOP) {
+						break;
+					}
+					batch.add(next);
+					bytes += next.buffer().remaining();
+				}
+				ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+				for (int i = 0; i < buffers.length; i++) {
+					// broadcasts share a buffer between queues
+					buffers[i] = batch.get(i).buffer().duplicate();
+				}
+				client.getMetrics().queued(-buffers.length);
+				try {
+					client.write(buffers, bytes);
+				} finally {
+					for (PooledBuffer buffer : batch) {
+						buffer.release();
+					}
+					batch.clear();
+				}
+				retired.addAndGet(buffers.length);
+				synchronized (this) {
+					notifyAll();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			client.close(DisconnectReason.ERROR, e);
+		} finally {
+			for (PooledBuffer buffer : batch) {
+				buffer.release();
+			}
+		}
+	}
+}
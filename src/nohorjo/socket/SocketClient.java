@@ -5,10 +5,33 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
+import nohorjo.common.BufferPool;
+import nohorjo.common.HashedTimingWheel;
+import nohorjo.common.PooledBuffer;
+import nohorjo.common.TokenBucket;
 import nohorjo.delegation.Action;
 
 /**
@@ -19,10 +42,74 @@ import nohorjo.delegation.Action;
  *
  */
 public class SocketClient implements Closeable, Runnable {
+	private static final int DEFAULT_FRAME_CHUNK_SIZE = 8192;
+	private static final long FILE_CHUNK_SIZE = 1024 * 1024;
+	private static final int FILE_COPY_BUFFER_SIZE = 64 * 1024;
+
 	private Socket socket;
+	private SocketChannel channel;
+	// not a monitor, so a virtual thread blocked writing doesn't pin its carrier
+	private final ReentrantLock writeLock = new ReentrantLock();
 	private DataInputStream dis;
 	private DataOutputStream dos;
-	private boolean alive;
+	private volatile boolean alive;
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private SocketMetrics metrics = new SocketMetrics();
+	private String address;
+	private int chunkSize;
+	private FrameCodec frameCodec;
+	private FrameDecoder frameDecoder;
+	private int sendQueueCapacity;
+	private long flushWindowMillis;
+	private BackpressurePolicy backpressurePolicy;
+	private SendQueue sendQueue;
+	private Executor executor;
+	private long readIdleMillis;
+	private long writeIdleMillis;
+	private long heartbeatMillis;
+	private byte[] heartbeat;
+	private long writeTimeoutMillis;
+	private volatile long lastRead;
+	private volatile long lastWrite;
+	private volatile long writeStarted;
+	private final List<IdleCheck> idleChecks = new ArrayList<>();
+	private long bytesPerSecond;
+	private long messagesPerSecond;
+	private TokenBucket byteLimit;
+	private TokenBucket messageLimit;
+	private TokenBucket serverByteLimit;
+	private TokenBucket serverMessageLimit;
+	private final ShareClock byteShare = new ShareClock();
+	private final ShareClock messageShare = new ShareClock();
+	private SocketMetrics serverMetrics;
+	private FairDispatcher dispatcher;
+	private FairDispatcher.Flow flow;
+	private int readMessages;
+	private volatile Thread reader;
+	private final Queue<byte[]> broadcasts = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger broadcastDepth = new AtomicInteger();
+	private final AtomicBoolean broadcastScheduled = new AtomicBoolean();
+	private Executor broadcastExecutor;
+	private final Runnable broadcastWriter = new Runnable() {
+
+		@Override
+		public void run() {
+			byte[] data;
+			try {
+				while ((data = broadcasts.poll()) != null) {
+					broadcastDepth.decrementAndGet();
+					write(data);
+				}
+			} catch (IOException e) {
+				broadcasts.clear();
+				close(DisconnectReason.ERROR, e);
+			}
+			broadcastScheduled.set(false);
+			if (!broadcasts.isEmpty() && broadcastScheduled.compareAndSet(false, true)) {
+				broadcastExecutor.execute(this);
+			}
+		}
+	};
 	private Action onReceive;
 	private Action onDisconnect;
 
@@ -39,7 +126,27 @@ public class SocketClient implements Closeable, Runnable {
 	 *             on socket errors
 	 */
 	public SocketClient(String address, int port) throws UnknownHostException, IOException {
-		this(new Socket(address, port));
+		this(address, port, null);
+	}
+
+	/**
+	 * Creates a client that connects to a socket, running its threads on an
+	 * executor
+	 * 
+	 * @param address
+	 *            the IP address of the target
+	 * @param port
+	 *            the port to connect to
+	 * @param executor
+	 *            runs the reader and writer, such as one from
+	 *            {@link SocketExecutors}, or null to start a thread for each
+	 * @throws UnknownHostException
+	 *             if the address cannot be resolved
+	 * @throws IOException
+	 *             on socket errors
+	 */
+	public SocketClient(String address, int port, Executor executor) throws UnknownHostException, IOException {
+		this(SocketChannel.open(new InetSocketAddress(InetAddress.getByName(address), port)).socket(), executor);
 	}
 
 	/**
@@ -49,7 +156,22 @@ public class SocketClient implements Closeable, Runnable {
 	 *            the connection
 	 */
 	public SocketClient(Socket socket) {
+		this(socket, null);
+	}
+
+	/**
+	 * Creates a client based on a socket connection, running its threads on
+	 * an executor
+	 * 
+	 * @param socket
+	 *            the connection
+	 * @param executor
+	 *            runs the reader and writer, such as one from
+	 *            {@link SocketExecutors}, or null to start a thread for each
+	 */
+	public SocketClient(Socket socket, Executor executor) {
 		this.socket = socket;
+		this.executor = executor;
 	}
 
 	/**
@@ -57,8 +179,11 @@ public class SocketClient implements Closeable, Runnable {
 	 * 
 	 * @param onReceive
 	 *            takes arguments ({@link Byte} = data received, {@link String}
-	 *            = socket address), defines the action on receiving data from
-	 *            the socket
+	 *            = socket address), or if a chunk size is set ({@code byte[]}
+	 *            = buffer, {@link Integer} = offset, {@link Integer} = length,
+	 *            {@link String} = socket address), or if a frame codec is set
+	 *            the same with one whole message per call, defines the action
+	 *            on receiving data from the socket
 	 * @param onDisconnect
 	 *            takes arguments ({@link Socket} = the socket that it
 	 *            disconnected from), defines the action on disconnecting from
@@ -69,6 +194,154 @@ public class SocketClient implements Closeable, Runnable {
 		this.onDisconnect = onDisconnect;
 	}
 
+	/**
+	 * Sets the size of the buffer data is read into. When greater than 0,
+	 * {@link #onReceive} is run once per read with a slice of a reused buffer
+	 * rather than once per byte, so must not hold on to the buffer after it
+	 * returns. Must be called before {@link #connect()}
+	 * 
+	 * @param chunkSize
+	 *            the buffer size, or 0 to deliver single bytes
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Sets the codec used to frame messages. Once set {@link #onReceive} is run
+	 * once per whole message and {@link #send(byte...)} writes each call as a
+	 * frame. Must be called before {@link #connect()}
+	 * 
+	 * @param frameCodec
+	 *            the codec, or null to pass raw bytes
+	 */
+	public void setFrameCodec(FrameCodec frameCodec) {
+		this.frameCodec = frameCodec;
+	}
+
+	/**
+	 * Makes {@link #send(byte...)} queue messages for a writer thread instead
+	 * of writing on the caller's thread. The writer coalesces messages queued
+	 * within the flush window into a single gathering write. Must be called
+	 * before {@link #connect()}
+	 * 
+	 * @param queueCapacity
+	 *            the most messages to hold before applying the policy
+	 * @param flushWindowMillis
+	 *            how long the writer waits for more messages before writing,
+	 *            0 to write whatever is already queued
+	 * @param backpressurePolicy
+	 *            what to do when the queue is full
+	 */
+	public void setAsyncSend(int queueCapacity, long flushWindowMillis, BackpressurePolicy backpressurePolicy) {
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("Queue capacity must be at least 1");
+		}
+		this.sendQueueCapacity = queueCapacity;
+		this.flushWindowMillis = flushWindowMillis;
+		this.backpressurePolicy = backpressurePolicy;
+	}
+
+	/**
+	 * Sets how long the connection may go without reading or writing before
+	 * it is closed with {@link DisconnectReason#IDLE_TIMEOUT}. The checks are
+	 * run by {@link HashedTimingWheel#getDefault()}, so are accurate to its
+	 * tick. Must be called before {@link #connect()}
+	 * 
+	 * @param readIdleMillis
+	 *            the longest time without receiving anything, catching peers
+	 *            that have gone away without closing, or 0 for no limit
+	 * @param writeIdleMillis
+	 *            the longest time without completing a write, or 0 for no
+	 *            limit. With a heartbeat set this catches writes stuck on a
+	 *            peer that has stopped reading
+	 */
+	public void setIdleTimeout(long readIdleMillis, long writeIdleMillis) {
+		if (readIdleMillis < 0 || writeIdleMillis < 0) {
+			throw new IllegalArgumentException("Idle timeouts cannot be negative");
+		}
+		this.readIdleMillis = readIdleMillis;
+		this.writeIdleMillis = writeIdleMillis;
+	}
+
+	/**
+	 * Limits how fast the connection reads. Once over either limit the reader
+	 * pauses, leaving the peer's data in the socket buffers until it is back
+	 * under, so a peer sending too fast is slowed by TCP flow control rather
+	 * than dropped. Each limit allows a burst of a second's worth. Must be
+	 * called before {@link #connect()}
+	 * 
+	 * @param bytesPerSecond
+	 *            the most bytes to read a second, or 0 for no limit
+	 * @param messagesPerSecond
+	 *            the most messages to receive a second, or 0 for no limit.
+	 *            Messages are frames when a frame codec is set, otherwise
+	 *            reads
+	 */
+	public void setRateLimit(long bytesPerSecond, long messagesPerSecond) {
+		if (bytesPerSecond < 0 || messagesPerSecond < 0) {
+			throw new IllegalArgumentException("Rate limits cannot be negative");
+		}
+		this.bytesPerSecond = bytesPerSecond;
+		this.messagesPerSecond = messagesPerSecond;
+	}
+
+	/**
+	 * Sets limits shared with every other connection of a server, either of
+	 * which may be null
+	 */
+	void setServerRateLimits(TokenBucket bytes, TokenBucket messages) {
+		this.serverByteLimit = bytes;
+		this.serverMessageLimit = messages;
+	}
+
+	/**
+	 * Runs {@link #onReceive} on a dispatcher's workers rather than the reader
+	 */
+	void setDispatcher(FairDispatcher dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * Makes the connection send a heartbeat whenever it has written nothing
+	 * for the interval, so a peer with a read idle timeout keeps it open. The
+	 * heartbeat goes through {@link #send(byte...)}, so is framed like any
+	 * other message and the peer's onReceive sees it. Must be called before
+	 * {@link #connect()}
+	 * 
+	 * @param intervalMillis
+	 *            the time without writing before a heartbeat is sent, or 0 to
+	 *            send none
+	 * @param payload
+	 *            the message to send
+	 */
+	public void setHeartbeat(long intervalMillis, byte... payload) {
+		if (intervalMillis < 0) {
+			throw new IllegalArgumentException("Heartbeat interval cannot be negative");
+		}
+		this.heartbeatMillis = intervalMillis;
+		this.heartbeat = payload.clone();
+	}
+
+	/**
+	 * Sets how long a single write may block on a peer that has stopped
+	 * reading before the connection is closed with
+	 * {@link DisconnectReason#WRITE_TIMEOUT}, which frees the writing thread.
+	 * Unlike the write idle timeout it only runs while a write is under way.
+	 * The check is run by {@link HashedTimingWheel#getDefault()}, so is
+	 * accurate to its tick. Must be called before {@link #connect()}
+	 * 
+	 * @param writeTimeoutMillis
+	 *            the longest a write may go without progress, or 0 for no
+	 *            limit
+	 */
+	public void setWriteTimeout(long writeTimeoutMillis) {
+		if (writeTimeoutMillis < 0) {
+			throw new IllegalArgumentException("Write timeout cannot be negative");
+		}
+		this.writeTimeoutMillis = writeTimeoutMillis;
+	}
+
 	/**
 	 * Initialized the IO and listeners for the socket. Must call
 	 * {@link #setActions(Action, Action)} before this
@@ -91,13 +364,82 @@ public class SocketClient implements Closeable, Runnable {
 		}
 
 		alive = true;
+		metrics.accepted();
+		address = socket.getRemoteSocketAddress().toString();
+		frameDecoder = frameCodec == null ? null : frameCodec.newDecoder();
+		byteLimit = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, bytesPerSecond) : null;
+		messageLimit = messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond, messagesPerSecond) : null;
+		if (dispatcher != null) {
+			flow = dispatcher.newFlow(onReceive, metrics);
+			onReceive = new Action() {
+
+				@Override
+				public Object run(Object... args) {
+					if (args.length == 2) {
+						flow.dispatch(1, args);
+					} else {
+						// the reader reuses its buffer, so the workers get a copy
+						int offset = (int) args[1];
+						int length = (int) args[2];
+						flow.dispatch(length, Arrays.copyOfRange((byte[]) args[0], offset, offset + length), 0,
+								length, args[3]);
+					}
+					return null;
+				}
+			};
+		}
+		if (frameDecoder != null) {
+			final Action onFrame = onReceive;
+			onReceive = new Action() {
+
+				@Override
+				public Object run(Object... args) {
+					metrics.receivedMessage();
+					readMessages++;
+					return onFrame.run(args);
+				}
+			};
+		}
+		channel = socket.getChannel();
 		dis = new DataInputStream(socket.getInputStream());
 		dos = new DataOutputStream(socket.getOutputStream());
-		new Thread(this).start();
+		if (sendQueueCapacity > 0) {
+			sendQueue = new SendQueue(this, sendQueueCapacity, flushWindowMillis, backpressurePolicy);
+			execute(sendQueue, "SocketClient-writer-" + address);
+		}
+		lastRead = lastWrite = System.nanoTime();
+		if (readIdleMillis > 0) {
+			idleChecks.add(new IdleCheck(true, readIdleMillis, false));
+		}
+		if (writeIdleMillis > 0) {
+			idleChecks.add(new IdleCheck(false, writeIdleMillis, false));
+		}
+		if (heartbeatMillis > 0) {
+			idleChecks.add(new IdleCheck(false, heartbeatMillis, true));
+		}
+		if (writeTimeoutMillis > 0) {
+			idleChecks.add(new WriteCheck(writeTimeoutMillis));
+		}
+		for (IdleCheck idleCheck : idleChecks) {
+			idleCheck.schedule(idleCheck.timeoutNanos);
+		}
+		execute(this, "SocketClient-" + address);
+	}
+
+	/**
+	 * Runs a task on the executor, or a new thread if there isn't one
+	 */
+	private void execute(Runnable task, String threadName) {
+		if (executor != null) {
+			executor.execute(task);
+		} else {
+			new Thread(task, threadName).start();
+		}
 	}
 
 	/**
-	 * Send the byte array down the output stream
+	 * Send the byte array down the output stream, as a single frame if a frame
+	 * codec is set
 	 * 
 	 * @param data
 	 *            the byte array to send
@@ -105,8 +447,260 @@ public class SocketClient implements Closeable, Runnable {
 	 *             if an I/O error occurs
 	 */
 	public void send(byte... data) throws IOException {
-		dos.write(data);
-		dos.flush();
+		if (frameCodec != null) {
+			data = frameCodec.encode(data, 0, data.length);
+		}
+		if (sendQueue != null) {
+			sendEncoded(BufferPool.getDefault().copyOf(data, 0, data.length));
+		} else {
+			metrics.sentMessage();
+			write(data);
+		}
+	}
+
+	/**
+	 * Queues data that has already been framed on the send queue, which must
+	 * exist
+	 * 
+	 * @param data
+	 *            the bytes to send as they are. The queue takes over this
+	 *            reference to the buffer
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	void sendEncoded(PooledBuffer data) throws IOException {
+		metrics.sentMessage();
+		sendQueue.offer(data);
+	}
+
+	/**
+	 * Writes data that has already been framed on the caller's thread
+	 * 
+	 * @param data
+	 *            the bytes to send as they are
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	void sendEncoded(byte[] data) throws IOException {
+		metrics.sentMessage();
+		write(data);
+	}
+
+	/**
+	 * Sends data that has already been framed on a shared executor rather
+	 * than the caller's thread, keeping the order of calls. Used to fan a
+	 * broadcast out without a slow peer holding up the rest. A peer that
+	 * falls more than the backlog behind is disconnected with
+	 * {@link DisconnectReason#SEND_QUEUE_FULL}
+	 * 
+	 * @param data
+	 *            the bytes to send as they are
+	 * @param executor
+	 *            runs the writes
+	 * @param backlog
+	 *            the most messages to hold for the connection
+	 */
+	void sendEncoded(byte[] data, Executor executor, int backlog) {
+		if (!alive) {
+			return;
+		}
+		if (broadcastDepth.incrementAndGet() > backlog) {
+			broadcastDepth.decrementAndGet();
+			close(DisconnectReason.SEND_QUEUE_FULL, new SocketException("Broadcast backlog full, disconnected"));
+			return;
+		}
+		metrics.sentMessage();
+		broadcastExecutor = executor;
+		broadcasts.add(data);
+		if (broadcastScheduled.compareAndSet(false, true)) {
+			executor.execute(broadcastWriter);
+		}
+	}
+
+	/**
+	 * Writes data on the caller's thread. With a channel it is copied through
+	 * a pooled direct buffer at most {@link BufferPool#MAX_POOLED_SIZE} at a
+	 * time, rather than leaving the channel to copy the whole array into a
+	 * temporary direct buffer of its own
+	 * 
+	 * @param data
+	 *            the bytes to write as they are
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	void write(byte[] data) throws IOException {
+		writeLock.lock();
+		try {
+			long start = System.nanoTime();
+			writeStarted = start;
+			try {
+				if (channel != null) {
+					PooledBuffer pooled = BufferPool.getDefault().allocate(Math.min(data.length,
+							BufferPool.MAX_POOLED_SIZE));
+					try {
+						ByteBuffer buffer = pooled.buffer();
+						for (int offset = 0; offset < data.length; offset += buffer.capacity()) {
+							buffer.clear();
+							buffer.put(data, offset, Math.min(buffer.capacity(), data.length - offset)).flip();
+							while (buffer.hasRemaining()) {
+								channel.write(buffer);
+							}
+						}
+					} finally {
+						pooled.release();
+					}
+				} else {
+					dos.write(data);
+					dos.flush();
+				}
+			} finally {
+				writeStarted = 0;
+			}
+			lastWrite = System.nanoTime();
+			metrics.wrote(data.length, lastWrite - start);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes several buffers at once, with a gathering write if the socket
+	 * has a channel, otherwise by copying them into a single write
+	 * 
+	 * @param buffers
+	 *            the buffers to write
+	 * @param length
+	 *            the total bytes remaining in the buffers
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	void write(ByteBuffer[] buffers, int length) throws IOException {
+		writeLock.lock();
+		try {
+			long start = System.nanoTime();
+			writeStarted = start;
+			try {
+				if (channel != null) {
+					long written = 0;
+					while (written < length) {
+						written += channel.write(buffers);
+					}
+				} else {
+					byte[] data = new byte[length];
+					int offset = 0;
+					for (ByteBuffer buffer : buffers) {
+						int remaining = buffer.remaining();
+						buffer.get(data, offset, remaining);
+						offset += remaining;
+					}
+					dos.write(data);
+					dos.flush();
+				}
+			} finally {
+				writeStarted = 0;
+			}
+			lastWrite = System.nanoTime();
+			metrics.wrote(length, lastWrite - start);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends part of a file as raw bytes. If the socket has a channel the
+	 * kernel copies the file straight to the socket with
+	 * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+	 * otherwise it is copied through a small buffer, so the file is never
+	 * loaded onto the heap. With asynchronous sends, everything already queued
+	 * is written first. Cannot be used with a frame codec, as the file is not
+	 * framed
+	 * 
+	 * @param path
+	 *            the file
+	 * @param offset
+	 *            the position in the file to start from
+	 * @param length
+	 *            the number of bytes to send
+	 * @throws EOFException
+	 *             if the file ends before length bytes
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	public void sendFile(Path path, long offset, long length) throws IOException {
+		if (frameCodec != null) {
+			throw new IllegalStateException("Files cannot be sent through a frame codec");
+		}
+		if (offset < 0 || length < 0) {
+			throw new IllegalArgumentException("Offset and length cannot be negative");
+		}
+		if (sendQueue != null) {
+			sendQueue.awaitFlushed();
+		}
+		try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+			writeLock.lock();
+			try {
+				long start = System.nanoTime();
+				writeStarted = start;
+				try {
+					long sent = 0;
+					ByteBuffer buffer = channel == null ? ByteBuffer.allocate(FILE_COPY_BUFFER_SIZE) : null;
+					while (sent < length) {
+						long position = offset + sent;
+						long count = Math.min(FILE_CHUNK_SIZE, length - sent);
+						long written;
+						if (channel != null) {
+							written = file.transferTo(position, count, channel);
+						} else {
+							buffer.clear();
+							buffer.limit((int) Math.min(buffer.capacity(), count));
+							written = Math.max(file.read(buffer, position), 0);
+							dos.write(buffer.array(), 0, (int) written);
+						}
+						if (written == 0 && position >= file.size()) {
+							throw new EOFException(path + " ended before " + length + " bytes were sent");
+						}
+						sent += written;
+						lastWrite = System.nanoTime();
+					}
+					if (channel == null) {
+						dos.flush();
+					}
+				} finally {
+					writeStarted = 0;
+				}
+				metrics.sentMessage();
+				metrics.wrote(length, System.nanoTime() - start);
+			} finally {
+				writeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of messages waiting in the send queue
+	 * 
+	 * @return the queue depth, always 0 if sends are not asynchronous
+	 */
+	public int getQueueDepth() {
+		return sendQueue == null ? 0 : sendQueue.depth();
+	}
+
+	/**
+	 * Gets the metrics of this connection
+	 * 
+	 * @return the {@link SocketMetrics}
+	 */
+	public SocketMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Makes this connection's metrics add to its server's. Must be called
+	 * before {@link #connect()}
+	 */
+	void setServerMetrics(SocketMetrics serverMetrics) {
+		this.serverMetrics = serverMetrics;
+		metrics = new SocketMetrics(serverMetrics);
 	}
 
 	/**
@@ -114,31 +708,163 @@ public class SocketClient implements Closeable, Runnable {
 	 */
 	@Override
 	public void run() {
+		reader = Thread.currentThread();
+		byte[] buffer = null;
+		if (chunkSize > 0) {
+			buffer = new byte[chunkSize];
+		} else if (frameDecoder != null) {
+			buffer = new byte[DEFAULT_FRAME_CHUNK_SIZE];
+		}
 		while (alive) {
 			try {
 				while (!socket.isClosed() && socket.isBound() && socket.isConnected()) {
-					onReceive.run(dis.readByte(), socket.getRemoteSocketAddress().toString());
-				}
-			} catch (SocketException | EOFException e) {
-				try {
-					close();
-				} catch (Exception e2) {
-					e.printStackTrace();
+					if (buffer == null) {
+						byte data = dis.readByte();
+						lastRead = System.nanoTime();
+						metrics.received(1);
+						metrics.receivedMessage();
+						onReceive.run(data, address);
+						throttle(1, 1);
+					} else {
+						int read = read(buffer);
+						if (read < 0) {
+							throw new EOFException();
+						}
+						lastRead = System.nanoTime();
+						metrics.received(read);
+						if (frameDecoder == null) {
+							metrics.receivedMessage();
+							onReceive.run(buffer, 0, read, address);
+							throttle(read, 1);
+						} else {
+							readMessages = 0;
+							frameDecoder.decode(buffer, 0, read, onReceive, address);
+							throttle(read, readMessages);
+						}
+					}
 				}
+			} catch (EOFException e) {
+				close(DisconnectReason.REMOTE_CLOSE, e);
+			} catch (FrameTooLargeException e) {
+				close(DisconnectReason.FRAME_TOO_LARGE, e);
+			} catch (MalformedFrameException e) {
+				close(DisconnectReason.MALFORMED_FRAME, e);
 			} catch (IOException e) {
-				e.printStackTrace();
+				close(DisconnectReason.ERROR, e);
 			}
 		}
 	}
 
+	/**
+	 * Takes what was just read from the rate limits, pausing the reader if
+	 * any is exceeded. A limit can be in debt after a large read, so the
+	 * pause is for the longest any limit needs to recover
+	 */
+	private void throttle(long bytes, long messages) {
+		long pause = 0;
+		if (byteLimit != null) {
+			pause = Math.max(pause, byteLimit.reserve(bytes));
+		}
+		if (serverByteLimit != null) {
+			pause = Math.max(pause, reserveShared(serverByteLimit, byteShare, bytes));
+		}
+		if (messages > 0) {
+			if (messageLimit != null) {
+				pause = Math.max(pause, messageLimit.reserve(messages));
+			}
+			if (serverMessageLimit != null) {
+				pause = Math.max(pause, reserveShared(serverMessageLimit, messageShare, messages));
+			}
+		}
+		if (pause > 0) {
+			long start = System.nanoTime();
+			long deadline = start + pause;
+			long remaining;
+			while (alive && (remaining = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, remaining);
+			}
+			long now = System.nanoTime();
+			metrics.throttled(now - start);
+			// the peer wasn't idle while we weren't reading
+			lastRead = now;
+		}
+	}
+
+	/**
+	 * Takes from a limit shared by all the server's connections. A connection
+	 * that has kept within its share of the rate doesn't wait, so a quiet
+	 * connection is not held up paying off a burst from a noisy one. One that
+	 * takes more than its share waits off the whole debt, whoever else added
+	 * to it, so together the connections keep to the limit
+	 */
+	private long reserveShared(TokenBucket limit, ShareClock share, long permits) {
+		long sharers = serverMetrics == null ? 1 : Math.max(1, serverMetrics.getActiveConnections());
+		long now = System.nanoTime();
+		boolean withinShare = share.due - now <= 0;
+		share.due = Math.max(share.due, now) + limit.nanosFor(permits * sharers);
+		if (share.due - now > ShareClock.MAX_AHEAD_NANOS) {
+			share.due = now + ShareClock.MAX_AHEAD_NANOS;
+		}
+		long pause = limit.reserve(permits);
+		return withinShare ? 0 : pause;
+	}
+
+	/**
+	 * Reads into the buffer. With a channel the read goes through a pooled
+	 * direct buffer, which the channel would otherwise have to allocate
+	 * itself
+	 */
+	private int read(byte[] buffer) throws IOException {
+		if (channel == null) {
+			return dis.read(buffer);
+		}
+		PooledBuffer pooled = BufferPool.getDefault().allocate(buffer.length);
+		try {
+			ByteBuffer direct = pooled.buffer();
+			int read = channel.read(direct);
+			if (read > 0) {
+				direct.flip();
+				direct.get(buffer, 0, read);
+			}
+			return read;
+		} finally {
+			pooled.release();
+		}
+	}
+
 	/**
 	 * Closes the socket, input and output streams, and runs
 	 * {@link #onDisconnect}
 	 */
 	@Override
 	public void close() throws IOException {
-		if (alive) {
+		close(DisconnectReason.LOCAL_CLOSE);
+	}
+
+	/**
+	 * Closes the connection, recording why
+	 * 
+	 * @param reason
+	 *            the {@link DisconnectReason}
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	void close(DisconnectReason reason) throws IOException {
+		if (alive && closed.compareAndSet(false, true)) {
 			alive = false;
+			metrics.closed(reason);
+			if (sendQueue != null) {
+				sendQueue.stop();
+			}
+			for (IdleCheck idleCheck : idleChecks) {
+				idleCheck.cancel();
+			}
+			if (flow != null) {
+				flow.close();
+			}
+			if (reader != null) {
+				LockSupport.unpark(reader);
+			}
 			onDisconnect.run(socket);
 			dis.close();
 			dos.close();
@@ -146,6 +872,18 @@ public class SocketClient implements Closeable, Runnable {
 		}
 	}
 
+	/**
+	 * Closes the connection after an error, printing the cause if closing
+	 * fails too
+	 */
+	void close(DisconnectReason reason, Exception cause) {
+		try {
+			close(reason);
+		} catch (Exception e) {
+			cause.printStackTrace();
+		}
+	}
+
 	/**
 	 * Check if the sokect is alive
 	 * 
@@ -154,4 +892,96 @@ public class SocketClient implements Closeable, Runnable {
 	public boolean isAlive() {
 		return alive;
 	}
+
+	/**
+	 * Checks on the wheel whether the connection has been idle too long.
+	 * Rather than being rescheduled on every read or write, it compares the
+	 * time of the last one when it fires and schedules itself for when the
+	 * connection could next be idle
+	 */
+	private class IdleCheck implements Runnable {
+		private final boolean reading;
+		final long timeoutNanos;
+		private final boolean sendsHeartbeat;
+		private volatile HashedTimingWheel.Timeout timeout;
+
+		private IdleCheck(boolean reading, long timeoutMillis, boolean sendsHeartbeat) {
+			this.reading = reading;
+			this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			this.sendsHeartbeat = sendsHeartbeat;
+		}
+
+		void schedule(long delayNanos) {
+			timeout = HashedTimingWheel.getDefault().schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+		}
+
+		private void cancel() {
+			HashedTimingWheel.Timeout timeout = this.timeout;
+			if (timeout != null) {
+				timeout.cancel();
+			}
+		}
+
+		@Override
+		public void run() {
+			if (!alive) {
+				return;
+			}
+			long idle = System.nanoTime() - (reading ? lastRead : lastWrite);
+			if (idle < timeoutNanos) {
+				schedule(timeoutNanos - idle);
+			} else if (sendsHeartbeat) {
+				try {
+					send(heartbeat);
+					schedule(timeoutNanos);
+				} catch (IOException e) {
+					close(DisconnectReason.ERROR, e);
+				}
+			} else {
+				close(DisconnectReason.IDLE_TIMEOUT, new SocketTimeoutException(
+						(reading ? "Nothing read from " : "Nothing written to ") + address + " for "
+								+ TimeUnit.NANOSECONDS.toMillis(idle) + "ms"));
+			}
+		}
+	}
+
+	/**
+	 * Checks on the wheel whether a write has blocked for too long, comparing
+	 * when the write started or last made progress
+	 */
+	private class WriteCheck extends IdleCheck {
+
+		private WriteCheck(long timeoutMillis) {
+			super(false, timeoutMillis, false);
+		}
+
+		@Override
+		public void run() {
+			if (!alive) {
+				return;
+			}
+			long started = writeStarted;
+			long blocked = started == 0 ? 0 : System.nanoTime() - Math.max(started, lastWrite);
+			if (blocked < timeoutNanos) {
+				schedule(timeoutNanos - blocked);
+			} else {
+				close(DisconnectReason.WRITE_TIMEOUT, new SocketTimeoutException("Write to " + address
+						+ " blocked for " + TimeUnit.NANOSECONDS.toMillis(blocked) + "ms"));
+			}
+		}
+	}
+
+	/**
+	 * When a connection's takes from a shared limit would have been paid off
+	 * reading at its share of the rate. Only the reader uses it
+	 */
+	private static class ShareClock {
+		/**
+		 * How far ahead a connection's takes are remembered, so one that was
+		 * noisy is treated as within its share again soon after it quietens
+		 */
+		private static final long MAX_AHEAD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+		private long due = System.nanoTime();
+	}
 }
@@ -0,0 +1,528 @@
+package nohorjo.socket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import nohorjo.common.HashedTimingWheel;
+import nohorjo.common.LatencyHistogram;
+import nohorjo.common.StripedCounter;
+import nohorjo.delegation.Action;
+
+/**
+ * Keeps connected {@link SocketClient}s for reuse, so repeated requests to the
+ * same host and port don't each pay for a TCP handshake. Connections are
+ * leased with {@link #lease(String, int)} and must be handed back with
+ * {@link #release(SocketClient)} rather than closed. Leasing an idle
+ * connection, or opening one while under the maximum, doesn't take a lock;
+ * only leases that have to wait for a release do
+ * 
+ * @author muhammed
+ *
+ */
+public class SocketClientPool implements Closeable {
+	private final int minSize;
+	private final int maxSize;
+	private final Executor executor;
+	private final ConcurrentMap<String, HostPool> pools = new ConcurrentHashMap<>();
+	private final ConcurrentMap<SocketClient, Connection> leased = new ConcurrentHashMap<>();
+	private final StripedCounter leases = new StripedCounter();
+	private final StripedCounter created = new StripedCounter(1);
+	private final StripedCounter exhausted = new StripedCounter(1);
+	private final StripedCounter timeouts = new StripedCounter(1);
+	private final StripedCounter evicted = new StripedCounter(1);
+	private final LatencyHistogram waitTime = new LatencyHistogram();
+	private final Runnable evictor = new Runnable() {
+
+		@Override
+		public void run() {
+			if (alive) {
+				evict();
+				scheduleEviction();
+			}
+		}
+	};
+	private volatile HashedTimingWheel.Timeout eviction;
+	private volatile boolean alive = true;
+	private long maxWaitMillis = 30000;
+	private long idleMillis = 60000;
+	private int chunkSize;
+	private FrameCodec frameCodec;
+	private Action onReceive;
+	private Action onDisconnect;
+	private Action validator;
+
+	/**
+	 * Constructs a pool
+	 * 
+	 * @param minSize
+	 *            the number of connections to keep open to each host once it
+	 *            has been leased from, however long they sit idle
+	 * @param maxSize
+	 *            the most connections to open to each host
+	 */
+	public SocketClientPool(int minSize, int maxSize) {
+		this(minSize, maxSize, null);
+	}
+
+	/**
+	 * Constructs a pool whose connections run their threads on an executor
+	 * 
+	 * @param minSize
+	 *            the number of connections to keep open to each host once it
+	 *            has been leased from, however long they sit idle
+	 * @param maxSize
+	 *            the most connections to open to each host
+	 * @param executor
+	 *            runs the connections' readers, such as one from
+	 *            {@link SocketExecutors}, or null to start a thread for each
+	 */
+	public SocketClientPool(int minSize, int maxSize, Executor executor) {
+		if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+			throw new IllegalArgumentException("Must have 0 <= minSize <= maxSize and maxSize >= 1");
+		}
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.executor = executor;
+		scheduleEviction();
+	}
+
+	/**
+	 * Sets the custom {@link Action}s given to every connection the pool
+	 * opens. Must be called before the first lease
+	 * 
+	 * @param onReceive
+	 *            defines the action on receiving data, which is passed the
+	 *            socket address to tell the connections apart
+	 * @param onDisconnect
+	 *            defines the action on a connection closing, or null for none
+	 * @see SocketClient#setActions(Action, Action)
+	 */
+	public void setActions(Action onReceive, Action onDisconnect) {
+		this.onReceive = onReceive;
+		this.onDisconnect = onDisconnect;
+	}
+
+	/**
+	 * Sets a check run on an idle connection before it is leased, in addition
+	 * to {@link SocketClient#isAlive()}. Connections that fail it are closed
+	 * 
+	 * @param validator
+	 *            takes arguments ({@link SocketClient} = the connection),
+	 *            returns {@link Boolean#TRUE} if it can be used, or null for no
+	 *            extra check
+	 */
+	public void setValidator(Action validator) {
+		this.validator = validator;
+	}
+
+	/**
+	 * Sets the size of the buffer each connection reads into
+	 * 
+	 * @param chunkSize
+	 *            the buffer size, or 0 to deliver single bytes
+	 * @see SocketClient#setChunkSize(int)
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Sets the codec each connection uses to frame messages
+	 * 
+	 * @param frameCodec
+	 *            the codec, or null to pass raw bytes
+	 * @see SocketClient#setFrameCodec(FrameCodec)
+	 */
+	public void setFrameCodec(FrameCodec frameCodec) {
+		this.frameCodec = frameCodec;
+	}
+
+	/**
+	 * Sets how long a lease waits when every connection to the host is in use
+	 * 
+	 * @param maxWaitMillis
+	 *            the longest wait, 0 to fail straight away
+	 */
+	public void setMaxWait(long maxWaitMillis) {
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	/**
+	 * Sets how long a connection may sit in the pool unused before it is
+	 * closed, while there are more than the minimum open
+	 * 
+	 * @param idleMillis
+	 *            the idle time
+	 */
+	public void setIdleTimeout(long idleMillis) {
+		if (idleMillis < 1) {
+			throw new IllegalArgumentException("Idle timeout must be positive");
+		}
+		this.idleMillis = idleMillis;
+	}
+
+	/**
+	 * Leases a connection, reusing an idle one if there is one, otherwise
+	 * opening a new one if there are fewer than the maximum, otherwise waiting
+	 * for one to be released
+	 * 
+	 * @param host
+	 *            the IP address of the target
+	 * @param port
+	 *            the port to connect to
+	 * @return a connected {@link SocketClient}, to be given back with
+	 *         {@link #release(SocketClient)}
+	 * @throws SocketTimeoutException
+	 *             if none was released within the wait
+	 * @throws IOException
+	 *             if the pool is closed or connecting fails
+	 */
+	public SocketClient lease(String host, int port) throws IOException {
+		if (!alive) {
+			throw new IOException("Pool is closed");
+		}
+		String key = host + ":" + port;
+		HostPool pool = pools.get(key);
+		if (pool == null) {
+			HostPool newPool = new HostPool(host, port);
+			pool = pools.putIfAbsent(key, newPool);
+			if (pool == null) {
+				pool = newPool;
+			}
+		}
+		leases.increment();
+		Connection connection = pool.lease();
+		leased.put(connection.client, connection);
+		return connection.client;
+	}
+
+	/**
+	 * Gives a leased connection back to the pool. If it has been closed it is
+	 * forgotten
+	 * 
+	 * @param client
+	 *            the connection from {@link #lease(String, int)}
+	 */
+	public void release(SocketClient client) {
+		Connection connection = leased.remove(client);
+		if (connection == null) {
+			throw new IllegalArgumentException("Connection was not leased from this pool");
+		}
+		if (!alive) {
+			closeQuietly(client);
+		} else if (client.isAlive()) {
+			connection.lastUsed = System.nanoTime();
+			connection.pool.idle.offerFirst(connection);
+			connection.pool.signal();
+		}
+	}
+
+	/**
+	 * Closes the idle connections and any released after this. Waiting leases
+	 * fail
+	 */
+	@Override
+	public void close() {
+		alive = false;
+		HashedTimingWheel.Timeout eviction = this.eviction;
+		if (eviction != null) {
+			eviction.cancel();
+		}
+		for (HostPool pool : pools.values()) {
+			Connection connection;
+			while ((connection = pool.idle.pollFirst()) != null) {
+				closeQuietly(connection.client);
+			}
+			pool.signalAll();
+		}
+	}
+
+	/**
+	 * @return the number of leases
+	 */
+	public long getLeaseCount() {
+		return leases.sum();
+	}
+
+	/**
+	 * @return the number of connections opened
+	 */
+	public long getCreatedCount() {
+		return created.sum();
+	}
+
+	/**
+	 * @return the number of leases that found every connection to the host in
+	 *         use and had to wait
+	 */
+	public long getExhaustedCount() {
+		return exhausted.sum();
+	}
+
+	/**
+	 * @return the number of leases that gave up waiting
+	 */
+	public long getTimeoutCount() {
+		return timeouts.sum();
+	}
+
+	/**
+	 * @return the number of connections closed for sitting idle
+	 */
+	public long getEvictedCount() {
+		return evicted.sum();
+	}
+
+	/**
+	 * Gets a percentile of the time leases waited when the pool was
+	 * exhausted
+	 * 
+	 * @param percentile
+	 *            the percentile, 0 to 100
+	 * @return the wait time in nanoseconds
+	 */
+	public long getWaitTimePercentile(double percentile) {
+		return waitTime.getPercentile(percentile);
+	}
+
+	/**
+	 * Gets the number of open connections to a host, leased or idle
+	 * 
+	 * @param host
+	 *            the IP address of the target
+	 * @param port
+	 *            the port
+	 * @return the number of connections
+	 */
+	public int getOpenCount(String host, int port) {
+		HostPool pool = pools.get(host + ":" + port);
+		return pool == null ? 0 : pool.open.get();
+	}
+
+	/**
+	 * Gets the number of idle connections to a host
+	 * 
+	 * @param host
+	 *            the IP address of the target
+	 * @param port
+	 *            the port
+	 * @return the number of connections
+	 */
+	public int getIdleCount(String host, int port) {
+		HostPool pool = pools.get(host + ":" + port);
+		return pool == null ? 0 : pool.idle.size();
+	}
+
+	/**
+	 * Schedules the next run of {@link #evict()}
+	 */
+	private void scheduleEviction() {
+		eviction = HashedTimingWheel.getDefault().schedule(evictor, Math.max(idleMillis / 2, 100),
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Closes connections that have been idle too long, down to the minimum,
+	 * and opens connections to get back up to it
+	 */
+	private void evict() {
+		long now = System.nanoTime();
+		long idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+		for (HostPool pool : pools.values()) {
+			Iterator<Connection> oldestFirst = pool.idle.descendingIterator();
+			while (oldestFirst.hasNext() && pool.open.get() > minSize) {
+				Connection connection = oldestFirst.next();
+				if (now - connection.lastUsed < idleNanos) {
+					break;
+				}
+				if (pool.idle.removeLastOccurrence(connection)) {
+					evicted.increment();
+					closeQuietly(connection.client);
+				}
+			}
+			while (alive && pool.open.get() < minSize && pool.reserve()) {
+				try {
+					Connection connection = pool.connect();
+					pool.idle.offerLast(connection);
+					pool.signal();
+				} catch (IOException e) {
+					break;
+				}
+			}
+		}
+	}
+
+	private static void closeQuietly(SocketClient client) {
+		try {
+			client.close();
+		} catch (IOException e) {
+			// the connection is being discarded anyway
+		}
+	}
+
+	/**
+	 * The connections to one host and port. Idle connections are used most
+	 * recently released first, so the ones at the end are the ones to evict
+	 */
+	private class HostPool {
+		private final String host;
+		private final int port;
+		private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+		private final AtomicInteger open = new AtomicInteger();
+		private final AtomicInteger waiters = new AtomicInteger();
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition available = lock.newCondition();
+
+		private HostPool(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		private Connection lease() throws IOException {
+			Connection connection = pollIdle();
+			if (connection != null) {
+				return connection;
+			}
+			if (reserve()) {
+				return connect();
+			}
+
+			exhausted.increment();
+			long start = System.nanoTime();
+			long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+			boolean reserved = false;
+			lock.lock();
+			waiters.incrementAndGet();
+			try {
+				while (alive && (connection = pollIdle()) == null && !(reserved = reserve())) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						timeouts.increment();
+						throw new SocketTimeoutException("No connection to " + host + ":" + port
+								+ " was released within " + maxWaitMillis + "ms");
+					}
+					available.awaitNanos(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for a connection", e);
+			} finally {
+				waiters.decrementAndGet();
+				lock.unlock();
+			}
+			waitTime.record(System.nanoTime() - start);
+			if (connection != null) {
+				return connection;
+			}
+			if (!reserved) {
+				throw new IOException("Pool is closed");
+			}
+			return connect();
+		}
+
+		/**
+		 * Takes an idle connection that is still usable, closing the ones
+		 * that aren't
+		 */
+		private Connection pollIdle() {
+			Connection connection;
+			while ((connection = idle.pollFirst()) != null) {
+				if (connection.client.isAlive()
+						&& (validator == null || Boolean.TRUE.equals(validator.run(connection.client)))) {
+					return connection;
+				}
+				closeQuietly(connection.client);
+			}
+			return null;
+		}
+
+		/**
+		 * Counts a connection about to be opened, if under the maximum
+		 */
+		private boolean reserve() {
+			int current;
+			while ((current = open.get()) < maxSize) {
+				if (open.compareAndSet(current, current + 1)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Opens a connection that has been reserved
+		 */
+		private Connection connect() throws IOException {
+			try {
+				final SocketClient client = new SocketClient(host, port, executor);
+				final Connection connection = new Connection(client, this);
+				client.setActions(onReceive, new Action() {
+
+					@Override
+					public Object run(Object... args) {
+						open.decrementAndGet();
+						idle.remove(connection);
+						signal();
+						return onDisconnect == null ? null : onDisconnect.run(args);
+					}
+				});
+				client.setChunkSize(chunkSize);
+				client.setFrameCodec(frameCodec);
+				client.connect();
+				created.increment();
+				return connection;
+			} catch (IOException | RuntimeException e) {
+				open.decrementAndGet();
+				signal();
+				throw e;
+			}
+		}
+
+		/**
+		 * Wakes a waiting lease, if there is one
+		 */
+		private void signal() {
+			if (waiters.get() > 0) {
+				lock.lock();
+				try {
+					available.signal();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+
+		private void signalAll() {
+			lock.lock();
+			try {
+				available.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * A pooled connection
+	 */
+	private static class Connection {
+		private final SocketClient client;
+		private final HostPool pool;
+		private volatile long lastUsed = System.nanoTime();
+
+		private Connection(SocketClient client, HostPool pool) {
+			this.client = client;
+			this.pool = pool;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package nohorjo.socket;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factories for the {@link ExecutorService}s that {@link SocketServer} and
+ * {@link SocketClient} can run their threads on
+ * 
+ * @author muhammed
+ *
+ */
+public class SocketExecutors {
+	private static final Method OF_VIRTUAL;
+	private static final Method NAME;
+	private static final Method FACTORY;
+	private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method factory = null;
+		Method newThreadPerTaskExecutor = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class, long.class);
+			factory = builder.getMethod("factory");
+			newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+		} catch (ReflectiveOperationException e) {
+			// virtual threads need JDK 21
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		FACTORY = factory;
+		NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+	}
+
+	/**
+	 * Checks if the running JDK has virtual threads
+	 * 
+	 * @return true if {@link #newVirtualThreadExecutor(String)} can be used
+	 */
+	public static boolean virtualThreadsSupported() {
+		return NEW_THREAD_PER_TASK_EXECUTOR != null;
+	}
+
+	/**
+	 * Creates an executor that starts a new virtual thread for each task
+	 * 
+	 * @param namePrefix
+	 *            prefix of the thread names, which are numbered from 0
+	 * @return the executor
+	 * @throws UnsupportedOperationException
+	 *             if the JDK does not have virtual threads
+	 */
+	public static ExecutorService newVirtualThreadExecutor(String namePrefix) {
+		if (!virtualThreadsSupported()) {
+			throw new UnsupportedOperationException("Virtual threads need JDK 21 or later");
+		}
+		try {
+			Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix, 0L);
+			return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, FACTORY.invoke(builder));
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException(e);
+		}
+	}
+
+	/**
+	 * Creates an executor that pools platform threads, starting new ones as
+	 * needed and reusing idle ones
+	 * 
+	 * @param namePrefix
+	 *            prefix of the thread names, which are numbered from 0
+	 * @return the executor
+	 */
+	public static ExecutorService newPlatformThreadExecutor(String namePrefix) {
+		return Executors.newCachedThreadPool(newThreadFactory(namePrefix, false));
+	}
+
+	/**
+	 * Creates an executor on virtual threads if the JDK has them, otherwise
+	 * on pooled platform threads
+	 * 
+	 * @param namePrefix
+	 *            prefix of the thread names, which are numbered from 0
+	 * @return the executor
+	 */
+	public static ExecutorService newExecutor(String namePrefix) {
+		return virtualThreadsSupported() ? newVirtualThreadExecutor(namePrefix)
+				: newPlatformThreadExecutor(namePrefix);
+	}
+
+	/**
+	 * Creates a factory of named platform threads
+	 * 
+	 * @param namePrefix
+	 *            prefix of the thread names, which are numbered from 0
+	 * @param daemon
+	 *            whether the threads are daemons
+	 * @return the factory
+	 */
+	static ThreadFactory newThreadFactory(final String namePrefix, final boolean daemon) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, namePrefix + count.getAndIncrement());
+				thread.setDaemon(daemon);
+				return thread;
+			}
+		};
+	}
+}
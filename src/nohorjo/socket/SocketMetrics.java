@@ -0,0 +1,305 @@
+package nohorjo.socket;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import nohorjo.common.LatencyHistogram;
+import nohorjo.common.StripedCounter;
+
+/**
+ * Counters for a connection or a whole server. A connection's metrics also
+ * add to the metrics of the server that accepted it
+ * 
+ * @author muhammed
+ *
+ */
+public class SocketMetrics implements SocketMetricsMBean {
+	private final SocketMetrics parent;
+	private final StripedCounter bytesIn;
+	private final StripedCounter bytesOut;
+	private final StripedCounter messagesIn;
+	private final StripedCounter messagesOut;
+	private final StripedCounter messagesDropped;
+	private final StripedCounter connectionsAccepted;
+	private final StripedCounter connectionsClosed;
+	private final StripedCounter queuedMessages;
+	private final StripedCounter throttles;
+	private final StripedCounter throttledNanos;
+	private final Map<DisconnectReason, StripedCounter> disconnects = new EnumMap<>(DisconnectReason.class);
+	private final LatencyHistogram sendTimes;
+	private ObjectName objectName;
+
+	/**
+	 * Constructs metrics for a server or a standalone client
+	 */
+	public SocketMetrics() {
+		this(null);
+	}
+
+	/**
+	 * Constructs metrics for a connection that also add to its server's.
+	 * These are only updated by a few threads, so use single cells and leave
+	 * the send time histogram to the server
+	 */
+	SocketMetrics(SocketMetrics parent) {
+		this.parent = parent;
+		int stripes = parent == null ? 0 : 1;
+		bytesIn = counter(stripes);
+		bytesOut = counter(stripes);
+		messagesIn = counter(stripes);
+		messagesOut = counter(stripes);
+		messagesDropped = counter(stripes);
+		connectionsAccepted = counter(stripes);
+		connectionsClosed = counter(stripes);
+		queuedMessages = counter(stripes);
+		throttles = counter(stripes);
+		throttledNanos = counter(stripes);
+		for (DisconnectReason reason : DisconnectReason.values()) {
+			disconnects.put(reason, counter(stripes));
+		}
+		sendTimes = parent == null ? new LatencyHistogram() : null;
+	}
+
+	private static StripedCounter counter(int stripes) {
+		return stripes == 0 ? new StripedCounter() : new StripedCounter(stripes);
+	}
+
+	void received(long bytes) {
+		bytesIn.add(bytes);
+		if (parent != null) {
+			parent.received(bytes);
+		}
+	}
+
+	void receivedMessage() {
+		messagesIn.increment();
+		if (parent != null) {
+			parent.receivedMessage();
+		}
+	}
+
+	void sentMessage() {
+		messagesOut.increment();
+		if (parent != null) {
+			parent.sentMessage();
+		}
+	}
+
+	void wrote(long bytes, long nanos) {
+		bytesOut.add(bytes);
+		if (sendTimes != null) {
+			sendTimes.record(nanos);
+		}
+		if (parent != null) {
+			parent.wrote(bytes, nanos);
+		}
+	}
+
+	void queued(long messages) {
+		queuedMessages.add(messages);
+		if (parent != null) {
+			parent.queued(messages);
+		}
+	}
+
+	void dropped() {
+		messagesDropped.increment();
+		if (parent != null) {
+			parent.dropped();
+		}
+	}
+
+	void throttled(long nanos) {
+		throttles.increment();
+		throttledNanos.add(nanos);
+		if (parent != null) {
+			parent.throttled(nanos);
+		}
+	}
+
+	void accepted() {
+		connectionsAccepted.increment();
+		if (parent != null) {
+			parent.accepted();
+		}
+	}
+
+	void closed(DisconnectReason reason) {
+		connectionsClosed.increment();
+		disconnects.get(reason).increment();
+		if (parent != null) {
+			parent.closed(reason);
+		}
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	/**
+	 * Messages are frames when a frame codec is set, otherwise reads
+	 */
+	@Override
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	@Override
+	public long getMessagesOut() {
+		return messagesOut.sum();
+	}
+
+	/**
+	 * Messages discarded under {@link BackpressurePolicy#DROP_OLDEST}
+	 */
+	@Override
+	public long getMessagesDropped() {
+		return messagesDropped.sum();
+	}
+
+	@Override
+	public long getConnectionsAccepted() {
+		return connectionsAccepted.sum();
+	}
+
+	@Override
+	public long getConnectionsClosed() {
+		return connectionsClosed.sum();
+	}
+
+	@Override
+	public long getActiveConnections() {
+		return connectionsAccepted.sum() - connectionsClosed.sum();
+	}
+
+	/**
+	 * Messages waiting in send queues
+	 */
+	@Override
+	public long getQueuedMessages() {
+		return queuedMessages.sum();
+	}
+
+	/**
+	 * Times a reader was paused, by a rate limit or because too much of what
+	 * it read was waiting to be dispatched
+	 */
+	@Override
+	public long getThrottles() {
+		return throttles.sum();
+	}
+
+	/**
+	 * Time readers spent paused
+	 */
+	@Override
+	public long getThrottledNanos() {
+		return throttledNanos.sum();
+	}
+
+	@Override
+	public long getSendTimeP50Nanos() {
+		return getSendTimePercentile(50);
+	}
+
+	@Override
+	public long getSendTimeP99Nanos() {
+		return getSendTimePercentile(99);
+	}
+
+	@Override
+	public long getSendTimeP999Nanos() {
+		return getSendTimePercentile(99.9);
+	}
+
+	/**
+	 * Gets a percentile of the time taken to write to the socket. A
+	 * connection accepted by a server reports its server's
+	 * 
+	 * @param percentile
+	 *            the percentile, 0 to 100
+	 * @return the time in nanoseconds
+	 */
+	public long getSendTimePercentile(double percentile) {
+		return sendTimes == null ? parent.getSendTimePercentile(percentile) : sendTimes.getPercentile(percentile);
+	}
+
+	@Override
+	public Map<String, Long> getDisconnects() {
+		Map<String, Long> counts = new LinkedHashMap<>();
+		for (Map.Entry<DisconnectReason, StripedCounter> entry : disconnects.entrySet()) {
+			counts.put(entry.getKey().name(), entry.getValue().sum());
+		}
+		return counts;
+	}
+
+	/**
+	 * Reads all the metrics at once
+	 * 
+	 * @return a {@link Map} of metric name to value
+	 */
+	@Override
+	public Map<String, Long> getSnapshot() {
+		Map<String, Long> snapshot = new LinkedHashMap<>();
+		snapshot.put("bytesIn", getBytesIn());
+		snapshot.put("bytesOut", getBytesOut());
+		snapshot.put("messagesIn", getMessagesIn());
+		snapshot.put("messagesOut", getMessagesOut());
+		snapshot.put("messagesDropped", getMessagesDropped());
+		snapshot.put("connectionsAccepted", getConnectionsAccepted());
+		snapshot.put("connectionsClosed", getConnectionsClosed());
+		snapshot.put("activeConnections", getActiveConnections());
+		snapshot.put("queuedMessages", getQueuedMessages());
+		snapshot.put("throttles", getThrottles());
+		snapshot.put("throttledNanos", getThrottledNanos());
+		snapshot.put("sendTimeP50Nanos", getSendTimeP50Nanos());
+		snapshot.put("sendTimeP99Nanos", getSendTimeP99Nanos());
+		snapshot.put("sendTimeP999Nanos", getSendTimeP999Nanos());
+		for (Map.Entry<String, Long> entry : getDisconnects().entrySet()) {
+			snapshot.put("disconnects." + entry.getKey(), entry.getValue());
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Registers these metrics with the platform MBean server
+	 * 
+	 * @param name
+	 *            the name to register under, e.g. "server-9003"
+	 * @throws JMException
+	 *             if registration fails
+	 */
+	public void registerMBean(String name) throws JMException {
+		objectName = new ObjectName("nohorjo.socket:type=SocketMetrics,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+	}
+
+	/**
+	 * Removes these metrics from the platform MBean server
+	 * 
+	 * @throws JMException
+	 *             if they were not registered
+	 */
+	public void unregisterMBean() throws JMException {
+		if (objectName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			objectName = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getSnapshot().toString();
+	}
+}
@@ -0,0 +1,45 @@
+package nohorjo.socket;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link SocketMetrics}
+ * 
+ * @author muhammed
+ *
+ */
+public interface SocketMetricsMBean {
+
+	public long getBytesIn();
+
+	public long getBytesOut();
+
+	public long getMessagesIn();
+
+	public long getMessagesOut();
+
+	public long getMessagesDropped();
+
+	public long getConnectionsAccepted();
+
+	public long getConnectionsClosed();
+
+	public long getActiveConnections();
+
+	public long getQueuedMessages();
+
+	public long getThrottles();
+
+	public long getThrottledNanos();
+
+	public long getSendTimeP50Nanos();
+
+	public long getSendTimeP99Nanos();
+
+	public long getSendTimeP999Nanos();
+
+	public Map<String, Long> getDisconnects();
+
+	public Map<String, Long> getSnapshot();
+
+}
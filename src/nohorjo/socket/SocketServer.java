@@ -2,14 +2,29 @@ package nohorjo.socket;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.ConcurrentModificationException;
-import java.util.HashMap;
-import java.util.Map;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import nohorjo.common.BufferPool;
+import nohorjo.common.PooledBuffer;
+import nohorjo.common.TokenBucket;
 import nohorjo.delegation.Action;
 
 /**
@@ -19,10 +34,36 @@ import nohorjo.delegation.Action;
  *
  */
 public class SocketServer implements Closeable, Runnable {
+	private static final int DEFAULT_BACKLOG = 50;
+	private static final int DEFAULT_BROADCAST_BACKLOG = 1024;
+
 	private int port;
-	private ServerSocket server;
-	private Map<String, SocketClient> connections = new HashMap<>();
-	private boolean alive;
+	private volatile Shard[] shards = {};
+	private final Set<String> connections = new ConnectionSet();
+	private final SocketMetrics metrics = new SocketMetrics();
+	private int broadcastThreads;
+	private int broadcastBacklog = DEFAULT_BROADCAST_BACKLOG;
+	private ExecutorService broadcastExecutor;
+	private ExecutorService executor;
+	private int acceptors = 1;
+	private int backlog = DEFAULT_BACKLOG;
+	private boolean reusingPort;
+	private volatile boolean alive;
+	private int chunkSize;
+	private FrameCodec frameCodec;
+	private int sendQueueCapacity;
+	private long flushWindowMillis;
+	private BackpressurePolicy backpressurePolicy;
+	private long readIdleMillis;
+	private long writeIdleMillis;
+	private long heartbeatMillis;
+	private byte[] heartbeat;
+	private long writeTimeoutMillis;
+	private long connectionBytesPerSecond;
+	private long connectionMessagesPerSecond;
+	private TokenBucket serverByteLimit;
+	private TokenBucket serverMessageLimit;
+	private FairDispatcher dispatcher;
 	private Action onReceive;
 	private Action onNewConnection;
 	private Action onDisconnect;
@@ -34,7 +75,23 @@ public class SocketServer implements Closeable, Runnable {
 	 *            the port to listen to
 	 */
 	public SocketServer(int port) {
+		this(port, null);
+	}
+
+	/**
+	 * Constructs a listener on the port that runs the accept loop, the
+	 * connections' threads and any broadcast threads on an executor
+	 * 
+	 * @param port
+	 *            the port to listen to
+	 * @param executor
+	 *            the executor, such as one from {@link SocketExecutors}, or
+	 *            null to start a thread for each. It is not shut down by
+	 *            {@link #close()}
+	 */
+	public SocketServer(int port, ExecutorService executor) {
 		this.port = port;
+		this.executor = executor;
 	}
 
 	/**
@@ -42,8 +99,11 @@ public class SocketServer implements Closeable, Runnable {
 	 * 
 	 * @param onReceive
 	 *            takes arguments ({@link Byte} = data received, {@link String}
-	 *            = socket address), defines the action on receiving data from
-	 *            the socket
+	 *            = socket address), or if a chunk size is set ({@code byte[]}
+	 *            = buffer, {@link Integer} = offset, {@link Integer} = length,
+	 *            {@link String} = socket address), or if a frame codec is set
+	 *            the same with one whole message per call, defines the action
+	 *            on receiving data from the socket
 	 * @param onNewConnection
 	 *            takes arguments ({@link Socket} = the new socket it connected
 	 *            to), defines the action to run when a new connection is made
@@ -58,6 +118,247 @@ public class SocketServer implements Closeable, Runnable {
 		this.onDisconnect = onDisconnect;
 	}
 
+	/**
+	 * Sets the size of the buffer each connection reads into
+	 * 
+	 * @param chunkSize
+	 *            the buffer size, or 0 to deliver single bytes
+	 * @see SocketClient#setChunkSize(int)
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Sets the codec each connection uses to frame messages
+	 * 
+	 * @param frameCodec
+	 *            the codec, or null to pass raw bytes
+	 * @see SocketClient#setFrameCodec(FrameCodec)
+	 */
+	public void setFrameCodec(FrameCodec frameCodec) {
+		this.frameCodec = frameCodec;
+	}
+
+	/**
+	 * Makes each connection queue sends for its own writer thread
+	 * 
+	 * @param queueCapacity
+	 *            the most messages to hold per connection
+	 * @param flushWindowMillis
+	 *            how long a writer waits for more messages before writing
+	 * @param backpressurePolicy
+	 *            what to do when a connection's queue is full
+	 * @see SocketClient#setAsyncSend(int, long, BackpressurePolicy)
+	 */
+	public void setAsyncSend(int queueCapacity, long flushWindowMillis, BackpressurePolicy backpressurePolicy) {
+		if (queueCapacity < 1) {
+			throw new IllegalArgumentException("Queue capacity must be at least 1");
+		}
+		this.sendQueueCapacity = queueCapacity;
+		this.flushWindowMillis = flushWindowMillis;
+		this.backpressurePolicy = backpressurePolicy;
+	}
+
+	/**
+	 * Sets how long each connection may go without reading or writing before
+	 * it is closed and removed, so peers that vanish without closing don't
+	 * hold on to a connection
+	 * 
+	 * @param readIdleMillis
+	 *            the longest time without receiving anything, or 0 for no
+	 *            limit
+	 * @param writeIdleMillis
+	 *            the longest time without completing a write, or 0 for no
+	 *            limit
+	 * @see SocketClient#setIdleTimeout(long, long)
+	 */
+	public void setIdleTimeout(long readIdleMillis, long writeIdleMillis) {
+		if (readIdleMillis < 0 || writeIdleMillis < 0) {
+			throw new IllegalArgumentException("Idle timeouts cannot be negative");
+		}
+		this.readIdleMillis = readIdleMillis;
+		this.writeIdleMillis = writeIdleMillis;
+	}
+
+	/**
+	 * Makes each connection send a heartbeat whenever it has written nothing
+	 * for the interval
+	 * 
+	 * @param intervalMillis
+	 *            the time without writing before a heartbeat is sent, or 0 to
+	 *            send none
+	 * @param payload
+	 *            the message to send
+	 * @see SocketClient#setHeartbeat(long, byte...)
+	 */
+	public void setHeartbeat(long intervalMillis, byte... payload) {
+		if (intervalMillis < 0) {
+			throw new IllegalArgumentException("Heartbeat interval cannot be negative");
+		}
+		this.heartbeatMillis = intervalMillis;
+		this.heartbeat = payload.clone();
+	}
+
+	/**
+	 * Limits how fast each connection reads, pausing its reader while over
+	 * the limit. Must be called before {@link #start()}
+	 * 
+	 * @param bytesPerSecond
+	 *            the most bytes a connection may read a second, or 0 for no
+	 *            limit
+	 * @param messagesPerSecond
+	 *            the most messages a connection may receive a second, or 0 for
+	 *            no limit
+	 * @see SocketClient#setRateLimit(long, long)
+	 */
+	public void setConnectionRateLimit(long bytesPerSecond, long messagesPerSecond) {
+		if (bytesPerSecond < 0 || messagesPerSecond < 0) {
+			throw new IllegalArgumentException("Rate limits cannot be negative");
+		}
+		this.connectionBytesPerSecond = bytesPerSecond;
+		this.connectionMessagesPerSecond = messagesPerSecond;
+	}
+
+	/**
+	 * Limits how fast all the connections together read. A connection
+	 * reading within its share of the limit never pauses, while one reading
+	 * more pauses until the server is back under the limit. Each limit allows
+	 * a burst of a second's worth. Must be called before {@link #start()}
+	 * 
+	 * @param bytesPerSecond
+	 *            the most bytes to read a second, or 0 for no limit
+	 * @param messagesPerSecond
+	 *            the most messages to receive a second, or 0 for no limit
+	 */
+	public void setServerRateLimit(long bytesPerSecond, long messagesPerSecond) {
+		if (bytesPerSecond < 0 || messagesPerSecond < 0) {
+			throw new IllegalArgumentException("Rate limits cannot be negative");
+		}
+		this.serverByteLimit = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, bytesPerSecond) : null;
+		this.serverMessageLimit = messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond, messagesPerSecond)
+				: null;
+	}
+
+	/**
+	 * Runs {@link #onReceive} on a shared pool of workers instead of each
+	 * connection's reader, taking turns between connections by deficit round
+	 * robin so one busy connection can't keep the workers from the rest. Each
+	 * connection's messages still run in order, one at a time. The data is
+	 * copied for the workers, as the reader reuses its buffer. Must be called
+	 * before {@link #start()}
+	 * 
+	 * @param workers
+	 *            runs onReceive
+	 * @param quantumBytes
+	 *            the bytes of messages a connection may have run on each
+	 *            turn
+	 * @param maxPendingBytes
+	 *            the bytes a connection may have waiting for the workers
+	 *            before its reader pauses
+	 */
+	public void setFairDispatch(Executor workers, int quantumBytes, long maxPendingBytes) {
+		this.dispatcher = new FairDispatcher(workers, quantumBytes, maxPendingBytes);
+	}
+
+	/**
+	 * Spreads the writes of {@link #sendAll(byte...)} broadcasts over threads
+	 * when sends are not asynchronous, rather than writing them on the
+	 * caller's thread, so a slow peer does not hold up the others. The
+	 * broadcasts run on the server's executor if it has one, otherwise on
+	 * this many threads of their own. Must be called before {@link #start()}
+	 * 
+	 * @param broadcastThreads
+	 *            the number of threads
+	 */
+	public void setBroadcastThreads(int broadcastThreads) {
+		if (broadcastThreads < 1) {
+			throw new IllegalArgumentException("Must have at least one broadcast thread");
+		}
+		this.broadcastThreads = broadcastThreads;
+	}
+
+	/**
+	 * Sets how many {@link #sendAll(byte...)} broadcasts each connection may
+	 * fall behind by when they are spread over broadcast threads. A connection
+	 * further
+	 * behind is disconnected with {@link DisconnectReason#SEND_QUEUE_FULL}
+	 * rather than left to hold every broadcast until it catches up. Defaults
+	 * to 1024. Must be called before {@link #start()}
+	 * 
+	 * @param maxMessages
+	 *            the most broadcasts to hold per connection
+	 */
+	public void setBroadcastBacklog(int maxMessages) {
+		if (maxMessages < 1) {
+			throw new IllegalArgumentException("Broadcast backlog must be at least 1");
+		}
+		this.broadcastBacklog = maxMessages;
+	}
+
+	/**
+	 * Sets how long a write to any connection may block before the
+	 * connection is closed, so a peer that stops reading cannot hold a
+	 * broadcast thread. Off by default. Must be called before
+	 * {@link #start()}
+	 * 
+	 * @param writeTimeoutMillis
+	 *            the longest a write may go without progress, or 0 for no
+	 *            limit
+	 * @see SocketClient#setWriteTimeout(long)
+	 */
+	public void setWriteTimeout(long writeTimeoutMillis) {
+		if (writeTimeoutMillis < 0) {
+			throw new IllegalArgumentException("Write timeout cannot be negative");
+		}
+		this.writeTimeoutMillis = writeTimeoutMillis;
+	}
+
+	/**
+	 * Sets how many threads accept connections. Each acceptor creates the
+	 * connections it accepts and runs {@link #onNewConnection} for them, and
+	 * keeps them in its own shard of the server's connections. Where the
+	 * platform supports SO_REUSEPORT, as Linux does on Java 9+, each acceptor
+	 * gets its own listening socket on the port and the kernel spreads
+	 * connections over them. Otherwise the acceptors share one listening
+	 * socket, which still spreads setting up connections over them. Must be
+	 * called before {@link #start()}
+	 * 
+	 * @param acceptors
+	 *            the number of acceptors, 1 by default
+	 */
+	public void setAcceptors(int acceptors) {
+		if (acceptors < 1) {
+			throw new IllegalArgumentException("Must have at least one acceptor");
+		}
+		this.acceptors = acceptors;
+	}
+
+	/**
+	 * Sets how many connections each listening socket queues before they are
+	 * accepted. Raising it stops bursts of connections being refused. Must be
+	 * called before {@link #start()}
+	 * 
+	 * @param backlog
+	 *            the queue length, 50 by default
+	 */
+	public void setBacklog(int backlog) {
+		if (backlog < 1) {
+			throw new IllegalArgumentException("Backlog must be positive");
+		}
+		this.backlog = backlog;
+	}
+
+	/**
+	 * Checks whether the acceptors each have their own listening socket
+	 * 
+	 * @return true if the server started with more than one acceptor and
+	 *         SO_REUSEPORT
+	 */
+	public boolean isReusingPort() {
+		return reusingPort;
+	}
+
 	/**
 	 * Initializes the server to start listening on the port. Must call
 	 * {@link #setActions(Action, Action, Action)} before this
@@ -80,8 +381,77 @@ public class SocketServer implements Closeable, Runnable {
 			throw new NullPointerException(nulls.replaceAll(", $", ""));
 		}
 		alive = true;
-		server = new ServerSocket(port);
-		new Thread(this).start();
+		Shard[] shards = new Shard[acceptors];
+		try {
+			ServerSocketChannel first = ServerSocketChannel.open();
+			reusingPort = acceptors > 1 && reusePort(first);
+			shards[0] = new Shard(listen(first));
+			for (int i = 1; i < acceptors; i++) {
+				if (reusingPort) {
+					ServerSocketChannel channel = ServerSocketChannel.open();
+					reusePort(channel);
+					shards[i] = new Shard(listen(channel));
+				} else {
+					shards[i] = new Shard(shards[0].server);
+				}
+			}
+		} catch (IOException e) {
+			for (Shard shard : shards) {
+				if (shard != null) {
+					shard.server.close();
+				}
+			}
+			throw e;
+		}
+		this.shards = shards;
+		if (broadcastThreads == 0) {
+			broadcastExecutor = null;
+		} else if (executor != null) {
+			broadcastExecutor = executor;
+		} else {
+			broadcastExecutor = Executors.newFixedThreadPool(broadcastThreads,
+					SocketExecutors.newThreadFactory("SocketServer-" + port + "-broadcast-", true));
+		}
+		for (int i = 0; i < shards.length; i++) {
+			Runnable acceptor = i == 0 ? this : shards[i];
+			if (executor != null) {
+				executor.execute(acceptor);
+			} else {
+				new Thread(acceptor, i == 0 ? "SocketServer-" + port : "SocketServer-" + port + "-acceptor-" + i)
+						.start();
+			}
+		}
+	}
+
+	/**
+	 * Binds a listening socket to the port
+	 */
+	private ServerSocket listen(ServerSocketChannel channel) throws IOException {
+		ServerSocket server = channel.socket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(port), backlog);
+		return server;
+	}
+
+	/**
+	 * Turns on SO_REUSEPORT, which is looked up reflectively as it was only
+	 * added in Java 9
+	 * 
+	 * @return false if the option is not supported
+	 */
+	@SuppressWarnings("unchecked")
+	private static boolean reusePort(ServerSocketChannel channel) throws IOException {
+		SocketOption<Boolean> option;
+		try {
+			option = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (ReflectiveOperationException e) {
+			return false;
+		}
+		if (!channel.supportedOptions().contains(option)) {
+			return false;
+		}
+		channel.setOption(option, true);
+		return true;
 	}
 
 	/**
@@ -97,22 +467,39 @@ public class SocketServer implements Closeable, Runnable {
 
 	/**
 	 * While alive listens for new connections and handles them. Runs
-	 * {@link #onNewConnection} for each new connection
+	 * {@link #onNewConnection} for each new connection. With more than one
+	 * acceptor this runs the first, and the others run on threads of their
+	 * own
 	 */
 	@Override
 	public void run() {
-		while (alive) {
-			try {
-				Socket socket = server.accept();
-				SocketClient connection = new SocketClient(socket);
-				connection.setActions(onReceive, onDisconnect);
-				connection.connect();
-				connections.put(socket.getRemoteSocketAddress().toString(), connection);
-				onNewConnection.run(socket);
-			} catch (IOException e) {
-				e.printStackTrace();
+		shards[0].run();
+	}
+
+	/**
+	 * Finds a connection in whichever shard holds it
+	 */
+	private SocketClient connection(String address) {
+		for (Shard shard : shards) {
+			SocketClient connection = shard.connections.get(address);
+			if (connection != null) {
+				return connection;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes a connection from whichever shard holds it
+	 */
+	private SocketClient remove(String address) {
+		for (Shard shard : shards) {
+			SocketClient connection = shard.connections.remove(address);
+			if (connection != null) {
+				return connection;
 			}
 		}
+		return null;
 	}
 
 	/**
@@ -126,7 +513,7 @@ public class SocketServer implements Closeable, Runnable {
 	 *             if an I/O error occurs
 	 */
 	public void send(String recipient, byte... data) throws IOException {
-		SocketClient connection = connections.get(recipient);
+		SocketClient connection = connection(recipient);
 		if (connection == null) {
 			throw new IOException("Connection does not exist: " + recipient);
 		}
@@ -138,36 +525,103 @@ public class SocketServer implements Closeable, Runnable {
 				throw new SocketException("Connection is no longer alive");
 			}
 		} catch (IOException e) {
-			connections.remove(recipient);
+			remove(recipient);
 			throw e;
 		}
 	}
 
 	/**
-	 * Sends data to all alive connections
+	 * Sends part of a file to a target connection without loading it onto the
+	 * heap
+	 * 
+	 * @param recipient
+	 *            the socket address of the target
+	 * @param path
+	 *            the file
+	 * @param offset
+	 *            the position in the file to start from
+	 * @param length
+	 *            the number of bytes to send
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @see SocketClient#sendFile(Path, long, long)
+	 */
+	public void sendFile(String recipient, Path path, long offset, long length) throws IOException {
+		SocketClient connection = connection(recipient);
+		if (connection == null) {
+			throw new IOException("Connection does not exist: " + recipient);
+		}
+		try {
+			if (connection.isAlive()) {
+				connection.sendFile(path, offset, length);
+			} else {
+				connection.close();
+				throw new SocketException("Connection is no longer alive");
+			}
+		} catch (SocketException e) {
+			remove(recipient);
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends data to all alive connections, framing it once for all of them.
+	 * By default it is written to each connection in turn on the caller's
+	 * thread before this returns. With asynchronous sends or
+	 * {@link #setBroadcastThreads(int)} it is instead queued on each
+	 * connection so a slow peer does not hold up the others, and this returns
+	 * before it is written: a later {@link #send(String, byte...)} to the
+	 * same connection may be written first, and {@link #close()} drops what
+	 * is not yet written. A connection that fails to write it, times out or
+	 * falls behind by more than the broadcast backlog is closed and removed
+	 * rather than failing the call
 	 * 
 	 * @param data
 	 *            data to send
+	 * @throws IllegalArgumentException
+	 *             if the data is too large for the frame codec
 	 */
 	public void sendAll(byte... data) {
-		while (true) {
+		if (frameCodec != null) {
 			try {
-				for (String remoteAddress : connections.keySet()) {
-					SocketClient connection = connections.get(remoteAddress);
-					try {
-						if (connection.isAlive()) {
-							connection.send(data);
-						} else {
-							connection.close();
-							throw new SocketException("Connection is no longer alive");
+				data = frameCodec.encode(data, 0, data.length);
+			} catch (FrameTooLargeException e) {
+				throw new IllegalArgumentException(e);
+			}
+		} else if (sendQueueCapacity == 0 && broadcastExecutor != null) {
+			data = data.clone();
+		}
+		if (sendQueueCapacity > 0) {
+			// one buffer shared by every queue, released by each once written
+			PooledBuffer shared = BufferPool.getDefault().copyOf(data, 0, data.length);
+			try {
+				for (Shard shard : shards) {
+					for (SocketClient connection : shard.connections.values()) {
+						try {
+							connection.sendEncoded(shared.retain());
+						} catch (IOException e) {
+							// the connection closes and removes itself
 						}
+					}
+				}
+			} finally {
+				shared.release();
+			}
+		} else if (broadcastExecutor != null) {
+			for (Shard shard : shards) {
+				for (SocketClient connection : shard.connections.values()) {
+					connection.sendEncoded(data, broadcastExecutor, broadcastBacklog);
+				}
+			}
+		} else {
+			for (Shard shard : shards) {
+				for (SocketClient connection : shard.connections.values()) {
+					try {
+						connection.sendEncoded(data);
 					} catch (IOException e) {
-						connections.remove(remoteAddress);
+						connection.close(DisconnectReason.ERROR, e);
 					}
 				}
-				break;
-			} catch (ConcurrentModificationException e) {
-				// retry
 			}
 		}
 	}
@@ -178,10 +632,20 @@ public class SocketServer implements Closeable, Runnable {
 	@Override
 	public void close() throws IOException {
 		alive = false;
-		for (SocketClient socketClient : connections.values()) {
-			socketClient.close();
+		for (Shard shard : shards) {
+			for (SocketClient socketClient : shard.connections.values()) {
+				socketClient.close();
+			}
+		}
+		if (broadcastExecutor != null && broadcastExecutor != executor) {
+			broadcastExecutor.shutdown();
+		}
+		for (Shard shard : shards) {
+			shard.server.close();
+		}
+		for (Shard shard : shards) {
+			shard.awaitStopped();
 		}
-		server.close();
 	}
 
 	/**
@@ -190,7 +654,51 @@ public class SocketServer implements Closeable, Runnable {
 	 * @return {@link Set} of socket address {@link String}s
 	 */
 	public Set<String> getConnections() {
-		return connections.keySet();
+		return connections;
+	}
+
+	/**
+	 * Gets the number of messages waiting in a connection's send queue
+	 * 
+	 * @param target
+	 *            the socket address
+	 * @return the queue depth
+	 * @throws IOException
+	 *             if the connection does not exist
+	 */
+	public int getQueueDepth(String target) throws IOException {
+		SocketClient connection = connection(target);
+		if (connection == null) {
+			throw new IOException("Connection does not exist: " + target);
+		}
+		return connection.getQueueDepth();
+	}
+
+	/**
+	 * Gets the metrics of the whole server, covering every connection it has
+	 * accepted
+	 * 
+	 * @return the {@link SocketMetrics}
+	 */
+	public SocketMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Gets the metrics of a connection
+	 * 
+	 * @param target
+	 *            the socket address
+	 * @return the {@link SocketMetrics}
+	 * @throws IOException
+	 *             if the connection does not exist
+	 */
+	public SocketMetrics getMetrics(String target) throws IOException {
+		SocketClient connection = connection(target);
+		if (connection == null) {
+			throw new IOException("Connection does not exist: " + target);
+		}
+		return connection.getMetrics();
 	}
 
 	/**
@@ -202,10 +710,152 @@ public class SocketServer implements Closeable, Runnable {
 	 *             if an I/O error occurs
 	 */
 	public void disconnect(String target) throws IOException {
-		SocketClient connection = connections.remove(target);
+		SocketClient connection = remove(target);
 		if (connection == null) {
 			throw new IOException("Connection does not exist: " + target);
 		}
 		connection.close();
 	}
+
+	/**
+	 * An acceptor and the connections it has accepted
+	 */
+	private class Shard implements Runnable {
+		private final ServerSocket server;
+		private final ConcurrentMap<String, SocketClient> connections = new ConcurrentHashMap<>();
+		private final CountDownLatch stopped = new CountDownLatch(1);
+		private volatile Thread thread;
+
+		private Shard(ServerSocket server) {
+			this.server = server;
+		}
+
+		@Override
+		public void run() {
+			thread = Thread.currentThread();
+			try {
+				accept();
+			} finally {
+				stopped.countDown();
+			}
+		}
+
+		/**
+		 * Accepts connections until closed
+		 */
+		private void accept() {
+			while (alive) {
+				try {
+					Socket socket = server.accept();
+					final String address = socket.getRemoteSocketAddress().toString();
+					final SocketClient connection = new SocketClient(socket, executor);
+					connection.setActions(onReceive, new Action() {
+
+						@Override
+						public Object run(Object... args) {
+							connections.remove(address, connection);
+							return onDisconnect.run(args);
+						}
+					});
+					connection.setServerMetrics(metrics);
+					connection.setChunkSize(chunkSize);
+					connection.setFrameCodec(frameCodec);
+					if (sendQueueCapacity > 0) {
+						connection.setAsyncSend(sendQueueCapacity, flushWindowMillis, backpressurePolicy);
+					}
+					connection.setIdleTimeout(readIdleMillis, writeIdleMillis);
+					connection.setWriteTimeout(writeTimeoutMillis);
+					if (heartbeatMillis > 0) {
+						connection.setHeartbeat(heartbeatMillis, heartbeat);
+					}
+					connection.setRateLimit(connectionBytesPerSecond, connectionMessagesPerSecond);
+					connection.setServerRateLimits(serverByteLimit, serverMessageLimit);
+					connection.setDispatcher(dispatcher);
+					connections.put(address, connection);
+					try {
+						connection.connect();
+					} catch (IOException e) {
+						connections.remove(address);
+						throw e;
+					}
+					onNewConnection.run(socket);
+				} catch (ClosedChannelException e) {
+					// closed by close()
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		/**
+		 * Waits for the accepting thread to finish, as closing the channel
+		 * while it is blocked in accept only releases the port once it has
+		 * returned
+		 */
+		private void awaitStopped() {
+			if (thread != Thread.currentThread()) {
+				try {
+					stopped.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A view of the addresses of every shard's connections
+	 */
+	private class ConnectionSet extends AbstractSet<String> {
+
+		@Override
+		public Iterator<String> iterator() {
+			final Shard[] shards = SocketServer.this.shards;
+			return new Iterator<String>() {
+				private int shard;
+				private Iterator<String> current = shards.length == 0 ? null : shards[0].connections.keySet()
+						.iterator();
+
+				@Override
+				public boolean hasNext() {
+					while (current != null && !current.hasNext()) {
+						current = ++shard < shards.length ? shards[shard].connections.keySet().iterator() : null;
+					}
+					return current != null;
+				}
+
+				@Override
+				public String next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					return current.next();
+				}
+
+				@Override
+				public void remove() {
+					current.remove();
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			int size = 0;
+			for (Shard shard : shards) {
+				size += shard.connections.size();
+			}
+			return size;
+		}
+
+		@Override
+		public boolean contains(Object address) {
+			for (Shard shard : shards) {
+				if (shard.connections.containsKey(address)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
 }
@@ -0,0 +1,79 @@
+package nohorjo.socket;
+
+/**
+ * Frames messages with an unsigned base 128 varint length prefix, as used by
+ * protocol buffers
+ * 
+ * @author muhammed
+ *
+ */
+public class VarintFrameCodec implements FrameCodec {
+	private final int maxFrameSize;
+
+	/**
+	 * Constructs a codec accepting frames up to
+	 * {@link FrameCodec#DEFAULT_MAX_FRAME_SIZE}
+	 */
+	public VarintFrameCodec() {
+		this(DEFAULT_MAX_FRAME_SIZE);
+	}
+
+	/**
+	 * Constructs a codec
+	 * 
+	 * @param maxFrameSize
+	 *            the largest payload to send or accept
+	 */
+	public VarintFrameCodec(int maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	@Override
+	public byte[] encode(byte[] data, int offset, int length) throws FrameTooLargeException {
+		if (length > maxFrameSize) {
+			throw new FrameTooLargeException(length, maxFrameSize);
+		}
+		int headerLength = 1;
+		for (int remaining = length >>> 7; remaining != 0; remaining >>>= 7) {
+			headerLength++;
+		}
+		byte[] frame = new byte[headerLength + length];
+		int value = length;
+		for (int i = 0; i < headerLength - 1; i++) {
+			frame[i] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		frame[headerLength - 1] = (byte) value;
+		System.arraycopy(data, offset, frame, headerLength, length);
+		return frame;
+	}
+
+	@Override
+	public FrameDecoder newDecoder() {
+		return new LengthFieldFrameDecoder(maxFrameSize) {
+			private int value;
+			private int shift;
+
+			@Override
+			protected int headerByte(byte b) throws MalformedFrameException {
+				if (shift > 28) {
+					value = 0;
+					shift = 0;
+					throw new MalformedFrameException("Varint length longer than 5 bytes");
+				}
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) != 0) {
+					shift += 7;
+					return -1;
+				}
+				int length = value;
+				value = 0;
+				shift = 0;
+				if (length < 0) {
+					throw new MalformedFrameException("Varint length overflows an int");
+				}
+				return length;
+			}
+		};
+	}
+}
@@ -0,0 +1,214 @@
+package nohorjo.common;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import nohorjo.delegation.Action;
+import nohorjo.socket.BackpressurePolicy;
+import nohorjo.socket.NioSocketServer;
+import nohorjo.socket.SocketClient;
+import nohorjo.socket.SocketServer;
+
+/**
+ * Runs asynchronous broadcasts through a {@link nohorjo.socket.SocketServer}
+ * and echoes through a {@link NioSocketServer}, then reports the
+ * {@link BufferPool} hit rate, bytes still outstanding, which should be 0, and
+ * garbage collections. Run with {@code -Dnohorjo.bufferpool.leakDetection=true}
+ * to report leaks
+ */
+public class BufferPoolTEST {
+	private static final int MESSAGE_SIZE = 256;
+
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int subscribers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		BufferPool pool = BufferPool.getDefault();
+		long[] gcBefore = gcStats();
+		long start = System.nanoTime();
+
+		broadcast(messages, subscribers);
+		echo(messages);
+		sendAfterClose();
+
+		long millis = (System.nanoTime() - start) / 1000000;
+		long[] gcAfter = gcStats();
+		System.gc();
+		Thread.sleep(100);
+		pool.allocate(1).release();
+		System.out.println("Done in " + millis + "ms, GCs " + (gcAfter[0] - gcBefore[0]) + " taking "
+				+ (gcAfter[1] - gcBefore[1]) + "ms");
+		System.out.println("Allocations " + pool.getAllocations() + ", hit rate " + pool.getHitRate()
+				+ ", bytes outstanding " + pool.getBytesOutstanding() + ", leaks " + pool.getLeaks());
+	}
+
+	private static void broadcast(final int messages, int subscribers) throws Exception {
+		Action none = new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				return null;
+			}
+		};
+		SocketServer server = new SocketServer(9009);
+		server.setActions(none, none, none);
+		server.setChunkSize(1024);
+		server.setAsyncSend(1024, 1, BackpressurePolicy.BLOCK);
+		server.start();
+
+		final CountDownLatch done = new CountDownLatch(subscribers);
+		SocketClient[] clients = new SocketClient[subscribers];
+		for (int i = 0; i < subscribers; i++) {
+			clients[i] = new SocketClient("localhost", 9009);
+			clients[i].setChunkSize(64 * 1024);
+			clients[i].setActions(new Action() {
+				long received;
+				int expected;
+
+				@Override
+				public Object run(Object... args) {
+					byte[] buffer = (byte[]) args[0];
+					int offset = (int) args[1];
+					int length = (int) args[2];
+					for (int j = offset; j < offset + length; j++, received++) {
+						if (received % MESSAGE_SIZE == 0) {
+							if (buffer[j] != (byte) expected++) {
+								throw new IllegalStateException("Message out of order at " + received);
+							}
+						}
+					}
+					if (received == (long) messages * MESSAGE_SIZE) {
+						done.countDown();
+					}
+					return null;
+				}
+			}, none);
+			clients[i].connect();
+		}
+		while (server.getConnections().size() < subscribers) {
+			Thread.sleep(10);
+		}
+
+		byte[] message = new byte[MESSAGE_SIZE];
+		for (int i = 0; i < messages; i++) {
+			message[0] = (byte) i;
+			server.sendAll(message);
+		}
+		done.await();
+		System.out.println("Broadcast " + messages + " messages to " + subscribers + " subscribers in order");
+		for (SocketClient client : clients) {
+			client.close();
+		}
+		server.close();
+	}
+
+	private static void echo(int messages) throws Exception {
+		final NioSocketServer server = new NioSocketServer(9010);
+		Action none = new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				return null;
+			}
+		};
+		server.setActions(new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				try {
+					byte[] buffer = (byte[]) args[0];
+					int offset = (int) args[1];
+					server.send((String) args[3], Arrays.copyOfRange(buffer, offset, offset + (int) args[2]));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				return null;
+			}
+		}, none, none);
+		server.setChunkSize(4096);
+		server.start();
+		try (Socket socket = new Socket("localhost", 9010)) {
+			OutputStream out = socket.getOutputStream();
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			byte[] message = new byte[MESSAGE_SIZE];
+			for (int i = 0; i < messages / 10; i++) {
+				out.write(message);
+				in.readFully(message);
+			}
+		}
+		System.out.println("Echoed " + messages / 10 + " messages through NioSocketServer");
+		server.close();
+	}
+
+	/**
+	 * Closes queued clients while another thread sends to them, then checks
+	 * that sending after close fails and no buffer was left behind
+	 */
+	private static void sendAfterClose() throws Exception {
+		Action none = new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				return null;
+			}
+		};
+		SocketServer server = new SocketServer(9026);
+		server.setActions(none, none, none);
+		server.start();
+		BufferPool pool = BufferPool.getDefault();
+		long outstanding = pool.getBytesOutstanding();
+		int connections = 200;
+		for (int i = 0; i < connections; i++) {
+			final SocketClient client = new SocketClient("localhost", 9026);
+			client.setAsyncSend(16, 1, BackpressurePolicy.DROP_OLDEST);
+			client.setActions(none, none);
+			client.connect();
+			Thread sender = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					byte[] message = new byte[MESSAGE_SIZE];
+					try {
+						while (true) {
+							client.send(message);
+						}
+					} catch (IOException e) {
+						// closed
+					}
+				}
+			});
+			sender.start();
+			Thread.sleep(1);
+			client.close();
+			sender.join();
+			try {
+				client.send(new byte[MESSAGE_SIZE]);
+				throw new IllegalStateException("Send after close did not fail");
+			} catch (SocketException e) {
+				// expected
+			}
+		}
+		server.close();
+		Thread.sleep(200);
+		long leaked = pool.getBytesOutstanding() - outstanding;
+		if (leaked != 0) {
+			throw new IllegalStateException(leaked + " bytes of buffers stranded by sends racing close");
+		}
+		System.out.println(connections + " clients closed while sending, sends after close refused, no buffers left");
+	}
+
+	private static long[] gcStats() {
+		long[] stats = new long[2];
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			stats[0] += gc.getCollectionCount();
+			stats[1] += gc.getCollectionTime();
+		}
+		return stats;
+	}
+}
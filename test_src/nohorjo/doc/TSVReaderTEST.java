@@ -0,0 +1,167 @@
+package nohorjo.doc;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import nohorjo.delegation.Action;
+
+/**
+ * Checks that {@link TSVReader} reads the same records as
+ * {@link TSVSpreadsheet}, that columns can be selected and that visiting and
+ * iterating can stop early. Then streams columns A, D and F of a large file
+ * and reports throughput and peak heap, which should stay flat whatever the
+ * size. Run with e.g. {@code -Xmx32m} to read a file larger than the heap.
+ * <p>
+ * Arguments, all optional: file size in MB. e.g. {@code 1024}
+ */
+public class TSVReaderTEST {
+	private static final int MB = 1024 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+
+		Path file = Files.createTempFile("tsv", ".tsv");
+		try {
+			write(file, MB);
+			TSVSpreadsheet sheet = new TSVSpreadsheet(file);
+			final List<List<String>> all = new ArrayList<>();
+			final List<List<String>> selected = new ArrayList<>();
+			TSVRow last = null;
+			try (TSVReader reader = new TSVReader(file)) {
+				for (TSVRow row : reader) {
+					if (last != null && last != row) {
+						throw new IllegalStateException("Row was not reused");
+					}
+					if (row.getRowNumber() != all.size()) {
+						throw new IllegalStateException("Wrong row number " + row.getRowNumber());
+					}
+					last = row;
+					all.add(row.toList());
+				}
+			}
+			new TSVReader(file).select("A", "D", "F").visit(new Action() {
+
+				@Override
+				public Object run(Object... args) {
+					selected.add(((TSVRow) args[0]).toList());
+					return null;
+				}
+			});
+			if (all.size() != sheet.size() || selected.size() != sheet.size()) {
+				throw new IllegalStateException("Read " + all.size() + " and " + selected.size() + " records of "
+						+ sheet.size());
+			}
+			for (int i = 0; i < sheet.size(); i++) {
+				if (!all.get(i).equals(sheet.getRecord(i))) {
+					throw new IllegalStateException("Record " + i + " differs: " + all.get(i) + " against "
+							+ sheet.getRecord(i));
+				}
+				// getCell pads the record it reads
+				List<String> columns = Arrays.asList(sheet.getCell("A" + (i + 1)), sheet.getCell("D" + (i + 1)),
+						sheet.getCell("F" + (i + 1)));
+				if (!selected.get(i).equals(columns)) {
+					throw new IllegalStateException("Columns of record " + i + " differ: " + selected.get(i)
+							+ " against " + columns);
+				}
+			}
+			System.out.println(all.size() + " records and columns A, D and F read as TSVSpreadsheet reads them");
+
+			long visited = new TSVReader(file).visit(new Action() {
+
+				@Override
+				public Object run(Object... args) {
+					return ((TSVRow) args[0]).getRowNumber() < 9;
+				}
+			});
+			int iterated = 0;
+			try (TSVReader reader = new TSVReader(file).select(2)) {
+				for (TSVRow row : reader) {
+					if (++iterated == 10 || row.size() != 1) {
+						break;
+					}
+				}
+			}
+			if (visited != 10 || iterated != 10) {
+				throw new IllegalStateException("Stopped after " + visited + " and " + iterated + " records");
+			}
+			System.out.println("Visiting and iterating stopped after 10 records");
+
+			long length = write(file, (long) size * MB);
+			System.out.println("Wrote " + length / MB + "MB of TSV");
+			resetPeak();
+			long start = System.nanoTime();
+			long chars = 0;
+			long records = 0;
+			try (TSVReader reader = new TSVReader(file).select("A", "D", "F")) {
+				for (TSVRow row : reader) {
+					for (int i = 0; i < row.size(); i++) {
+						chars += row.get(i).length();
+					}
+					records++;
+				}
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(String.format("Streamed columns A, D and F of %,d records, %,d chars, in %.2fs: %d MB/s"
+					+ ", peak heap %dMB", records, chars, seconds, (long) (length / seconds / MB), peakHeap() / MB));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	/**
+	 * Writes records of 0 to 8 numbered cells, some empty, until the file
+	 * reaches the size
+	 * 
+	 * @return the length written
+	 */
+	private static long write(Path file, long size) throws IOException {
+		long length = 0;
+		try (BufferedWriter writer = Files.newBufferedWriter(file, Charset.defaultCharset())) {
+			StringBuilder record = new StringBuilder();
+			for (long i = 0; length < size; i++) {
+				record.setLength(0);
+				int cells = (int) (i % 9);
+				for (int cell = 0; cell < cells; cell++) {
+					if (cell > 0) {
+						record.append('\t');
+					}
+					if ((i + cell) % 7 != 0) {
+						record.append("cell").append(i).append('-').append(cell);
+					}
+				}
+				record.append('\n');
+				writer.write(record.toString());
+				length += record.length();
+			}
+		}
+		return length;
+	}
+
+	private static void resetPeak() {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+}
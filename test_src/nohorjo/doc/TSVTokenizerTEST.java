@@ -0,0 +1,276 @@
+package nohorjo.doc;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that {@link TSVTokenizer} splits records exactly as
+ * {@code readLine()} and {@code split("\t")} did, across buffer boundaries and
+ * charsets, and that quotes and escapes are read, and that
+ * {@link TSVSpreadsheet} loads a small file as it did. Then writes a TSV file
+ * and compares the throughput and allocation of loading it the old way,
+ * through {@link TSVSpreadsheet} and through the tokenizer alone, and checks
+ * the tokenizer reads it as the old way did a record at a time. The old way
+ * and the spreadsheet hold the whole file, so the heap needs several times
+ * its size.
+ * <p>
+ * Arguments, all optional: file size in MB and the number of timed runs of
+ * each, after one to warm up. e.g. {@code 200 3}
+ */
+public class TSVTokenizerTEST {
+	private static final int MB = 1024 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		String[] inputs = { "", "\n", "a", "a\n", "a\tb\tc", "a\t\tb\n", "a\t\t\n", "\t\n", "\t\t", "\ta\n",
+				"a\r\nb\r\n", "a\rb\r", "a\r\n\r\nb", "\n\n\n", "a\r", "\r\n", "x\ty\n\nz\t\n", "\"a\tb\"\t\\t",
+				"café\tnaïve\t日本語\n€\t\n" };
+		for (String input : inputs) {
+			for (Charset charset : new Charset[] { StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1,
+					StandardCharsets.UTF_16 }) {
+				byte[] bytes = input.getBytes(charset);
+				List<List<String>> expected = legacy(bytes, charset);
+				for (int buffer = 1; buffer <= 9; buffer++) {
+					List<List<String>> actual = tokenize(new TSVTokenizer(new ByteArrayInputStream(bytes), charset,
+							buffer));
+					if (!actual.equals(expected)) {
+						throw new IllegalStateException("Wrong records for " + escape(input) + " in " + charset
+								+ " with a " + buffer + " byte buffer: " + actual + " expected " + expected);
+					}
+				}
+			}
+		}
+		System.out.println(inputs.length + " inputs split as before in 3 charsets with buffers of 1 to 9 bytes");
+
+		checkQuoted("\"a\tb\"\tc\n", true, false, "[[a\tb, c]]");
+		checkQuoted("\"say \"\"hi\"\"\"\t\"line\nbreak\"\r\nnext", true, false, "[[say \"hi\", line\nbreak], [next]]");
+		checkQuoted("a\"b\"\t\"c\"d\t\"\"\n", true, false, "[[a\"b\", cd]]");
+		checkQuoted("\"unclosed\tcell\n", true, false, "[[unclosed\tcell\n]]");
+		checkQuoted("a\\tb\t\\\\\t\\n\\r\t\\x\n\\", false, true, "[[a\tb, \\, \n\r, \\x], [\\]]");
+		checkQuoted("a\\\tb\tc\\\nd\n", false, true, "[[a\tb, c\nd]]");
+		checkQuoted("\"a\\\"b\"\tc\n", true, true, "[[a\"b, c]]");
+		System.out.println("Quotes and escapes read as expected");
+
+		Path file = Files.createTempFile("tsv", ".tsv");
+		try {
+			write(file, MB);
+			List<List<String>> expected = legacy(Files.newInputStream(file));
+			List<List<String>> actual = new ArrayList<>();
+			for (List<String> record : new TSVSpreadsheet(file)) {
+				actual.add(record);
+			}
+			if (!actual.equals(expected)) {
+				throw new IllegalStateException("File loaded differently");
+			}
+			System.out.println("1MB file loaded into a TSVSpreadsheet as before");
+
+			long length = write(file, (long) size * MB);
+			System.out.println("Wrote " + length / MB + "MB of TSV");
+			for (int run = 0; run <= runs; run++) {
+				boolean warmUp = run == 0;
+				time("readLine and split", file, length, warmUp, new Load() {
+
+					@Override
+					public long load(Path file) throws IOException {
+						return legacy(Files.newInputStream(file)).size();
+					}
+				});
+				time("readAllLines and split", file, length, warmUp, new Load() {
+
+					@Override
+					public long load(Path file) throws IOException {
+						List<List<String>> records = new ArrayList<>();
+						for (String record : Files.readAllLines(file, Charset.defaultCharset())) {
+							records.add(new ArrayList<>(Arrays.asList(record.split("\t"))));
+						}
+						return records.size();
+					}
+				});
+				time("TSVSpreadsheet(InputStream)", file, length, warmUp, new Load() {
+
+					@Override
+					public long load(Path file) throws IOException {
+						return new TSVSpreadsheet(Files.newInputStream(file)).size();
+					}
+				});
+				time("TSVSpreadsheet(Path)", file, length, warmUp, new Load() {
+
+					@Override
+					public long load(Path file) throws IOException {
+						return new TSVSpreadsheet(file).size();
+					}
+				});
+				time("TSVTokenizer, one cell decoded", file, length, warmUp, new Load() {
+
+					@Override
+					public long load(Path file) throws IOException {
+						long records = 0;
+						int chars = 0;
+						try (TSVTokenizer tokenizer = new TSVTokenizer(file, Charset.defaultCharset())) {
+							while (tokenizer.next()) {
+								chars += tokenizer.getCell(0).length();
+								records++;
+							}
+						}
+						return chars > 0 ? records : 0;
+					}
+				});
+			}
+			long records = 0;
+			try (BufferedReader reader = Files.newBufferedReader(file, Charset.defaultCharset());
+					TSVTokenizer tokenizer = new TSVTokenizer(file, Charset.defaultCharset())) {
+				String record;
+				while ((record = reader.readLine()) != null) {
+					List<String> cells = Arrays.asList(record.split("\t"));
+					if (!tokenizer.next() || !tokenizer.getRecord().equals(cells)) {
+						throw new IllegalStateException("Record " + records + " read differently");
+					}
+					records++;
+				}
+				if (tokenizer.next()) {
+					throw new IllegalStateException("Tokenizer read more than " + records + " records");
+				}
+			}
+			System.out.println(records + " records tokenized as readLine and split read them");
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	/**
+	 * The way {@link TSVSpreadsheet} used to read a stream
+	 */
+	private static List<List<String>> legacy(byte[] bytes, Charset charset) throws IOException {
+		List<List<String>> records = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes),
+				charset))) {
+			String record;
+			while ((record = reader.readLine()) != null) {
+				records.add(new ArrayList<>(Arrays.asList(record.split("\t"))));
+			}
+		}
+		return records;
+	}
+
+	private static List<List<String>> legacy(java.io.InputStream in) throws IOException {
+		List<List<String>> records = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {
+			String record;
+			while ((record = reader.readLine()) != null) {
+				records.add(new ArrayList<>(Arrays.asList(record.split("\t"))));
+			}
+		}
+		return records;
+	}
+
+	private static List<List<String>> tokenize(TSVTokenizer tokenizer) throws IOException {
+		List<List<String>> records = new ArrayList<>();
+		try (TSVTokenizer t = tokenizer) {
+			while (t.next()) {
+				records.add(t.getRecord());
+			}
+		}
+		return records;
+	}
+
+	private static void checkQuoted(String input, boolean quotes, boolean escapes, String expected)
+			throws IOException {
+		byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+		for (int buffer = 1; buffer <= 9; buffer++) {
+			TSVTokenizer tokenizer = new TSVTokenizer(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8, buffer);
+			tokenizer.setQuotes(quotes);
+			tokenizer.setEscapes(escapes);
+			String actual = tokenize(tokenizer).toString();
+			if (!actual.equals(expected)) {
+				throw new IllegalStateException("Wrong records for " + escape(input) + " with a " + buffer
+						+ " byte buffer: " + escape(actual) + " expected " + escape(expected));
+			}
+		}
+	}
+
+	private static String escape(String s) {
+		return s.replace("\t", "\\t").replace("\r", "\\r").replace("\n", "\\n");
+	}
+
+	/**
+	 * Writes records of 8 cells of words and numbers, some empty, until the
+	 * file reaches the size
+	 * 
+	 * @return the length written
+	 */
+	private static long write(Path file, long size) throws IOException {
+		Random random = new Random(42);
+		String[] words = { "alpha", "beta", "gamma", "delta", "epsilon", "zeta", "eta", "theta",
+				Charset.defaultCharset().newEncoder().canEncode("café") ? "café" : "cafe", "" };
+		long length = 0;
+		try (BufferedWriter writer = Files.newBufferedWriter(file, Charset.defaultCharset())) {
+			StringBuilder record = new StringBuilder();
+			while (length < size) {
+				record.setLength(0);
+				for (int cell = 0; cell < 8; cell++) {
+					if (cell > 0) {
+						record.append('\t');
+					}
+					if (cell % 2 == 0) {
+						record.append(random.nextInt(1000000));
+					} else {
+						record.append(words[random.nextInt(words.length)]);
+					}
+				}
+				record.append(random.nextInt(10) == 0 ? "\r\n" : "\n");
+				writer.write(record.toString());
+				length += record.toString().getBytes(Charset.defaultCharset()).length;
+			}
+		}
+		return length;
+	}
+
+	private static void time(String name, Path file, long length, boolean warmUp, Load load) throws IOException {
+		System.gc();
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		long records = load.load(file);
+		long nanos = System.nanoTime() - start;
+		long allocated = allocatedBytes() - allocatedBefore;
+		if (!warmUp) {
+			System.out.println(String.format("%-32s %,d records in %dms: %d MB/s, %d bytes allocated per record",
+					name, records, nanos / 1000000, (long) (length / (nanos / 1e9) / MB), allocated / records));
+		}
+	}
+
+	/**
+	 * Gets the bytes allocated by the current thread, or 0 if the JVM does
+	 * not count them
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	/**
+	 * Loads a file one way
+	 */
+	private interface Load {
+		/**
+		 * @return the number of records
+		 */
+		long load(Path file) throws IOException;
+	}
+}
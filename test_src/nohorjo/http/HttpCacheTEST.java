@@ -0,0 +1,143 @@
+package nohorjo.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Repeats GETs through an {@link HttpCache} against a loopback server that
+ * counts what reaches it: fresh responses, ones revalidated by ETag and by
+ * Last-Modified, ones that may not be stored, and enough large ones to spill
+ * from memory to disk and be read back by a new cache on the same directory.
+ * Also checks that changing a body handed out does not change the cached one
+ */
+public class HttpCacheTEST {
+	private static final AtomicInteger served = new AtomicInteger();
+	private static final AtomicInteger bodiesSent = new AtomicInteger();
+
+	public static void main(String[] args) throws Exception {
+		final int repeats = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int port = 9021;
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 16);
+		server.createContext("/fresh", handler("max-age=60", null, null));
+		server.createContext("/etag", handler("no-cache", "\"v1\"", null));
+		server.createContext("/lastmod", handler("max-age=0", null, "Mon, 01 Jan 2018 00:00:00 GMT"));
+		server.createContext("/nostore", handler("no-store", "\"v1\"", null));
+		server.createContext("/big", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				served.incrementAndGet();
+				bodiesSent.incrementAndGet();
+				byte[] body = new byte[100 * 1024];
+				body[0] = (byte) exchange.getRequestURI().getQuery().hashCode();
+				exchange.getResponseHeaders().set("Cache-Control", "max-age=60");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		server.setExecutor(executor);
+		server.start();
+
+		String base = "http://localhost:" + port;
+		HttpOperation http = new HttpOperation();
+		HttpCache cache = new HttpCache(1024 * 1024);
+		http.setCache(cache);
+
+		for (String path : new String[] { "/fresh", "/etag", "/lastmod", "/nostore" }) {
+			served.set(0);
+			bodiesSent.set(0);
+			long start = System.nanoTime();
+			for (int i = 0; i < repeats; i++) {
+				if (!http.doGet(base + path).equals("body of " + path)) {
+					throw new IllegalStateException("Wrong body for " + path);
+				}
+			}
+			System.out.println(path + ": " + repeats + " GETs, " + served.get() + " reached the server, "
+					+ bodiesSent.get() + " bodies sent, " + (System.nanoTime() - start) / 1000 / repeats
+					+ "us each");
+		}
+		byte[] scribbled = http.doGetResponse(base + "/fresh", null).getBody();
+		scribbled[0] = 'X';
+		HttpResponse fresh = http.doGetResponse(base + "/fresh", null);
+		if (!fresh.getBodyAsString().equals("body of /fresh") || !fresh.getBodyBuffer().isReadOnly()) {
+			throw new IllegalStateException("Changing a body changed the cached one: " + fresh.getBodyAsString());
+		}
+		System.out.println("hits " + cache.getHits() + ", misses " + cache.getMisses() + ", revalidations "
+				+ cache.getRevalidations() + ", not modified " + cache.getNotModified() + ", hit rate "
+				+ String.format("%.2f", cache.getHitRate()));
+
+		Path directory = Files.createTempDirectory("httpcache");
+		try {
+			cache = new HttpCache(512 * 1024, directory, 4 * 1024 * 1024);
+			http.setCache(cache);
+			served.set(0);
+			for (int i = 0; i < 20; i++) {
+				http.doGetResponse(base + "/big?" + i, null);
+			}
+			System.out.println("20 large GETs: memory " + cache.getMemoryBytes() / 1024 + "KB, disk "
+					+ cache.getDiskBytes() / 1024 + "KB, evictions " + cache.getEvictions());
+
+			cache = new HttpCache(512 * 1024, directory, 4 * 1024 * 1024);
+			http.setCache(cache);
+			for (int i = 0; i < 20; i++) {
+				HttpResponse response = http.doGetResponse(base + "/big?" + i, null);
+				if (response.getBody()[0] != (byte) Integer.toString(i).hashCode()) {
+					throw new IllegalStateException("Wrong body from disk for " + i);
+				}
+			}
+			System.out.println("Same 20 through a new cache on the directory: " + served.get()
+					+ " reached the server in total, disk hits " + cache.getDiskHits() + ", hits " + cache.getHits());
+			cache.clear();
+		} finally {
+			Files.delete(directory);
+		}
+
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	private static HttpHandler handler(final String cacheControl, final String etag, final String lastModified) {
+		return new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				served.incrementAndGet();
+				exchange.getResponseHeaders().set("Cache-Control", cacheControl);
+				if (etag != null) {
+					exchange.getResponseHeaders().set("ETag", etag);
+				}
+				if (lastModified != null) {
+					exchange.getResponseHeaders().set("Last-Modified", lastModified);
+				}
+				if ((etag != null && etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+						|| (lastModified != null
+								&& lastModified.equals(exchange.getRequestHeaders().getFirst("If-Modified-Since")))) {
+					exchange.sendResponseHeaders(304, -1);
+					exchange.close();
+					return;
+				}
+				bodiesSent.incrementAndGet();
+				byte[] body = ("body of " + exchange.getHttpContext().getPath()).getBytes(StandardCharsets.UTF_8);
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		};
+	}
+}
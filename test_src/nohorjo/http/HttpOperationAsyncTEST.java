@@ -0,0 +1,147 @@
+package nohorjo.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import nohorjo.common.CallbackFuture;
+import nohorjo.common.LatencyHistogram;
+import nohorjo.delegation.Action;
+
+/**
+ * Makes thousands of asynchronous GETs on one {@link HttpOperation} against a
+ * loopback server that takes 20ms to answer, checking each response carries
+ * its own byte count and that no more run at once than the in-flight cap,
+ * then cancels a request to a server that never answers
+ */
+public class HttpOperationAsyncTEST {
+	private static final AtomicInteger concurrent = new AtomicInteger();
+	private static final AtomicInteger peakConcurrent = new AtomicInteger();
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int maxInFlight = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int port = 9019;
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		System.setProperty("http.maxConnections", Integer.toString(maxInFlight));
+
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 1024);
+		server.createContext("/size", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				int now = concurrent.incrementAndGet();
+				int peak;
+				while (now > (peak = peakConcurrent.get()) && !peakConcurrent.compareAndSet(peak, now)) {
+					// retry
+				}
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				byte[] body = new byte[Integer.parseInt(exchange.getRequestURI().getQuery())];
+				concurrent.decrementAndGet();
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		server.createContext("/hang", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					Thread.sleep(60000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				exchange.close();
+			}
+		});
+		ExecutorService serverExecutor = Executors.newFixedThreadPool(maxInFlight + 8);
+		server.setExecutor(serverExecutor);
+		server.start();
+
+		final HttpOperation http = new HttpOperation();
+		http.setMaxInFlight(maxInFlight);
+		String base = "http://localhost:" + port;
+
+		final LatencyHistogram totalTimes = new LatencyHistogram();
+		final LatencyHistogram waitTimes = new LatencyHistogram();
+		final AtomicInteger wrongSizes = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(count);
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			final int size = i % 1000;
+			http.doGetAsync(base + "/size?" + size, null).setCallback(new Action() {
+
+				@Override
+				public Object run(Object... args) {
+					HttpResponse response = (HttpResponse) args[0];
+					if (response == null) {
+						((Throwable) args[1]).printStackTrace();
+						failures.incrementAndGet();
+					} else {
+						if (response.getBytesRead() != size || response.getBody().length != size) {
+							wrongSizes.incrementAndGet();
+						}
+						totalTimes.record(response.getTotalTime(TimeUnit.MICROSECONDS));
+						waitTimes.record(response.getWaitTime(TimeUnit.MICROSECONDS));
+					}
+					done.countDown();
+					return null;
+				}
+			});
+		}
+		System.out.println("Queued " + count + ", in flight " + http.getInFlight() + ", waiting " + http.getQueued());
+		done.await();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(count + " GETs in " + String.format("%.2f", seconds) + "s, " + (long) (count / seconds)
+				+ "/s against " + (long) (maxInFlight / 0.02) + "/s at best, peak concurrent " + peakConcurrent.get()
+				+ " (cap " + maxInFlight + "), wrong sizes " + wrongSizes.get() + ", failures " + failures.get());
+		System.out.println("Total p50 " + totalTimes.getPercentile(50) + "us p99 " + totalTimes.getPercentile(99)
+				+ "us, queued p50 " + waitTimes.getPercentile(50) + "us p99 " + waitTimes.getPercentile(99) + "us");
+
+		List<CallbackFuture<HttpResponse>> hanging = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			hanging.add(http.doGetAsync(base + "/hang", null));
+		}
+		Thread.sleep(200);
+		long cancelStart = System.nanoTime();
+		for (CallbackFuture<HttpResponse> future : hanging) {
+			future.cancel(true);
+			try {
+				future.get();
+				throw new IllegalStateException("Cancelled request completed");
+			} catch (CancellationException e) {
+				// expected
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		while (http.getInFlight() > 0 && System.nanoTime() - cancelStart < TimeUnit.SECONDS.toNanos(5)) {
+			Thread.sleep(1);
+		}
+		System.out.println("Cancelled 4 hanging requests, in flight after "
+				+ (System.nanoTime() - cancelStart) / 1000000 + "ms: " + http.getInFlight());
+
+		server.stop(0);
+		serverExecutor.shutdownNow();
+	}
+}
@@ -0,0 +1,240 @@
+package nohorjo.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import nohorjo.common.LatencyHistogram;
+
+/**
+ * Load tests {@link HttpOperation} against a loopback server, entirely
+ * offline. Runs {@code doGet} or {@code doPost} from a number of threads for
+ * a while after a warm up, then reports throughput, latency percentiles,
+ * bytes allocated per request by the calling threads and the connections the
+ * server saw.
+ * <p>
+ * Arguments, all optional: mode (get, post or mixed), threads, seconds,
+ * payload bytes (the response body for GETs, the request body for POSTs),
+ * redirects before each GET's payload, latency the server adds to each
+ * payload in milliseconds, and a p99 in microseconds above which it exits
+ * with status 1, to gate regressions. e.g.
+ * {@code get 8 10 1024 1 0 5000}
+ */
+public class HttpOperationBenchmarkTEST {
+	private static final Set<String> connections = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private static final AtomicLong served = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		final String mode = args.length > 0 ? args[0] : "get";
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		int payloadBytes = args.length > 3 ? Integer.parseInt(args[3]) : 1024;
+		final int redirects = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+		final int latencyMillis = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+		long maxP99Micros = args.length > 6 ? Long.parseLong(args[6]) : 0;
+		if (!mode.equals("get") && !mode.equals("post") && !mode.equals("mixed")) {
+			throw new IllegalArgumentException("Mode must be get, post or mixed: " + mode);
+		}
+		int port = 9024;
+
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		// let the keep-alive cache take back a connection per thread
+		System.setProperty("http.maxConnections", Integer.toString(threads));
+
+		final byte[] payload = new byte[payloadBytes];
+		new Random(42).nextBytes(payload);
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 1024);
+		server.createContext("/payload", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				count(exchange);
+				delay(latencyMillis);
+				send(exchange, 200, payload);
+			}
+		});
+		server.createContext("/hop/", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				count(exchange);
+				int left = Integer.parseInt(exchange.getRequestURI().getPath().substring("/hop/".length()));
+				exchange.getResponseHeaders().set("Location", left <= 1 ? "/payload" : "/hop/" + (left - 1));
+				// 302 so every hop is asked for, where a 301 would be remembered
+				send(exchange, 302, "moved".getBytes(StandardCharsets.UTF_8));
+			}
+		});
+		server.createContext("/upload", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				count(exchange);
+				long length = 0;
+				byte[] buffer = new byte[64 * 1024];
+				try (InputStream in = exchange.getRequestBody()) {
+					int read;
+					while ((read = in.read(buffer)) >= 0) {
+						length += read;
+					}
+				}
+				delay(latencyMillis);
+				send(exchange, 200, Long.toString(length).getBytes(StandardCharsets.UTF_8));
+			}
+		});
+		ExecutorService serverExecutor = Executors.newFixedThreadPool(threads + 4);
+		server.setExecutor(serverExecutor);
+		server.start();
+
+		HttpOperation http = new HttpOperation();
+		// each GET should make its own requests, not share another thread's
+		http.setCoalesceGets(false);
+		String base = "http://localhost:" + port;
+		String getUrl = redirects > 0 ? base + "/hop/" + redirects : base + "/payload";
+		String postData = new String(new char[payloadBytes]).replace('\0', 'x');
+
+		Load warmUp = new Load(http, mode, getUrl, base + "/upload", postData, threads);
+		warmUp.run(Math.min(2, seconds));
+		connections.clear();
+		served.set(0);
+
+		Load load = new Load(http, mode, getUrl, base + "/upload", postData, threads);
+		long millis = load.run(seconds);
+		long operations = load.latencies.getCount();
+		long p99 = load.latencies.getPercentile(99) / 1000;
+		System.out.println("mode " + mode + ", " + threads + " threads, " + payloadBytes + " byte payload, "
+				+ redirects + " redirects, " + latencyMillis + "ms server latency");
+		System.out.println(operations + " operations in " + millis + "ms: " + operations * 1000 / Math.max(1, millis)
+				+ "/s, " + served.get() + " requests served on " + connections.size() + " connections, errors "
+				+ load.errors.get());
+		System.out.println("latency p50 " + load.latencies.getPercentile(50) / 1000 + "us p99 " + p99 + "us p999 "
+				+ load.latencies.getPercentile(99.9) / 1000 + "us mean "
+				+ (long) (load.latencies.getMean() / 1000) + "us");
+		System.out.println("allocated " + (operations == 0 ? 0 : load.allocated.get() / operations)
+				+ " bytes per operation on the calling threads");
+
+		server.stop(0);
+		serverExecutor.shutdown();
+		if (load.errors.get() > 0 || (maxP99Micros > 0 && p99 > maxP99Micros)) {
+			System.out.println("FAILED: errors " + load.errors.get() + ", p99 " + p99 + "us against a limit of "
+					+ maxP99Micros + "us");
+			System.exit(1);
+		}
+	}
+
+	private static void count(HttpExchange exchange) {
+		served.incrementAndGet();
+		connections.add(exchange.getRemoteAddress().toString());
+	}
+
+	private static void delay(int millis) {
+		if (millis > 0) {
+			try {
+				Thread.sleep(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Threads making requests until a deadline
+	 */
+	private static class Load {
+		private final HttpOperation http;
+		private final String mode;
+		private final String getUrl;
+		private final String postUrl;
+		private final String postData;
+		private final int threads;
+		private final LatencyHistogram latencies = new LatencyHistogram();
+		private final AtomicLong allocated = new AtomicLong();
+		private final AtomicInteger errors = new AtomicInteger();
+
+		private Load(HttpOperation http, String mode, String getUrl, String postUrl, String postData, int threads) {
+			this.http = http;
+			this.mode = mode;
+			this.getUrl = getUrl;
+			this.postUrl = postUrl;
+			this.postData = postData;
+			this.threads = threads;
+		}
+
+		/**
+		 * @return the milliseconds taken
+		 */
+		private long run(int seconds) throws InterruptedException {
+			final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+			final CountDownLatch done = new CountDownLatch(threads);
+			long start = System.nanoTime();
+			for (int i = 0; i < threads; i++) {
+				final boolean post = mode.equals("post") || (mode.equals("mixed") && i % 2 == 1);
+				new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						long allocatedBefore = allocatedBytes();
+						try {
+							while (System.nanoTime() < deadline) {
+								long begin = System.nanoTime();
+								try {
+									if (post) {
+										http.doPost(postUrl, postData, ContentType.TEXT);
+									} else {
+										http.doGet(getUrl);
+									}
+									latencies.record(System.nanoTime() - begin);
+								} catch (IOException e) {
+									if (errors.incrementAndGet() == 1) {
+										e.printStackTrace();
+									}
+								}
+							}
+						} finally {
+							allocated.addAndGet(allocatedBytes() - allocatedBefore);
+							done.countDown();
+						}
+					}
+				}, "load-" + i).start();
+			}
+			done.await();
+			return (System.nanoTime() - start) / 1000000;
+		}
+	}
+
+	/**
+	 * Gets the bytes allocated by the current thread, or 0 if the JVM does
+	 * not count them
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,151 @@
+package nohorjo.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Fetches a compressible body from a loopback server as gzip, zlib deflate,
+ * raw deflate and uncompressed, checking it decodes to the same bytes and
+ * reporting the bytes on the wire against decoded, then posts a large body
+ * gzipped
+ */
+public class HttpOperationCompressionTEST {
+	private static final byte[] BODY;
+
+	static {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; text.length() < 1024 * 1024; i++) {
+			text.append("line ").append(i).append(": the quick brown fox jumps over the lazy dog\r\n");
+		}
+		BODY = text.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = 9020;
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 16);
+		server.createContext("/text", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+				String encoding = exchange.getRequestURI().getQuery();
+				if (accept == null || !accept.contains(encoding.replace("raw", ""))) {
+					encoding = "identity";
+				}
+				ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+				OutputStream out;
+				switch (encoding) {
+				case "gzip":
+					out = new GZIPOutputStream(encoded);
+					break;
+				case "deflate":
+					out = new DeflaterOutputStream(encoded);
+					break;
+				case "rawdeflate":
+					out = new DeflaterOutputStream(encoded, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+					break;
+				default:
+					out = encoded;
+				}
+				out.write(BODY);
+				out.close();
+				if (!encoding.equals("identity")) {
+					exchange.getResponseHeaders().set("Content-Encoding", encoding.replace("raw", ""));
+				}
+				exchange.sendResponseHeaders(200, encoded.size());
+				try (OutputStream body = exchange.getResponseBody()) {
+					encoded.writeTo(body);
+				}
+			}
+		});
+		server.createContext("/empty", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+				exchange.sendResponseHeaders(204, -1);
+				exchange.close();
+			}
+		});
+		server.createContext("/echo", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream in = exchange.getRequestBody();
+				if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+					in = new GZIPInputStream(in);
+				}
+				ByteArrayOutputStream received = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) >= 0) {
+					received.write(buffer, 0, read);
+				}
+				byte[] reply = received.toByteArray();
+				exchange.sendResponseHeaders(200, reply.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(reply);
+				}
+			}
+		});
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		server.setExecutor(executor);
+		server.start();
+
+		String base = "http://localhost:" + port;
+		HttpOperation http = new HttpOperation();
+		for (String encoding : new String[] { "gzip", "deflate", "rawdeflate" }) {
+			HttpResponse response = http.doGetResponse(base + "/text?" + encoding, null);
+			check(encoding, response.getBody());
+			System.out.println(encoding + ": " + response.getWireBytesRead() + " bytes on the wire, "
+					+ response.getBytesRead() + " decoded, " + response.getTotalTime(TimeUnit.MILLISECONDS)
+					+ "ms");
+		}
+		ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+		http.doGet(base + "/text?gzip", null, streamed);
+		check("streamed gzip", streamed.toByteArray());
+		System.out.println("streamed gzip: getWireBytesRead " + http.getWireBytesRead() + ", getBytesRead "
+				+ http.getBytesRead());
+
+		http.setAcceptCompressed(false);
+		HttpResponse plain = http.doGetResponse(base + "/text?gzip", null);
+		check("uncompressed", plain.getBody());
+		System.out.println("uncompressed: " + plain.getWireBytesRead() + " bytes on the wire");
+		http.setAcceptCompressed(true);
+
+		HttpResponse empty = http.doGetResponse(base + "/empty", null);
+		System.out.println("empty gzip 204: status " + empty.getStatus() + ", " + empty.getBody().length + " bytes");
+
+		http.setPostCompression(1024);
+		String data = new String(BODY, StandardCharsets.UTF_8);
+		HttpResponse echoed = http.doPostResponse(base + "/echo", data, ContentType.TEXT);
+		check("gzipped POST", echoed.getBody());
+		System.out.println("gzipped POST of " + BODY.length + " bytes echoed intact");
+
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	private static void check(String mode, byte[] body) {
+		if (!Arrays.equals(body, BODY)) {
+			throw new IllegalStateException(mode + " body differs, " + body.length + " bytes");
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package nohorjo.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import nohorjo.common.CallbackFuture;
+
+/**
+ * Checks that a permanent redirect is only asked for once, that redirect
+ * loops and over long chains fail after a request per hop, and that 50
+ * threads getting the same slow url at once make a single request, even
+ * when the request they are waiting on is cancelled
+ */
+public class HttpOperationRedirectTEST {
+	private static final AtomicInteger movedRequests = new AtomicInteger();
+	private static final AtomicInteger loopRequests = new AtomicInteger();
+	private static final AtomicInteger slowRequests = new AtomicInteger();
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int port = 9022;
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 128);
+		server.createContext("/moved", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				movedRequests.incrementAndGet();
+				exchange.getResponseHeaders().set("Location", "/final");
+				send(exchange, 301, "moved");
+			}
+		});
+		server.createContext("/final", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				send(exchange, 200, "final");
+			}
+		});
+		server.createContext("/loop", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				loopRequests.incrementAndGet();
+				String path = exchange.getRequestURI().getPath();
+				exchange.getResponseHeaders().set("Location", path.endsWith("a") ? "/loop/b" : "/loop/a");
+				send(exchange, 302, "loop");
+			}
+		});
+		server.createContext("/chain", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				int left = Integer.parseInt(exchange.getRequestURI().getQuery());
+				if (left == 0) {
+					send(exchange, 200, "end");
+				} else {
+					exchange.getResponseHeaders().set("Location", "/chain?" + (left - 1));
+					send(exchange, 302, "chain");
+				}
+			}
+		});
+		server.createContext("/slow", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				slowRequests.incrementAndGet();
+				try {
+					Thread.sleep(300);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				send(exchange, 200, "slow " + exchange.getRequestURI().getQuery());
+			}
+		});
+		ExecutorService serverExecutor = Executors.newFixedThreadPool(16);
+		server.setExecutor(serverExecutor);
+		server.start();
+
+		final String base = "http://localhost:" + port;
+		final HttpOperation http = new HttpOperation();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			if (!http.doGet(base + "/moved").equals("final")) {
+				throw new IllegalStateException("Wrong body through the 301");
+			}
+		}
+		System.out.println(count + " GETs through a 301 in " + (System.nanoTime() - start) / 1000000 + "ms: "
+				+ movedRequests.get() + " reached it, redirect cache hits " + http.getRedirectCacheHits());
+
+		try {
+			http.doGet(base + "/loop/a");
+			throw new IllegalStateException("Redirect loop was followed");
+		} catch (ProtocolException e) {
+			System.out.println("Loop failed after " + loopRequests.get() + " requests: " + e.getMessage());
+		}
+
+		http.setMaxRedirects(5);
+		http.doGet(base + "/chain?5");
+		try {
+			http.doGet(base + "/chain?6");
+			throw new IllegalStateException("Redirect cap was not applied");
+		} catch (ProtocolException e) {
+			System.out.println("Chain of 5 followed, chain of 6 failed: " + e.getMessage());
+		}
+
+		coalesce(http, base + "/slow?sync", threads);
+
+		CallbackFuture<HttpResponse> leader = http.doGetAsync(base + "/slow?cancelled", null);
+		Thread.sleep(50);
+		List<CallbackFuture<HttpResponse>> followers = new ArrayList<>();
+		for (int i = 0; i < threads - 1; i++) {
+			followers.add(http.doGetAsync(base + "/slow?cancelled", null));
+		}
+		Thread.sleep(50);
+		leader.cancel(true);
+		for (CallbackFuture<HttpResponse> follower : followers) {
+			if (!follower.get(5, TimeUnit.SECONDS).getBodyAsString().equals("slow cancelled")) {
+				throw new IllegalStateException("Wrong body after the leader was cancelled");
+			}
+		}
+		System.out.println((threads - 1) + " asynchronous GETs waiting on a cancelled one all completed, "
+				+ slowRequests.get() + " slow requests in total");
+
+		server.stop(0);
+		serverExecutor.shutdownNow();
+	}
+
+	private static void coalesce(final HttpOperation http, final String url, int threads) throws Exception {
+		int requestsBefore = slowRequests.get();
+		long coalescedBefore = http.getCoalesced();
+		final CountDownLatch ready = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger wrong = new AtomicInteger();
+		for (int i = 0; i < threads; i++) {
+			new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						ready.await();
+						if (!http.doGet(url).startsWith("slow")) {
+							wrong.incrementAndGet();
+						}
+					} catch (IOException | InterruptedException e) {
+						e.printStackTrace();
+						wrong.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		long start = System.nanoTime();
+		ready.countDown();
+		done.await();
+		System.out.println(threads + " threads got the same slow url in " + (System.nanoTime() - start) / 1000000
+				+ "ms: " + (slowRequests.get() - requestsBefore) + " reached it, "
+				+ (http.getCoalesced() - coalescedBefore) + " coalesced, " + wrong.get() + " wrong");
+	}
+
+	private static void send(HttpExchange exchange, int status, String text) throws IOException {
+		byte[] body = text.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package nohorjo.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import nohorjo.common.CallbackFuture;
+import nohorjo.common.LatencyHistogram;
+
+/**
+ * Runs {@link HttpOperation} against a loopback server that hangs, fails
+ * some requests with 503, goes down, and answers 1 in 25 requests a second
+ * late. Checks that the read timeout fires, that GETs are retried and POSTs
+ * are not, and that the circuit opens, fails fast and closes again. Then
+ * compares tail latency with and without hedging, and checks that hedged
+ * asynchronous GETs don't starve an executor sized to the limit in flight
+ */
+public class HttpOperationResilienceTEST {
+	private static final AtomicInteger flakyRequests = new AtomicInteger();
+	private static final AtomicInteger downRequests = new AtomicInteger();
+	private static final AtomicInteger tailRequests = new AtomicInteger();
+	private static volatile boolean down = true;
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int port = 9025;
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 128);
+		server.createContext("/hang", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				sleep(2000);
+				send(exchange, 200, "late");
+			}
+		});
+		server.createContext("/flaky", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				// two of every three fail
+				if (flakyRequests.incrementAndGet() % 3 != 0) {
+					send(exchange, 503, "busy");
+				} else {
+					send(exchange, 200, "ok");
+				}
+			}
+		});
+		server.createContext("/down", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				downRequests.incrementAndGet();
+				send(exchange, down ? 500 : 200, down ? "down" : "up");
+			}
+		});
+		server.createContext("/tail", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (tailRequests.incrementAndGet() % 25 == 0) {
+					sleep(1000);
+				}
+				send(exchange, 200, "tail");
+			}
+		});
+		ExecutorService serverExecutor = Executors.newFixedThreadPool(16);
+		server.setExecutor(serverExecutor);
+		server.start();
+		String base = "http://localhost:" + port;
+
+		HttpOperation http = new HttpOperation();
+		http.setReadTimeout(200);
+		long start = System.nanoTime();
+		try {
+			http.doGet(base + "/hang");
+			throw new IllegalStateException("Read did not time out");
+		} catch (SocketTimeoutException e) {
+			System.out.println("Read timed out after " + (System.nanoTime() - start) / 1000000 + "ms");
+		}
+		http.setReadTimeout(0);
+
+		http.setRetries(3, 10, 100, TimeUnit.MILLISECONDS);
+		for (int i = 0; i < 10; i++) {
+			if (!http.doGet(base + "/flaky").equals("ok")) {
+				throw new IllegalStateException("Wrong body after retries");
+			}
+		}
+		System.out.println("10 GETs through 2 503s each: " + flakyRequests.get() + " requests, " + http.getRetries()
+				+ " retries");
+		flakyRequests.set(0);
+		try {
+			http.doPost(base + "/flaky", "a=1");
+			throw new IllegalStateException("POST got through");
+		} catch (IOException e) {
+			System.out.println("POST was not retried: " + flakyRequests.get() + " request, " + e.getMessage());
+		}
+
+		http.setRetries(0, 0, 0, TimeUnit.MILLISECONDS);
+		http.setCircuitBreaker(3, 300, TimeUnit.MILLISECONDS);
+		int fastFailures = 0;
+		for (int i = 0; i < 10; i++) {
+			try {
+				http.doGet(base + "/down");
+			} catch (IOException e) {
+				if (e.getMessage().startsWith("Circuit open")) {
+					fastFailures++;
+				}
+			}
+		}
+		CircuitBreaker breaker = http.getCircuitBreaker(base);
+		System.out.println("10 GETs to a host returning 500: " + downRequests.get() + " reached it, " + fastFailures
+				+ " failed fast, circuit " + breaker.getState());
+		down = false;
+		Thread.sleep(350);
+		System.out.println("Trial after it recovered: " + http.doGet(base + "/down") + ", circuit "
+				+ breaker.getState());
+		http.setCircuitBreaker(0, 0, TimeUnit.MILLISECONDS);
+
+		tail(http, base + "/tail", count, false);
+		http.setHedging(true);
+		tail(http, base + "/tail", count, true);
+		System.out.println("Hedges " + http.getHedges() + ", won by the hedge " + http.getHedgeWins());
+
+		// an executor sized to the limit in flight, as setExecutor advises
+		int maxInFlight = 4;
+		ExecutorService executor = Executors.newFixedThreadPool(maxInFlight);
+		HttpOperation bounded = new HttpOperation();
+		bounded.setMaxInFlight(maxInFlight);
+		bounded.setExecutor(executor);
+		bounded.setHedging(true);
+		// each GET hedges on its own rather than waiting on another's
+		bounded.setCoalesceGets(false);
+		for (int i = 0; i < 30; i++) {
+			// times the GETs hedging goes by
+			bounded.doGetAsync(base + "/tail", null).get();
+		}
+		// hold every thread so the first GETs all start together
+		final CountDownLatch gate = new CountDownLatch(1);
+		for (int i = 0; i < maxInFlight; i++) {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						gate.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+		List<CallbackFuture<HttpResponse>> futures = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			futures.add(bounded.doGetAsync(base + "/tail", null));
+		}
+		gate.countDown();
+		for (CallbackFuture<HttpResponse> future : futures) {
+			try {
+				future.get(10, TimeUnit.SECONDS);
+			} catch (TimeoutException e) {
+				throw new IllegalStateException("Hedged GETs starved a pool of " + maxInFlight + " threads");
+			}
+		}
+		System.out.println("100 hedged async GETs on a pool of " + maxInFlight + " threads: " + bounded.getHedges()
+				+ " hedges");
+		long asyncHedges = bounded.getHedges();
+		for (int i = 0; i < 50; i++) {
+			bounded.doGet(base + "/tail", "session=1");
+		}
+		if (bounded.getHedges() == asyncHedges) {
+			throw new IllegalStateException("Uncoalesced GETs with a cookie were not hedged");
+		}
+		System.out.println("50 uncoalesced GETs with a cookie: " + (bounded.getHedges() - asyncHedges) + " hedges");
+		executor.shutdown();
+
+		server.stop(0);
+		serverExecutor.shutdownNow();
+	}
+
+	private static void tail(HttpOperation http, String url, int count, boolean hedged) throws IOException {
+		LatencyHistogram latencies = new LatencyHistogram();
+		long max = 0;
+		for (int i = 0; i < count; i++) {
+			long start = System.nanoTime();
+			http.doGet(url);
+			long micros = (System.nanoTime() - start) / 1000;
+			latencies.record(micros);
+			max = Math.max(max, micros);
+		}
+		System.out.println(count + " GETs " + (hedged ? "hedged" : "unhedged") + ", 1 in 25 a second late: p50 "
+				+ latencies.getPercentile(50) + "us p99 " + latencies.getPercentile(99) + "us max " + max + "us");
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, String text) throws IOException {
+		byte[] body = text.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+}
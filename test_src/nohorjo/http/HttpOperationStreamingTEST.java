@@ -0,0 +1,171 @@
+package nohorjo.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import nohorjo.delegation.Action;
+
+/**
+ * Downloads bodies of increasing size from a loopback server with the
+ * streaming GETs, checking every byte, and reports throughput and peak heap,
+ * which should stay flat whatever the size. The String GET is run on the
+ * smallest body for comparison. Run with e.g. {@code -Xmx64m} to see bodies
+ * larger than the heap go through
+ */
+public class HttpOperationStreamingTEST {
+	private static final int MB = 1024 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		int[] sizes = { 16, 64, 256 };
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				sizes[i] = Integer.parseInt(args[i]);
+			}
+		}
+		int port = 9018;
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 16);
+		server.createContext("/bytes", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				long length = Long.parseLong(exchange.getRequestURI().getQuery()) * MB;
+				byte[] block = new byte[64 * 1024];
+				exchange.sendResponseHeaders(200, length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					for (long sent = 0; sent < length; sent += block.length) {
+						for (int i = 0; i < block.length; i++) {
+							block[i] = pattern(sent + i);
+						}
+						out.write(block);
+					}
+				}
+			}
+		});
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		server.setExecutor(executor);
+		server.start();
+
+		String base = "http://localhost:" + port + "/bytes?";
+		HttpOperation http = new HttpOperation();
+		final AtomicLong progressCalls = new AtomicLong();
+		http.setOnProgress(new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				progressCalls.incrementAndGet();
+				return null;
+			}
+		});
+
+		resetPeak();
+		long start = System.nanoTime();
+		String body = http.doGet(base + sizes[0]);
+		report("String GET", sizes[0], body.length(), start);
+		body = null;
+
+		for (int size : sizes) {
+			resetPeak();
+			start = System.nanoTime();
+			report("GET to OutputStream", size, http.doGet(base + size, null, new CheckingOutputStream()), start);
+
+			resetPeak();
+			start = System.nanoTime();
+			final AtomicLong position = new AtomicLong();
+			long read = http.doGet(base + size, null, new Action() {
+
+				@Override
+				public Object run(Object... args) {
+					byte[] buffer = (byte[]) args[0];
+					int offset = (int) args[1];
+					int length = (int) args[2];
+					for (int i = offset; i < offset + length; i++) {
+						if (buffer[i] != pattern(position.getAndIncrement())) {
+							throw new IllegalStateException("Wrong byte at " + (position.get() - 1));
+						}
+					}
+					return null;
+				}
+			});
+			report("GET to callback", size, read, start);
+
+			Path file = Files.createTempFile("streaming", ".bin");
+			try {
+				resetPeak();
+				start = System.nanoTime();
+				read = http.doGet(base + size, null, file);
+				report("GET to Path", size, read, start);
+				if (Files.size(file) != (long) size * MB) {
+					throw new IllegalStateException("File is " + Files.size(file) + " bytes");
+				}
+			} finally {
+				Files.delete(file);
+			}
+		}
+		System.out.println("Progress reported " + progressCalls.get() + " times, last read " + http.getBytesRead()
+				+ " bytes");
+
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	private static byte pattern(long position) {
+		return (byte) (position % 251);
+	}
+
+	private static void resetPeak() {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	private static void report(String mode, int size, long read, long start) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		System.out.println(mode + ", " + size + "MB: read " + read + " in " + String.format("%.2f", seconds)
+				+ "s, " + (long) (size / seconds) + " MB/s, peak heap " + peak / MB + "MB");
+	}
+
+	/**
+	 * Checks each byte written against the pattern the server sends
+	 */
+	private static class CheckingOutputStream extends OutputStream {
+		private long position;
+
+		@Override
+		public void write(int b) throws IOException {
+			if ((byte) b != pattern(position++)) {
+				throw new IOException("Wrong byte at " + (position - 1));
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			for (int i = off; i < off + len; i++) {
+				write(b[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package nohorjo.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs GETs through a redirect and POSTs against a loopback server, counting
+ * the requests it serves and the connections they arrive on, which should be
+ * one request per hop and a handful of connections reused throughout
+ */
+public class HttpOperationTEST {
+	private static final AtomicInteger requests = new AtomicInteger();
+	private static final Set<String> connections = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		int port = 9017;
+
+		// without this the server's separate header and body writes wait on
+		// the client's delayed ACK
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 128);
+		server.createContext("/redirect", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				count(exchange);
+				byte[] body = "moved".getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Location", "/final");
+				exchange.sendResponseHeaders(302, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		server.createContext("/final", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				count(exchange);
+				byte[] body = ("hello " + exchange.getRequestMethod()).getBytes(StandardCharsets.UTF_8);
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		server.createContext("/missing", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				count(exchange);
+				byte[] body = "not here".getBytes(StandardCharsets.UTF_8);
+				exchange.sendResponseHeaders(404, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		server.setExecutor(Executors.newFixedThreadPool(threads));
+		server.start();
+
+		final String base = "http://localhost:" + port;
+		final HttpOperation http = new HttpOperation();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			if (!http.doGet(base + "/redirect").equals("hello GET")) {
+				throw new IllegalStateException("Wrong response");
+			}
+		}
+		report("Serial GETs through a redirect", count, start);
+
+		start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			if (!http.doPost(base + "/final", "a=1", "b=2").equals("hello POST")) {
+				throw new IllegalStateException("Wrong response");
+			}
+			try {
+				http.doGet(base + "/missing");
+				throw new IllegalStateException("404 not thrown");
+			} catch (IOException e) {
+				// expected, with the error body drained
+			}
+		}
+		report("Serial POSTs and 404s", count * 2, start);
+
+		// every GET should make its own requests here
+		http.setCoalesceGets(false);
+		http.setMaxConnectionsPerHost(4);
+		ExecutorService clients = Executors.newFixedThreadPool(threads);
+		start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			clients.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						http.doGet(base + "/redirect");
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		clients.shutdown();
+		clients.awaitTermination(1, TimeUnit.MINUTES);
+		report(threads + " threads, 4 connections per host", count, start);
+
+		server.stop(0);
+		((ExecutorService) server.getExecutor()).shutdown();
+	}
+
+	private static void count(HttpExchange exchange) {
+		requests.incrementAndGet();
+		connections.add(exchange.getRemoteAddress().toString());
+	}
+
+	private static void report(String mode, int operations, long start) {
+		double millis = (System.nanoTime() - start) / 1e6;
+		System.out.println(mode + ": " + operations + " operations in " + (long) millis + "ms, "
+				+ requests.getAndSet(0) + " requests served on " + connections.size() + " connections");
+		connections.clear();
+	}
+}
@@ -0,0 +1,242 @@
+package nohorjo.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Uploads bodies of bytes, files, streams of unknown length and multipart
+ * forms to a loopback server, which replies with how the body was framed, its
+ * length and its CRC, and reports throughput and peak heap, which should stay
+ * flat whatever the size. Run with e.g. {@code -Xmx64m} to see bodies larger
+ * than the heap go through
+ */
+public class HttpOperationUploadTEST {
+	private static final int MB = 1024 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		int port = 9023;
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		HttpServer server = HttpServer.create(new InetSocketAddress(port), 16);
+		server.createContext("/upload", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream in = exchange.getRequestBody();
+				if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+					in = new GZIPInputStream(in);
+				}
+				CRC32 crc = new CRC32();
+				long length = 0;
+				byte[] buffer = new byte[64 * 1024];
+				int read;
+				while ((read = in.read(buffer)) >= 0) {
+					crc.update(buffer, 0, read);
+					length += read;
+				}
+				String framing = exchange.getRequestHeaders().getFirst("Content-Length") != null ? "fixed"
+						: "chunked";
+				byte[] body = (exchange.getRequestMethod() + " " + framing + " " + length + " " + crc.getValue())
+						.getBytes(StandardCharsets.UTF_8);
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		server.createContext("/echo", new HttpHandler() {
+
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String type = exchange.getRequestHeaders().getFirst("Content-Type");
+				byte[] body = (type + "\n" + new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8))
+						.getBytes(StandardCharsets.UTF_8);
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			}
+		});
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		server.setExecutor(executor);
+		server.start();
+
+		String url = "http://localhost:" + port + "/upload";
+		HttpOperation http = new HttpOperation();
+
+		byte[] bytes = new byte[MB];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = pattern(i);
+		}
+		check("byte[]", http.doPostResponse(url, RequestBody.of(bytes, ContentType.OCTET_STREAM)), "POST fixed",
+				MB);
+		System.out.println();
+
+		Path file = Files.createTempFile("upload", ".bin");
+		try {
+			try (OutputStream out = Files.newOutputStream(file)) {
+				RequestBody.copy(new PatternInputStream((long) size * MB), out, -1);
+			}
+			resetPeak();
+			long start = System.nanoTime();
+			HttpResponse response = http.doPutResponse(url, RequestBody.of(file, ContentType.OCTET_STREAM));
+			report(check("Path", response, "PUT fixed", (long) size * MB), size, start);
+
+			resetPeak();
+			start = System.nanoTime();
+			response = http.doPostResponse(url,
+					RequestBody.of(new PatternInputStream((long) size * MB), -1, ContentType.OCTET_STREAM));
+			report(check("InputStream of unknown length", response, "POST chunked", (long) size * MB), size,
+					start);
+
+			resetPeak();
+			start = System.nanoTime();
+			Multipart form = new Multipart().addField("name", "value").addFile("file", file,
+					ContentType.OCTET_STREAM);
+			long formLength = form.getLength();
+			response = http.doPostResponse(url, form);
+			report(check("Multipart with a file", response, "POST fixed", formLength), size, start);
+
+			http.setPostCompression(1);
+			resetPeak();
+			start = System.nanoTime();
+			response = http.doPostResponse(url, RequestBody.of(new PatternInputStream((long) size * MB),
+					(long) size * MB, ContentType.OCTET_STREAM));
+			report(check("Gzipped InputStream", response, "POST chunked", (long) size * MB), size, start);
+			http.setPostCompression(0);
+		} finally {
+			Files.delete(file);
+		}
+
+		Multipart form = new Multipart().addField("a \"quoted\" name", "café").addFile("notes", "notes.txt",
+				RequestBody.of(new PatternInputStream(0) {
+
+					@Override
+					public int read(byte[] b, int off, int len) {
+						return -1;
+					}
+				}, -1, ContentType.TEXT));
+		String echoed = http.doPostResponse("http://localhost:" + port + "/echo", form).getBodyAsString();
+		String boundary = form.getBoundary();
+		String expected = "multipart/form-data; boundary=" + boundary + "\n--" + boundary + "\r\n"
+				+ "Content-Disposition: form-data; name=\"a %22quoted%22 name\"\r\n\r\ncafé\r\n--" + boundary
+				+ "\r\nContent-Disposition: form-data; name=\"notes\"; filename=\"notes.txt\"\r\n"
+				+ "Content-Type: text/plain\r\n\r\n\r\n--" + boundary + "--\r\n";
+		if (!echoed.equals(expected)) {
+			throw new IllegalStateException("Wrong multipart body:\n" + echoed);
+		}
+		System.out.println("Multipart fields and an empty streamed file encoded as expected");
+
+		try {
+			http.doPostResponse(url, RequestBody.of(new PatternInputStream(10), 20, ContentType.OCTET_STREAM));
+			throw new IllegalStateException("Short stream was sent");
+		} catch (IOException e) {
+			System.out.println("Short stream failed: " + e.getMessage());
+		}
+
+		server.stop(0);
+		executor.shutdown();
+	}
+
+	private static long check(String mode, HttpResponse response, String framing, long length) {
+		CRC32 crc = new CRC32();
+		byte[] block = new byte[64 * 1024];
+		String expected = framing + " " + length;
+		if (mode.startsWith("Multipart")) {
+			// the server saw the whole form, not just the file
+			expected += " ";
+		} else {
+			for (long done = 0; done < length; done += block.length) {
+				int n = (int) Math.min(block.length, length - done);
+				for (int i = 0; i < n; i++) {
+					block[i] = pattern(done + i);
+				}
+				crc.update(block, 0, n);
+			}
+			expected += " " + crc.getValue();
+		}
+		String body = response.getBodyAsString();
+		if (!body.startsWith(expected)) {
+			throw new IllegalStateException(mode + ": expected " + expected + " but server saw " + body);
+		}
+		System.out.print(mode + ": " + body);
+		return length;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		RequestBody.copy(in, out, -1);
+		return out.toByteArray();
+	}
+
+	private static byte pattern(long position) {
+		return (byte) (position % 251);
+	}
+
+	private static void resetPeak() {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	private static void report(long length, int size, long start) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		System.out.println(", " + String.format("%.2f", seconds) + "s, " + (long) (size / seconds)
+				+ " MB/s, peak heap " + peak / MB + "MB");
+	}
+
+	/**
+	 * Generates the pattern without holding it
+	 */
+	private static class PatternInputStream extends InputStream {
+		private final long length;
+		private long position;
+
+		private PatternInputStream(long length) {
+			this.length = length;
+		}
+
+		@Override
+		public int read() {
+			return position < length ? pattern(position++) & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (position >= length) {
+				return -1;
+			}
+			int n = (int) Math.min(len, length - position);
+			for (int i = 0; i < n; i++) {
+				b[off + i] = pattern(position++);
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package nohorjo.socket;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nohorjo.delegation.Action;
+
+/**
+ * Load test for {@link NioSocketServer}: holds 10k idle connections open while
+ * 1k active connections echo messages. Needs a file descriptor limit above
+ * 2 * (idle + active), e.g. {@code ulimit -n 65536}. First checks that the send
+ * backlog of a peer that never reads stays bounded
+ */
+public class NioSocketServerTEST {
+	public static void main(String[] args) throws Exception {
+		int port = 9003;
+		int idle = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int active = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+		final int messageSize = 64;
+
+		backlog(BackpressurePolicy.DISCONNECT);
+		backlog(BackpressurePolicy.DROP_OLDEST);
+
+		final NioSocketServer server = new NioSocketServer(port);
+		server.setActions(new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				try {
+					server.send((String) args[1], (byte) args[0]);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				return null;
+			}
+		}, new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				return null;
+			}
+		}, new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				return null;
+			}
+		});
+		server.start();
+		int threadsBefore = Thread.activeCount();
+
+		List<Socket> idleSockets = new ArrayList<>();
+		for (int i = 0; i < idle; i++) {
+			idleSockets.add(new Socket("localhost", port));
+		}
+		System.out.println("Opened " + idle + " idle connections");
+
+		final AtomicLong messages = new AtomicLong();
+		final long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+		final CountDownLatch done = new CountDownLatch(active);
+		List<Socket> activeSockets = new ArrayList<>();
+		for (int i = 0; i < active; i++) {
+			final Socket socket = new Socket("localhost", port);
+			activeSockets.add(socket);
+			new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					byte[] message = new byte[messageSize];
+					try {
+						OutputStream out = socket.getOutputStream();
+						DataInputStream in = new DataInputStream(socket.getInputStream());
+						while (System.currentTimeMillis() < end) {
+							out.write(message);
+							in.readFully(message);
+							messages.incrementAndGet();
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		System.out.println("Opened " + active + " active connections");
+
+		done.await();
+		Runtime runtime = Runtime.getRuntime();
+		System.out.println("Server connections: " + server.getConnections().size());
+		System.out.println("Echoed messages/s: " + messages.get() / seconds);
+		System.out.println("Threads before clients: " + threadsBefore);
+		System.out.println("Heap used MB: " + (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024));
+
+		for (Socket socket : idleSockets) {
+			socket.close();
+		}
+		for (Socket socket : activeSockets) {
+			socket.close();
+		}
+		server.close();
+	}
+
+	/**
+	 * Sends to a peer that never reads until the backlog policy kicks in
+	 */
+	private static void backlog(BackpressurePolicy policy) throws Exception {
+		int backlog = 64 * 1024;
+		NioSocketServer server = new NioSocketServer(9027, 1);
+		Action noop = new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				return null;
+			}
+		};
+		server.setActions(noop, noop, noop);
+		server.setSendBacklog(backlog, policy);
+		server.start();
+		try (Socket socket = new Socket()) {
+			// a peer that never reads, with little room to buffer for it
+			socket.setReceiveBufferSize(4096);
+			socket.connect(new InetSocketAddress("localhost", 9027));
+			while (server.getConnections().isEmpty()) {
+				Thread.sleep(10);
+			}
+			String address = server.getConnections().iterator().next();
+			SocketMetrics metrics = server.getMetrics(address);
+			byte[] message = new byte[1024];
+			int sent = 0;
+			try {
+				// far more than the socket buffers and backlog can hold
+				for (; sent < 64 * 1024; sent++) {
+					server.send(address, message);
+				}
+			} catch (SocketException e) {
+				// disconnected
+			}
+			long full = server.getMetrics().getDisconnects().get(DisconnectReason.SEND_QUEUE_FULL.name());
+			if (policy == BackpressurePolicy.DISCONNECT ? full != 1 || sent == 64 * 1024
+					: full != 0 || metrics.getMessagesDropped() == 0) {
+				throw new IllegalStateException(policy + " backlog not applied after " + sent + " sends, "
+						+ metrics.getMessagesDropped() + " dropped");
+			}
+			System.out.println(policy + " bounded the backlog after " + sent + " sends, "
+					+ metrics.getMessagesDropped() + " dropped");
+		} finally {
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package nohorjo.socket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import nohorjo.common.CallbackFuture;
+import nohorjo.delegation.Action;
+
+/**
+ * Compares requests per second over one connection when each waits for its
+ * reply before the next is sent and when they are pipelined, against a
+ * {@link RequestServer} that takes a few milliseconds per request, as over a
+ * high latency link. Then checks that unanswered requests time out and that a
+ * handler throwing fails the request at once
+ */
+public class RequestClientTEST {
+	public static void main(String[] args) throws Exception {
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		final long latencyMillis = args.length > 1 ? Long.parseLong(args[1]) : 5;
+
+		ExecutorService handlers = Executors.newFixedThreadPool(64);
+		RequestServer server = new RequestServer(9008);
+		server.setHandlerExecutor(handlers);
+		server.setHandler(new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				try {
+					Thread.sleep(latencyMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return args[0];
+			}
+		});
+		server.start();
+
+		RequestClient client = new RequestClient("localhost", 9008);
+		client.connect();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			check(client.request(intToBytes(i)).get(), i);
+		}
+		System.out.println("Serial requests/s: " + requests * 1e9 / (System.nanoTime() - start));
+
+		start = System.nanoTime();
+		List<CallbackFuture<byte[]>> futures = new ArrayList<>();
+		for (int i = 0; i < requests; i++) {
+			futures.add(client.request(intToBytes(i)));
+		}
+		for (int i = 0; i < requests; i++) {
+			check(futures.get(i).get(), i);
+		}
+		System.out.println("Pipelined requests/s: " + requests * 1e9 / (System.nanoTime() - start));
+
+		server.setHandler(new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				return null;
+			}
+		});
+		try {
+			client.request(100, intToBytes(0)).get(1, TimeUnit.SECONDS);
+			System.out.println("Expected a timeout");
+		} catch (Exception e) {
+			System.out.println("Unanswered request failed with " + e.getCause());
+		}
+		System.out.println("In flight at end: " + client.getInFlight());
+
+		server.setHandler(new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				throw new IllegalStateException("Handler failed, as expected");
+			}
+		});
+		long failStart = System.nanoTime();
+		try {
+			client.request(5000, intToBytes(0)).get(2, TimeUnit.SECONDS);
+			System.out.println("Expected the request to fail");
+		} catch (ExecutionException e) {
+			System.out.println("Request to a failing handler failed in "
+					+ (System.nanoTime() - failStart) / 1000000 + "ms with " + e.getCause());
+		}
+
+		client.close();
+		server.close();
+		handlers.shutdown();
+	}
+
+	private static byte[] intToBytes(int i) {
+		byte[] bytes = new byte[4];
+		RequestClient.writeId(bytes, i);
+		return bytes;
+	}
+
+	private static void check(byte[] reply, int expected) {
+		if (RequestClient.readId(reply, 0) != expected) {
+			throw new IllegalStateException("Reply " + RequestClient.readId(reply, 0) + " for request " + expected);
+		}
+	}
+}
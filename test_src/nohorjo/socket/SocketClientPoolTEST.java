@@ -0,0 +1,120 @@
+package nohorjo.socket;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nohorjo.delegation.Action;
+
+/**
+ * Compares request latency against an echo {@link SocketServer} when opening a
+ * {@link SocketClient} per request and when leasing from a
+ * {@link SocketClientPool}, then has more threads than connections lease
+ * concurrently to exercise waiting
+ */
+public class SocketClientPoolTEST {
+	private static final int PORT = 9007;
+	private static final BlockingQueue<Object> replies = new LinkedBlockingQueue<>();
+
+	public static void main(String[] args) throws Exception {
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		final SocketServer server = new SocketServer(PORT);
+		Action none = new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				return null;
+			}
+		};
+		server.setActions(new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				try {
+					server.send((String) args[3], Arrays.copyOfRange((byte[]) args[0], (int) args[1],
+							(int) args[1] + (int) args[2]));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				return null;
+			}
+		}, none, none);
+		server.setChunkSize(64);
+		server.start();
+
+		Action onReply = new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				replies.add(args[0]);
+				return null;
+			}
+		};
+
+		long[] latencies = new long[requests];
+		for (int i = 0; i < requests; i++) {
+			long start = System.nanoTime();
+			SocketClient client = new SocketClient("localhost", PORT);
+			client.setActions(onReply, none);
+			client.setChunkSize(64);
+			client.connect();
+			client.send((byte) 1);
+			replies.take();
+			client.close();
+			latencies[i] = System.nanoTime() - start;
+		}
+		print("new connection per request", latencies);
+
+		final SocketClientPool pool = new SocketClientPool(1, 4);
+		pool.setActions(onReply, null);
+		pool.setChunkSize(64);
+		for (int i = 0; i < requests; i++) {
+			long start = System.nanoTime();
+			SocketClient client = pool.lease("localhost", PORT);
+			client.send((byte) 1);
+			replies.take();
+			pool.release(client);
+			latencies[i] = System.nanoTime() - start;
+		}
+		print("pooled", latencies);
+
+		int threads = 16;
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicLong failures = new AtomicLong();
+		for (int t = 0; t < threads; t++) {
+			new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					for (int i = 0; i < 200; i++) {
+						try {
+							SocketClient client = pool.lease("localhost", PORT);
+							Thread.sleep(1);
+							pool.release(client);
+						} catch (Exception e) {
+							failures.incrementAndGet();
+						}
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		done.await();
+		System.out.println("Contended: leases " + pool.getLeaseCount() + ", opened " + pool.getCreatedCount()
+				+ ", exhausted " + pool.getExhaustedCount() + ", wait p99 "
+				+ pool.getWaitTimePercentile(99) / 1000 + "us, failures " + failures.get() + ", open "
+				+ pool.getOpenCount("localhost", PORT));
+
+		pool.close();
+		server.close();
+	}
+
+	private static void print(String mode, long[] latencies) {
+		Arrays.sort(latencies);
+		System.out.println(mode + ": p50 " + latencies[latencies.length / 2] / 1000 + "us, p99 "
+				+ latencies[latencies.length * 99 / 100] / 1000 + "us");
+	}
+}
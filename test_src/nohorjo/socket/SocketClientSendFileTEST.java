@@ -0,0 +1,111 @@
+package nohorjo.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+
+import nohorjo.delegation.Action;
+
+/**
+ * Compares sending a file with {@link SocketClient#send(byte...)} after
+ * reading it onto the heap against {@link SocketClient#sendFile(Path, long, long)},
+ * reporting throughput, garbage collections and peak heap
+ */
+public class SocketClientSendFileTEST {
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+		Path file = Files.createTempFile("sendfile", ".bin");
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			ByteBuffer block = ByteBuffer.allocate(1024 * 1024);
+			for (int i = 0; i < megabytes; i++) {
+				block.clear();
+				channel.write(block);
+			}
+		}
+		try {
+			measure("send(byte[])", file, false);
+			measure("sendFile", file, true);
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	private static void measure(String mode, final Path file, boolean zeroCopy) throws Exception {
+		final long size = Files.size(file);
+		final ServerSocket serverSocket = new ServerSocket(0);
+		final CountDownLatch received = new CountDownLatch(1);
+		new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				byte[] buffer = new byte[64 * 1024];
+				try (Socket socket = serverSocket.accept()) {
+					InputStream in = socket.getInputStream();
+					long total = 0;
+					while (total < size) {
+						int read = in.read(buffer);
+						if (read < 0) {
+							break;
+						}
+						total += read;
+					}
+					received.countDown();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}).start();
+
+		Action none = new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				return null;
+			}
+		};
+		SocketClient client = new SocketClient("localhost", serverSocket.getLocalPort());
+		client.setActions(none, none);
+		client.setChunkSize(1024);
+		client.connect();
+
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+		long[] gcBefore = gcStats();
+		long start = System.nanoTime();
+		if (zeroCopy) {
+			client.sendFile(file, 0, size);
+		} else {
+			client.send(Files.readAllBytes(file));
+		}
+		received.await();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+		long[] gcAfter = gcStats();
+
+		System.out.println(mode + ": " + (long) (size / (1024 * 1024) / seconds) + " MB/s, GCs "
+				+ (gcAfter[0] - gcBefore[0]) + " taking " + (gcAfter[1] - gcBefore[1]) + "ms, heap growth MB "
+				+ (heapAfter - heapBefore) / (1024 * 1024));
+
+		client.close();
+		serverSocket.close();
+	}
+
+	private static long[] gcStats() {
+		long[] stats = new long[2];
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			stats[0] += gc.getCollectionCount();
+			stats[1] += gc.getCollectionTime();
+		}
+		return stats;
+	}
+}
@@ -0,0 +1,74 @@
+package nohorjo.socket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+
+import nohorjo.delegation.Action;
+
+/**
+ * Compares receive throughput of {@link SocketClient} delivering single bytes
+ * against delivering chunks
+ */
+public class SocketClientThroughputTEST {
+	public static void main(String[] args) throws Exception {
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		System.out.println("Byte mode MB/s: " + measure(megabytes, 0));
+		System.out.println("Chunk mode MB/s: " + measure(megabytes, 64 * 1024));
+	}
+
+	private static double measure(int megabytes, int chunkSize) throws Exception {
+		final long total = megabytes * 1024L * 1024L;
+		final ServerSocket serverSocket = new ServerSocket(0);
+		new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				byte[] block = new byte[64 * 1024];
+				try (Socket socket = serverSocket.accept()) {
+					OutputStream out = socket.getOutputStream();
+					for (long sent = 0; sent < total; sent += block.length) {
+						out.write(block);
+					}
+					out.flush();
+					socket.shutdownOutput();
+					socket.getInputStream().read();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}).start();
+
+		final CountDownLatch done = new CountDownLatch(1);
+		SocketClient client = new SocketClient("localhost", serverSocket.getLocalPort());
+		client.setChunkSize(chunkSize);
+		client.setActions(new Action() {
+			long received;
+
+			@Override
+			public Object run(Object... args) {
+				received += args.length == 2 ? 1 : (int) args[2];
+				if (received >= total) {
+					done.countDown();
+				}
+				return null;
+			}
+		}, new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				return null;
+			}
+		});
+
+		long start = System.nanoTime();
+		client.connect();
+		done.await();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		client.close();
+		serverSocket.close();
+		return megabytes / seconds;
+	}
+}
@@ -0,0 +1,63 @@
+package nohorjo.socket;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import nohorjo.delegation.Action;
+
+/**
+ * Opens connections to a {@link SocketServer} with a read idle timeout: silent
+ * ones should be closed with {@link DisconnectReason#IDLE_TIMEOUT} while ones
+ * sending heartbeats stay open
+ */
+public class SocketIdleTimeoutTEST {
+	public static void main(String[] args) throws Exception {
+		int silent = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int heartbeating = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		Action none = new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				return null;
+			}
+		};
+		SocketServer server = new SocketServer(9006);
+		server.setActions(none, none, none);
+		server.setChunkSize(64);
+		server.setIdleTimeout(1000, 0);
+		server.start();
+
+		List<Socket> sockets = new ArrayList<>();
+		for (int i = 0; i < silent; i++) {
+			sockets.add(new Socket("localhost", 9006));
+		}
+		List<SocketClient> clients = new ArrayList<>();
+		for (int i = 0; i < heartbeating; i++) {
+			SocketClient client = new SocketClient("localhost", 9006);
+			client.setActions(none, none);
+			client.setHeartbeat(300, (byte) 0);
+			client.connect();
+			clients.add(client);
+		}
+		long opened = System.currentTimeMillis();
+		while (server.getMetrics().getConnectionsAccepted() < silent + heartbeating
+				|| server.getConnections().size() > heartbeating) {
+			Thread.sleep(10);
+		}
+		System.out.println(silent + " silent connections closed " + (System.currentTimeMillis() - opened)
+				+ "ms after the last was opened");
+		Thread.sleep(2000);
+		System.out.println("Connections left after 2s: " + server.getConnections().size() + ", expected "
+				+ heartbeating);
+		System.out.println(server.getMetrics().getSnapshot());
+
+		for (SocketClient client : clients) {
+			client.close();
+		}
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		server.close();
+	}
+}
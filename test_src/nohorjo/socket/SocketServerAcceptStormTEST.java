@@ -0,0 +1,105 @@
+package nohorjo.socket;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import nohorjo.common.LatencyHistogram;
+import nohorjo.delegation.Action;
+
+/**
+ * Opens a storm of connections at a {@link SocketServer} whose
+ * {@link SocketServer#onNewConnection} does some handshake work, first with one
+ * acceptor and then with several, reporting how fast they are accepted and
+ * the connect latency. Needs a file descriptor limit above 2 * connections,
+ * e.g. {@code ulimit -n 65536}
+ */
+public class SocketServerAcceptStormTEST {
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int clientThreads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		int acceptors = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		long handshakeMicros = args.length > 3 ? Long.parseLong(args[3]) : 100;
+
+		measure(9011, 1, connections, clientThreads, handshakeMicros);
+		measure(9012, acceptors, connections, clientThreads, handshakeMicros);
+	}
+
+	private static void measure(int port, int acceptors, final int connections, int clientThreads,
+			final long handshakeMicros) throws Exception {
+		Action none = new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				return null;
+			}
+		};
+		ExecutorService executor = SocketExecutors.newExecutor("storm-");
+		SocketServer server = new SocketServer(port, executor);
+		server.setActions(none, new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(handshakeMicros));
+				return null;
+			}
+		}, none);
+		server.setAcceptors(acceptors);
+		server.setBacklog(4096);
+		server.start();
+
+		final LatencyHistogram connectTimes = new LatencyHistogram();
+		final List<Socket> sockets = new ArrayList<>(connections);
+		final CountDownLatch connected = new CountDownLatch(clientThreads);
+		long start = System.nanoTime();
+		for (int t = 0; t < clientThreads; t++) {
+			final int count = connections / clientThreads + (t < connections % clientThreads ? 1 : 0);
+			final int finalPort = port;
+			new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					List<Socket> opened = new ArrayList<>(count);
+					try {
+						for (int i = 0; i < count; i++) {
+							long begin = System.nanoTime();
+							opened.add(new Socket("localhost", finalPort));
+							connectTimes.record(System.nanoTime() - begin);
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					} finally {
+						synchronized (sockets) {
+							sockets.addAll(opened);
+						}
+						connected.countDown();
+					}
+				}
+			}).start();
+		}
+		connected.await();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+		while (server.getMetrics().getConnectionsAccepted() < sockets.size() && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(acceptors + " acceptor(s), SO_REUSEPORT " + server.isReusingPort() + ": accepted "
+				+ server.getMetrics().getConnectionsAccepted() + "/" + connections + " in "
+				+ String.format("%.2f", seconds) + "s, " + (long) (sockets.size() / seconds)
+				+ " connections/s, connect p50 " + connectTimes.getPercentile(50) / 1000 + "us p99 "
+				+ connectTimes.getPercentile(99) / 1000 + "us p999 " + connectTimes.getPercentile(99.9) / 1000
+				+ "us");
+
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		server.close();
+		executor.shutdown();
+	}
+}
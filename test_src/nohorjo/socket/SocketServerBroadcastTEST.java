@@ -0,0 +1,184 @@
+package nohorjo.socket;
+
+import java.io.DataInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import nohorjo.delegation.Action;
+
+/**
+ * Measures {@link SocketServer#sendAll(byte...)} latency, from the call until
+ * the last subscriber has the message, at 1k and 10k subscribers. The
+ * subscribers are read by a single selector so the client side doesn't need a
+ * thread each. Needs a file descriptor limit above 2 * 10k, the client and
+ * server ends of each subscriber, e.g. {@code ulimit -n 65536}. First checks
+ * that a subscriber that never reads is disconnected rather than holding up
+ * the broadcast thread.
+ * <p>
+ * Arguments, all optional: subscriber counts. e.g. {@code 100 1000}
+ */
+public class SocketServerBroadcastTEST {
+	private static final int MESSAGE_SIZE = 64;
+	private static final int ROUNDS = 200;
+
+	public static void main(String[] args) throws Exception {
+		int[] subscriberCounts = { 1000, 10000 };
+		if (args.length > 0) {
+			subscriberCounts = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				subscriberCounts[i] = Integer.parseInt(args[i]);
+			}
+		}
+		slowSubscriber();
+		for (int subscribers : subscriberCounts) {
+			measure(subscribers);
+		}
+	}
+
+	/**
+	 * Broadcasts far more than the socket buffers hold to a subscriber that
+	 * never reads and one that does, over a single broadcast thread
+	 */
+	private static void slowSubscriber() throws Exception {
+		Action none = new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				return null;
+			}
+		};
+		SocketServer server = new SocketServer(9028);
+		server.setActions(none, none, none);
+		server.setBroadcastThreads(1);
+		server.setWriteTimeout(500);
+		server.start();
+
+		final int messages = 500;
+		final byte[] message = new byte[16 * 1024];
+		Socket stalled = new Socket();
+		stalled.setReceiveBufferSize(4096);
+		stalled.connect(new InetSocketAddress("localhost", 9028));
+		final Socket reading = new Socket("localhost", 9028);
+		reading.setSoTimeout(20000);
+		final AtomicLong received = new AtomicLong();
+		Thread reader = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					DataInputStream in = new DataInputStream(reading.getInputStream());
+					for (int i = 0; i < messages; i++) {
+						in.readFully(message);
+						received.addAndGet(message.length);
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		reader.start();
+		while (server.getConnections().size() < 2) {
+			Thread.sleep(10);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++) {
+			server.sendAll(new byte[message.length]);
+		}
+		reader.join();
+		Map<String, Long> disconnects = server.getMetrics().getDisconnects();
+		long slow = disconnects.get(DisconnectReason.WRITE_TIMEOUT.name())
+				+ disconnects.get(DisconnectReason.SEND_QUEUE_FULL.name());
+		if (received.get() != (long) messages * message.length || slow != 1) {
+			throw new IllegalStateException("Reading subscriber got " + received.get() + " bytes, " + slow
+					+ " slow subscribers disconnected");
+		}
+		System.out.println("Slow subscriber disconnected, the other got " + messages + " broadcasts in "
+				+ (System.nanoTime() - start) / 1000000 + "ms");
+
+		stalled.close();
+		reading.close();
+		server.close();
+	}
+
+	private static void measure(int subscribers) throws Exception {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof UnixOperatingSystemMXBean) {
+			long limit = ((UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+			// the client and server end of each subscriber, and some to spare
+			if (limit < 2L * subscribers + 100) {
+				throw new IllegalStateException(subscribers + " subscribers need a file descriptor limit above "
+						+ (2L * subscribers + 100) + ", not " + limit);
+			}
+		}
+		Action none = new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				return null;
+			}
+		};
+		SocketServer server = new SocketServer(9004);
+		server.setActions(none, none, none);
+		server.setChunkSize(1024);
+		server.start();
+
+		Selector selector = Selector.open();
+		SocketChannel[] channels = new SocketChannel[subscribers];
+		for (int i = 0; i < subscribers; i++) {
+			channels[i] = SocketChannel.open(new InetSocketAddress("localhost", 9004));
+			channels[i].configureBlocking(false);
+			channels[i].register(selector, SelectionKey.OP_READ, new long[1]);
+		}
+		while (server.getConnections().size() < subscribers) {
+			Thread.sleep(10);
+		}
+
+		ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+		long[] latencies = new long[ROUNDS];
+		byte[] message = new byte[MESSAGE_SIZE];
+		for (int round = 0; round < ROUNDS; round++) {
+			long expected = (long) MESSAGE_SIZE * (round + 1);
+			int complete = 0;
+			long start = System.nanoTime();
+			server.sendAll(message);
+			while (complete < subscribers) {
+				selector.select();
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					long[] received = (long[]) key.attachment();
+					readBuffer.clear();
+					received[0] += ((SocketChannel) key.channel()).read(readBuffer);
+					if (received[0] == expected) {
+						complete++;
+					}
+				}
+			}
+			latencies[round] = System.nanoTime() - start;
+		}
+
+		Arrays.sort(latencies);
+		System.out.println(subscribers + " subscribers: p50 " + latencies[ROUNDS / 2] / 1000 + "us, p99 "
+				+ latencies[ROUNDS * 99 / 100] / 1000 + "us, max " + latencies[ROUNDS - 1] / 1000 + "us");
+
+		for (SocketChannel channel : channels) {
+			channel.close();
+		}
+		selector.close();
+		server.close();
+	}
+}
@@ -0,0 +1,170 @@
+package nohorjo.socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nohorjo.common.LatencyHistogram;
+import nohorjo.delegation.Action;
+
+/**
+ * One noisy client floods a {@link SocketServer} with large frames while a few
+ * quiet clients send small timestamped frames, under no limits, a server rate
+ * limit, server and connection rate limits, and fair dispatch to a single
+ * worker. Reports the noisy client's throughput, the quiet clients' latency
+ * to onReceive, and the server's throttle counts. Under a server limit the
+ * quiet clients should spend little time throttled paying off the noisy
+ * client's debt, and the server should read no more than the limit allows,
+ * burst included
+ */
+public class SocketServerFairnessTEST {
+	private static final int NOISY_FRAME = 64 * 1024;
+	private static final int QUIET_FRAME = 16;
+
+	public static void main(String[] args) throws Exception {
+		final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int quietClients = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+		measure("unlimited", 9013, seconds, quietClients, 0, 0, false);
+		measure("server limit 50MB/s", 9014, seconds, quietClients, 50 << 20, 0, false);
+		measure("server 50MB/s, connection 20MB/s", 9015, seconds, quietClients, 50 << 20, 20 << 20, false);
+		measure("fair dispatch, 1 worker", 9016, seconds, quietClients, 0, 0, true);
+	}
+
+	private static void measure(String mode, int port, int seconds, int quietClients, long serverLimit,
+			long connectionLimit, boolean fair) throws Exception {
+		final LatencyHistogram quietLatency = new LatencyHistogram();
+		final AtomicLong noisyBytes = new AtomicLong();
+		final AtomicLong checksum = new AtomicLong();
+		Action none = new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				return null;
+			}
+		};
+		SocketServer server = new SocketServer(port);
+		server.setFrameCodec(new LengthPrefixFrameCodec());
+		server.setActions(new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				byte[] buffer = (byte[]) args[0];
+				int offset = (int) args[1];
+				int length = (int) args[2];
+				if (length == QUIET_FRAME) {
+					quietLatency.record(System.nanoTime() - ByteBuffer.wrap(buffer, offset, 8).getLong());
+				} else {
+					// work proportional to the size of the message
+					long sum = 0;
+					for (int i = offset; i < offset + length; i++) {
+						sum += buffer[i] * i;
+					}
+					checksum.addAndGet(sum);
+					noisyBytes.addAndGet(length);
+				}
+				return null;
+			}
+		}, none, none);
+		server.setServerRateLimit(serverLimit, 0);
+		server.setConnectionRateLimit(connectionLimit, 0);
+		ExecutorService workers = null;
+		if (fair) {
+			workers = Executors.newSingleThreadExecutor();
+			server.setFairDispatch(workers, 16 * 1024, 1024 * 1024);
+		}
+		server.start();
+
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		final SocketClient noisy = client(port, none);
+		Thread noisySender = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				byte[] frame = new byte[NOISY_FRAME];
+				try {
+					while (System.nanoTime() < end) {
+						noisy.send(frame);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		noisySender.start();
+		Thread[] quietSenders = new Thread[quietClients];
+		final SocketClient[] quiet = new SocketClient[quietClients];
+		for (int i = 0; i < quietClients; i++) {
+			final SocketClient client = quiet[i] = client(port, none);
+			quietSenders[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					byte[] frame = new byte[QUIET_FRAME];
+					try {
+						while (System.nanoTime() < end) {
+							ByteBuffer.wrap(frame).putLong(System.nanoTime());
+							client.send(frame);
+							Thread.sleep(2);
+						}
+					} catch (IOException | InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			quietSenders[i].start();
+		}
+		noisySender.join();
+		for (Thread sender : quietSenders) {
+			sender.join();
+		}
+		Thread.sleep(200);
+
+		// the noisy connection is the one that read the most
+		long noisyThrottled = 0;
+		long noisyIn = -1;
+		for (String address : server.getConnections()) {
+			SocketMetrics metrics = server.getMetrics(address);
+			if (metrics.getBytesIn() > noisyIn) {
+				noisyIn = metrics.getBytesIn();
+				noisyThrottled = metrics.getThrottledNanos();
+			}
+		}
+		long quietThrottled = server.getMetrics().getThrottledNanos() - noisyThrottled;
+		System.out.println(mode + ": noisy " + noisyBytes.get() / (1024 * 1024) / seconds + " MB/s, quiet p50 "
+				+ quietLatency.getPercentile(50) / 1000 + "us p99 " + quietLatency.getPercentile(99) / 1000
+				+ "us over " + quietLatency.getCount() + " frames, throttles "
+				+ server.getMetrics().getThrottles() + " for " + server.getMetrics().getThrottledNanos() / 1000000
+				+ "ms, " + quietThrottled / 1000000 + "ms of them quiet");
+
+		if (serverLimit > 0) {
+			long read = server.getMetrics().getBytesIn();
+			// a second's burst on top of the rate, plus 10% for timing
+			long allowed = serverLimit * (seconds + 1) * 11 / 10;
+			if (read > allowed) {
+				throw new IllegalStateException(mode + ": read " + read + " bytes, over the " + allowed + " allowed");
+			}
+			System.out.println(mode + ": server read " + read / (1024 * 1024) + "MB of the "
+					+ serverLimit * (seconds + 1) / (1024 * 1024) + "MB the rate and burst allow");
+		}
+
+		noisy.close();
+		for (SocketClient client : quiet) {
+			client.close();
+		}
+		server.close();
+		if (workers != null) {
+			workers.shutdown();
+		}
+	}
+
+	private static SocketClient client(int port, Action none) throws IOException {
+		SocketClient client = new SocketClient("localhost", port);
+		client.setFrameCodec(new LengthPrefixFrameCodec());
+		client.setActions(none, none);
+		client.connect();
+		return client;
+	}
+}
@@ -0,0 +1,47 @@
+package nohorjo.socket;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import nohorjo.delegation.Action;
+
+/**
+ * Sends a {@link VarintFrameCodec} server a length header that never ends,
+ * then checks that the server closes the connection and counts it as
+ * {@link DisconnectReason#MALFORMED_FRAME} rather than carrying on reading
+ */
+public class SocketServerMalformedFrameTEST {
+
+	public static void main(String[] args) throws Exception {
+		Action none = new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				return null;
+			}
+		};
+		SocketServer server = new SocketServer(9029);
+		server.setFrameCodec(new VarintFrameCodec());
+		server.setChunkSize(1024);
+		server.setActions(none, none, none);
+		server.start();
+
+		try (Socket socket = new Socket("localhost", 9029)) {
+			socket.setSoTimeout(5000);
+			OutputStream out = socket.getOutputStream();
+			out.write(new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF });
+			out.flush();
+			InputStream in = socket.getInputStream();
+			if (in.read() != -1) {
+				throw new IllegalStateException("Expected the server to close the connection");
+			}
+		}
+		long malformed = server.getMetrics().getDisconnects().get(DisconnectReason.MALFORMED_FRAME.name());
+		if (malformed != 1) {
+			throw new IllegalStateException(malformed + " connections closed as malformed");
+		}
+		System.out.println("Connection with a malformed varint header closed");
+		server.close();
+	}
+}
@@ -16,13 +16,13 @@ public class SocketServerTEST {
 
 			@Override
 			public Object run(Object... args) {
-				buffer += new String(new byte[] { (byte) args[0] });
+				buffer += new String((byte[]) args[0], (int) args[1], (int) args[2]);
 				if (buffer.endsWith("\n")) {
-					System.out.print(args[1] + " SAYS: " + buffer);
+					System.out.print(args[3] + " SAYS: " + buffer);
 //					String a = new Random().nextInt()+"";
 //					System.out.println(a);
 //					try {
-//						server.send((String)args[1], (a+"\n").getBytes());
+//						server.send((String)args[3], (a+"\n").getBytes());
 //					} catch (IOException e) {
 //						e.printStackTrace();
 //					}
@@ -50,6 +50,7 @@ public class SocketServerTEST {
 		};
 
 		server.setActions(onReceive, onNewConnection, onDisconnect);
+		server.setChunkSize(1024);
 		server.start();
 
 		try (Scanner sc = new Scanner(System.in)) {
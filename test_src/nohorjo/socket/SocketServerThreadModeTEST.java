@@ -0,0 +1,86 @@
+package nohorjo.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import nohorjo.delegation.Action;
+
+/**
+ * Compares {@link SocketServer} running a platform thread per connection
+ * against running on virtual threads (JDK 21+) and on a pooled executor, at a
+ * high connection count
+ */
+public class SocketServerThreadModeTEST {
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		measure("platform threads", connections, null);
+		if (SocketExecutors.virtualThreadsSupported()) {
+			ExecutorService executor = SocketExecutors.newVirtualThreadExecutor("virtual-");
+			measure("virtual threads", connections, executor);
+			executor.shutdown();
+		} else {
+			System.out.println("virtual threads: not supported by this JDK");
+		}
+		ExecutorService executor = SocketExecutors.newPlatformThreadExecutor("pooled-");
+		measure("pooled platform threads", connections, executor);
+		executor.shutdown();
+	}
+
+	private static void measure(String mode, int count, ExecutorService executor) throws Exception {
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+
+		final SocketServer server = new SocketServer(9005, executor);
+		Action none = new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				return null;
+			}
+		};
+		server.setActions(new Action() {
+
+			@Override
+			public Object run(Object... args) {
+				try {
+					server.send((String) args[3], new byte[] { ((byte[]) args[0])[(int) args[1]] });
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				return null;
+			}
+		}, none, none);
+		server.setChunkSize(16);
+		server.start();
+
+		long start = System.nanoTime();
+		List<Socket> sockets = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			sockets.add(new Socket("localhost", 9005));
+		}
+		for (Socket socket : sockets) {
+			socket.getOutputStream().write(1);
+		}
+		for (Socket socket : sockets) {
+			InputStream in = socket.getInputStream();
+			if (in.read() != 1) {
+				throw new IOException("Bad echo");
+			}
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+		long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+
+		System.out.println(mode + ": " + count + " connections echoed in " + millis + "ms, platform threads "
+				+ Thread.activeCount() + ", heap growth MB " + (heapAfter - heapBefore) / (1024 * 1024));
+
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+		server.close();
+	}
+}